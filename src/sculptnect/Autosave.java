@@ -0,0 +1,307 @@
+package sculptnect;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the sculpture safe from crashes. A background thread appends the
+ * bricks changed since the last checkpoint to a journal every few seconds,
+ * and now and then compacts the journal into a full save of the grid.
+ *
+ * The journal is a grid file followed by the checkpoints, each a header of
+ * magic, number of bricks, payload length and CRC-32 of the payload, then the
+ * index, record length and record of every brick. Recovery replays the
+ * checkpoints up to the first torn or broken one. Compaction replaces the
+ * whole file at once, so there's always a complete journal on disk.
+ *
+ * Editors only wait while the changed bricks are copied, encoding and
+ * writing happen on the autosave thread. Full saves are encoded on a
+ * scheduler of its own, the shared one is shut down before the last
+ * checkpoint on exit.
+ */
+public class Autosave implements Runnable {
+	private static final int ENTRY_MAGIC = 0x4a435353; // "SSCJ"
+	private static final int ENTRY_HEADER_SIZE = 16;
+
+	// The journal is compacted once the checkpoints outgrow the full save,
+	// or this many bytes if the full save is smaller
+	private static final long MIN_COMPACTION_BYTES = 1 << 20;
+
+	// Time to wait for the last checkpoint on exit
+	private static final long STOP_TIMEOUT = 5000;
+
+	private final VoxelGrid grid;
+	private final File file;
+	private final long checkpointMillis;
+	private final long syncMillis;
+	private final long compactionMillis;
+
+	private final GridFile.Coder coder = new GridFile.Coder();
+	private final CRC32 crc = new CRC32();
+	private TaskScheduler scheduler;
+	private Thread thread;
+	private volatile boolean stopped;
+
+	// State of the autosave thread
+	private AtomicLongArray changedBricks;
+	private FileChannel journal;
+	private long baseBytes, entryBytes;
+	private long lastSync, lastCompaction;
+	private boolean unsynced;
+
+	/**
+	 * @param checkpointMillis the time between checkpoints
+	 * @param syncMillis the longest time a checkpoint may wait to be synced
+	 *            to the disk, 0 to sync every one
+	 * @param compactionMillis the longest time between compactions
+	 */
+	public Autosave(VoxelGrid grid, File file, long checkpointMillis, long syncMillis, long compactionMillis) {
+		this.grid = grid;
+		this.file = file;
+		this.checkpointMillis = checkpointMillis;
+		this.syncMillis = syncMillis;
+		this.compactionMillis = compactionMillis;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Start saving on a thread of its own, and take a last checkpoint when
+	 * the program exits.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+
+		thread = new Thread(this, "sculptnect-autosave");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread("sculptnect-autosave-exit") {
+			@Override
+			public void run() {
+				try {
+					Autosave.this.stop();
+				} catch (InterruptedException e) {
+					// Exit anyway
+				}
+			}
+		});
+	}
+
+	/**
+	 * Take a last checkpoint, synced to the disk, and wait for it.
+	 */
+	public void stop() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+			thread = this.thread;
+		}
+		if (thread != null) {
+			thread.join(STOP_TIMEOUT);
+		}
+	}
+
+	@Override
+	public void run() {
+		// Created here so that its thread has the low priority of this one
+		scheduler = new TaskScheduler(1);
+		try {
+			// Note changes from before the full save on, a few bricks may be
+			// saved twice but none is missed
+			changedBricks = grid.trackBricks();
+			compact();
+			while (true) {
+				synchronized (this) {
+					if (!stopped) {
+						wait(checkpointMillis);
+					}
+				}
+				if (stopped) {
+					checkpoint();
+					sync();
+					break;
+				}
+				checkpoint();
+			}
+		} catch (InterruptedException e) {
+			System.err.println("Autosave to " + file + " interrupted, the last changes may be lost");
+			e.printStackTrace();
+		} catch (IOException e) {
+			System.err.println("Autosave to " + file + " failed");
+			e.printStackTrace();
+		} finally {
+			close();
+			coder.end();
+			try {
+				scheduler.shutdown(0);
+			} catch (InterruptedException e) {
+				// Its thread is idle and never keeps the program alive
+			}
+		}
+	}
+
+	private void checkpoint() throws IOException, InterruptedException {
+		Map<Integer, byte[]> bricks = grid.takeChangedBricks(changedBricks);
+		if (!bricks.isEmpty()) {
+			List<byte[]> records = new ArrayList<byte[]>(bricks.size());
+			int payloadLength = 0;
+			for (byte[] voxels : bricks.values()) {
+				byte[] record = GridFile.encode(voxels, voxels.length, coder);
+				records.add(record);
+				payloadLength += 8 + record.length;
+			}
+
+			ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_SIZE + payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+			entry.position(ENTRY_HEADER_SIZE);
+			int i = 0;
+			for (int brick : bricks.keySet()) {
+				byte[] record = records.get(i++);
+				entry.putInt(brick).putInt(record.length).put(record);
+			}
+			crc.reset();
+			crc.update(entry.array(), ENTRY_HEADER_SIZE, payloadLength);
+			entry.putInt(0, ENTRY_MAGIC).putInt(4, bricks.size()).putInt(8, payloadLength).putInt(12, (int) crc.getValue());
+
+			entry.rewind();
+			while (entry.hasRemaining()) {
+				journal.write(entry);
+			}
+			entryBytes += entry.capacity();
+			unsynced = true;
+		}
+
+		long now = System.currentTimeMillis();
+		if (unsynced && now - lastSync >= syncMillis) {
+			sync();
+		}
+		if (entryBytes > Math.max(baseBytes, MIN_COMPACTION_BYTES) || (entryBytes > 0 && now - lastCompaction >= compactionMillis)) {
+			compact();
+		}
+	}
+
+	private void sync() throws IOException {
+		if (unsynced) {
+			journal.force(false);
+			unsynced = false;
+		}
+		lastSync = System.currentTimeMillis();
+	}
+
+	// Replace the journal by a full save of the grid as it is now
+	private void compact() throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		close();
+		new GridFile(scheduler, TaskScheduler.Priority.REFRESH).write(grid.snapshot(), file);
+		journal = new FileOutputStream(file, true).getChannel();
+
+		baseBytes = file.length();
+		entryBytes = 0;
+		unsynced = false;
+		lastSync = lastCompaction = System.currentTimeMillis();
+		System.out.println(String.format("Autosave compacted %s to %d kB in %.2f s", file, baseBytes >> 10, (System.nanoTime() - start) / 1e9));
+	}
+
+	private void close() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				// Nothing left to save
+			}
+			journal = null;
+		}
+	}
+
+	/**
+	 * Load the grid saved in a journal, with all complete checkpoints
+	 * replayed. Must not be used from a task of the scheduler.
+	 */
+	public static VoxelGrid recover(File file) throws IOException, InterruptedException {
+		long[] end = new long[1];
+		VoxelGrid grid = new GridFile().read(file, end);
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		MappedByteBuffer data;
+		try {
+			data = in.getChannel().map(FileChannel.MapMode.READ_ONLY, end[0], in.length() - end[0]);
+		} finally {
+			in.close();
+		}
+		data.order(ByteOrder.LITTLE_ENDIAN);
+
+		GridFile.Coder coder = new GridFile.Coder();
+		CRC32 crc = new CRC32();
+		byte[] payload = new byte[0];
+		int numBricks = GridFile.numBricks(grid);
+		int numEntries = 0;
+		int offset = 0;
+		try {
+			while (data.limit() - offset >= ENTRY_HEADER_SIZE) {
+				int count = data.getInt(offset + 4);
+				int payloadLength = data.getInt(offset + 8);
+				if (data.getInt(offset) != ENTRY_MAGIC || count <= 0 || payloadLength < 0 || payloadLength > data.limit() - offset - ENTRY_HEADER_SIZE) {
+					break;
+				}
+
+				if (payload.length < payloadLength) {
+					payload = new byte[payloadLength];
+				}
+				data.position(offset + ENTRY_HEADER_SIZE);
+				data.get(payload, 0, payloadLength);
+				crc.reset();
+				crc.update(payload, 0, payloadLength);
+				if ((int) crc.getValue() != data.getInt(offset + 12)) {
+					break;
+				}
+
+				// The whole checkpoint is there, anything wrong from here on
+				// isn't a torn write
+				ByteBuffer entry = ByteBuffer.wrap(payload, 0, payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+				for (int i = 0; i < count; i++) {
+					if (entry.remaining() < 8) {
+						throw new IOException(file + " has a broken checkpoint");
+					}
+					int brick = entry.getInt();
+					int length = entry.getInt();
+					if (brick < 0 || brick >= numBricks || length < 2 || length > entry.remaining()) {
+						throw new IOException(file + " has a broken checkpoint");
+					}
+					int next = entry.position() + length;
+					entry.limit(next);
+					GridFile.decode(entry, grid, brick, coder);
+					entry.limit(payloadLength).position(next);
+				}
+				offset += ENTRY_HEADER_SIZE + payloadLength;
+				numEntries++;
+			}
+		} catch (RuntimeException e) {
+			throw new IOException(file + " has a broken checkpoint", e);
+		} finally {
+			coder.end();
+		}
+
+		if (offset < data.limit()) {
+			System.err.println(String.format("Dropped the last %d bytes of %s, the checkpoint is incomplete", data.limit() - offset, file));
+		}
+		System.out.println(String.format("Replayed %d checkpoints of %s", numEntries, file));
+		return grid;
+	}
+}
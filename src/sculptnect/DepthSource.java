@@ -0,0 +1,358 @@
+package sculptnect;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import javax.vecmath.Vector3f;
+
+/**
+ * A single depth sensor carving into a shared voxel grid. Every source has its
+ * own depth buffers, its own strips of the frame to carve and an extrinsic pose
+ * that places the sensor around the sculpture, so several sources can carve
+ * concurrently. The strips are carved by the shared task scheduler.
+ */
+public class DepthSource {
+	private static final short KINECT_NEAR_THRESHOLD = KinectUtils.metersToRawDepth(0.5f);
+	private static final short KINECT_FAR_THRESHOLD = KinectUtils.metersToRawDepth(1.4f);
+	private static final float KINECT_DEPTH_FACTOR = 500.0f;
+
+	public static final int DEPTH_WIDTH = 640;
+	public static final int DEPTH_HEIGHT = 480;
+
+	// Swept carving interpolates between the last processed frame and the
+	// current one, so that dropped frames don't leave uncarved ridges
+	private static final int MAX_SWEEP_STEPS = 8;
+	private static final float SWEEP_MAX_DEPTH_JUMP = 40.0f;
+
+	private final VoxelGrid grid;
+	private final int gridSize;
+
+	// Sensor pose relative to the sculpture, rotation in degrees around the y
+	// axis followed by the x axis, and offset in voxels
+	private final float yaw, pitch;
+	private final Vector3f offset;
+
+	private float filteredDepth[][] = new float[DEPTH_WIDTH][DEPTH_HEIGHT];
+	private float depth[][] = new float[DEPTH_WIDTH][DEPTH_HEIGHT];
+
+	private float previousDepth[][] = new float[DEPTH_WIDTH][DEPTH_HEIGHT];
+	private float previousModelRotationX = 0.0f;
+	private float previousModelRotationY = 0.0f;
+
+	// Sensor to grid transform (row major 3x3 rotation followed by a
+	// translation) of every interpolation step, where the last step is the
+	// current model rotation
+	private float sweepTransform[][] = new float[MAX_SWEEP_STEPS + 1][12];
+	private int sweepSteps = 1;
+	private boolean sweepActive = false;
+
+	private final TaskScheduler scheduler = TaskScheduler.getShared();
+	private final ExecutorService frameExecutorService = Executors.newSingleThreadExecutor();
+	private final List<KinectWorker> kinectWorkers = new ArrayList<KinectWorker>();
+
+	// Held while a frame is read and carved
+	private final Semaphore busy = new Semaphore(1);
+	private volatile int droppedFrames;
+
+	public class KinectWorker implements Runnable {
+		public int lower, upper;
+
+		public KinectWorker(int lower, int upper) {
+			this.lower = lower;
+			this.upper = upper;
+		}
+
+		@Override
+		public void run() {
+			final int radius = 0;
+			final int padDepth = 30;
+			int bounds[] = { DEPTH_WIDTH / 2 - (int) (Math.sqrt(3) * gridSize * 0.5f), //
+					DEPTH_WIDTH / 2 + (int) (Math.sqrt(3) * gridSize * 0.5f), //
+					DEPTH_HEIGHT / 2 - (int) (Math.sqrt(3) * gridSize * 0.5f), //
+					DEPTH_HEIGHT / 2 + (int) (Math.sqrt(3) * gridSize * 0.5f) };
+
+			int steps = sweepSteps;
+			boolean sweep = sweepActive;
+
+			int lowery = (lower < radius ? radius : lower);
+			int uppery = (upper > DEPTH_HEIGHT - radius ? DEPTH_HEIGHT - radius : upper);
+			for (int x = radius; x < DEPTH_WIDTH - radius; ++x) {
+				for (int y = lowery; y < uppery; ++y) {
+					// Optimization, ignore points too far from the model
+					if (x < bounds[0] || x > bounds[1] || y < bounds[2] || y > bounds[3]) {
+						continue;
+					}
+
+					// Apply simple box blur
+					float total = 0.0f;
+					int count = 0;
+					for (int xk = -radius; xk <= radius; ++xk) {
+						for (int yk = -radius; yk <= radius; ++yk) {
+							if (Math.abs(depth[x][y] - depth[x + xk][y + yk]) < 0.02) {
+								total += depth[x + xk][y + yk];
+								++count;
+							}
+						}
+					}
+					filteredDepth[x][y] = total / count;
+
+					float currentDepth = filteredDepth[x][y];
+					float lastDepth = previousDepth[x][y];
+					previousDepth[x][y] = currentDepth;
+
+					// Without a valid depth in both frames there is nothing to
+					// interpolate, so just carve the current frame
+					if (!sweep || lastDepth <= 0.0f || currentDepth <= 0.0f || Math.abs(currentDepth - lastDepth) * KINECT_DEPTH_FACTOR > SWEEP_MAX_DEPTH_JUMP) {
+						carveColumn(x, y, currentDepth, padDepth, 0, steps);
+						continue;
+					}
+
+					// Carve every interpolated step in this pass. Each column is
+					// stretched to reach the previous step so the swept volume
+					// is covered without gaps along the depth axis.
+					float stepDepth = (currentDepth - lastDepth) / steps;
+					for (int s = 1; s <= steps; ++s) {
+						float from = lastDepth + stepDepth * (s - 1);
+						float to = lastDepth + stepDepth * s;
+						int extension = (int) Math.ceil(Math.abs(stepDepth) * KINECT_DEPTH_FACTOR);
+						carveColumn(x, y, Math.max(from, to), padDepth, extension, s);
+					}
+				}
+			}
+		}
+
+		private void carveColumn(int x, int y, float surfaceDepth, int padDepth, int extension, int step) {
+			float m[] = sweepTransform[step];
+
+			for (int i = 0; i < padDepth + extension; ++i) {
+				float xOrig = x - DEPTH_WIDTH / 2;
+				float yOrig = (DEPTH_HEIGHT - 1 - y) - DEPTH_HEIGHT / 2;
+				float zOrig = surfaceDepth * KINECT_DEPTH_FACTOR - KINECT_DEPTH_FACTOR * 0.5f - i;
+
+				// Move the points from the sensor into the model, which
+				// includes rotating them the same amount that the model is
+				// rotated
+				float xVal = xOrig * m[0] + yOrig * m[1] + zOrig * m[2] + m[9];
+				float yVal = xOrig * m[3] + yOrig * m[4] + zOrig * m[5] + m[10];
+				float zVal = xOrig * m[6] + yOrig * m[7] + zOrig * m[8] + m[11];
+
+				int xPos = (int) (xVal + gridSize / 2);
+				int yPos = (int) (yVal + gridSize / 2);
+				int zPos = (int) (zVal + gridSize / 2);
+
+				// Check whether the point is within the bounding box of
+				// the
+				// model
+				if (zPos >= 0 && zPos < gridSize && xPos >= 0 && xPos < gridSize && yPos >= 0 && yPos < gridSize) {
+					grid.setVoxel(xPos, yPos, zPos, VoxelGrid.VOXEL_GRID_AIR);
+				} else if (i >= extension) {
+					// The swept extension may start outside the model
+					break;
+				}
+			}
+		}
+	}
+
+	public DepthSource(VoxelGrid grid, int gridSize, float yaw, float pitch, Vector3f offset) {
+		this.grid = grid;
+		this.gridSize = gridSize;
+		this.yaw = yaw;
+		this.pitch = pitch;
+		this.offset = new Vector3f(offset);
+
+		// Create a KinectWorker for every thread of the scheduler
+		int strips = scheduler.getNumThreads();
+		int step = (DEPTH_HEIGHT + strips - 1) / strips;
+		for (int i = 0; i < strips; i++) {
+			int lower = step * i;
+			int upper = Math.min(lower + step, DEPTH_HEIGHT);
+			kinectWorkers.add(new KinectWorker(lower, upper));
+		}
+	}
+
+	/**
+	 * Carve a depth frame into the grid and wait for it to finish.
+	 */
+	public void update(ByteBuffer depthBuffer, float modelRotationX, float modelRotationY, boolean sweptCarving) {
+		// Wait for any submitted frame to finish first
+		busy.acquireUninterruptibly();
+		try {
+			readDepth(depthBuffer);
+			carve(modelRotationX, modelRotationY, sweptCarving);
+		} finally {
+			busy.release();
+		}
+	}
+
+	/**
+	 * Carve a depth frame into the grid on this source's own threads. The
+	 * depth buffer is consumed before returning, so it may be reused by the
+	 * caller. If the previous frame is still being carved the frame is dropped.
+	 *
+	 * @return whether the frame was accepted
+	 */
+	public boolean submit(ByteBuffer depthBuffer, final float modelRotationX, final float modelRotationY, final boolean sweptCarving) {
+		if (!busy.tryAcquire()) {
+			droppedFrames++;
+			return false;
+		}
+
+		readDepth(depthBuffer);
+		frameExecutorService.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					carve(modelRotationX, modelRotationY, sweptCarving);
+				} finally {
+					busy.release();
+				}
+			}
+		});
+		return true;
+	}
+
+	public int getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	private void readDepth(ByteBuffer depthBuffer) {
+		depthBuffer.rewind();
+		depthBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		// Retrieve Kinect depth data within the near and far threshold to a
+		// depth array
+		for (int y = 0; y < DEPTH_HEIGHT; ++y) {
+			for (int x = 0; x < DEPTH_WIDTH; ++x) {
+				short rawDepth = depthBuffer.getShort();
+				if (rawDepth < KINECT_NEAR_THRESHOLD || rawDepth > KINECT_FAR_THRESHOLD) {
+					depth[x][y] = 0.0f;
+				} else {
+					depth[x][y] = (KINECT_FAR_THRESHOLD - rawDepth) / (float) (KINECT_FAR_THRESHOLD - KINECT_NEAR_THRESHOLD);
+				}
+			}
+		}
+	}
+
+	private void carve(float modelRotationX, float modelRotationY, boolean sweptCarving) {
+		updateSweep(modelRotationX, modelRotationY, sweptCarving);
+
+		try {
+			grid.beginEditing();
+			try {
+				// Start all workers and wait for them to finish
+				scheduler.invokeAll(TaskScheduler.Priority.CARVING, kinectWorkers);
+			} finally {
+				grid.endEditing();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		previousModelRotationX = modelRotationX;
+		previousModelRotationY = modelRotationY;
+	}
+
+	private void updateSweep(float modelRotationX, float modelRotationY, boolean sweptCarving) {
+		float deltaX = angleDifference(previousModelRotationX, modelRotationX);
+		float deltaY = angleDifference(previousModelRotationY, modelRotationY);
+
+		// Take enough steps that the outermost voxels move at most one voxel
+		// between two steps
+		int steps = 1;
+		if (sweptCarving) {
+			float radius = (float) Math.sqrt(3) * gridSize * 0.5f;
+			float displacement = (float) Math.toRadians(Math.abs(deltaX) + Math.abs(deltaY)) * radius;
+			steps = Math.max(1, Math.min(MAX_SWEEP_STEPS, (int) Math.ceil(displacement)));
+		}
+
+		// The sensor pose is the same for every step
+		float pose[] = new float[9];
+		rotation(yaw, pitch, pose);
+
+		float model[] = new float[9];
+		for (int s = 1; s <= steps; ++s) {
+			float t = (float) s / steps;
+			float angleX = (previousModelRotationX + deltaX * t + 360.0f) % 360.0f;
+			float angleY = (previousModelRotationY + deltaY * t + 360.0f) % 360.0f;
+			rotation(angleY, angleX, model);
+
+			// Combine model rotation and sensor pose into a single transform
+			float m[] = sweepTransform[s];
+			for (int row = 0; row < 3; ++row) {
+				for (int col = 0; col < 3; ++col) {
+					m[row * 3 + col] = model[row * 3] * pose[col] + model[row * 3 + 1] * pose[3 + col] + model[row * 3 + 2] * pose[6 + col];
+				}
+				m[9 + row] = model[row * 3] * offset.x + model[row * 3 + 1] * offset.y + model[row * 3 + 2] * offset.z;
+			}
+		}
+		sweepSteps = steps;
+		sweepActive = sweptCarving;
+	}
+
+	/**
+	 * Get the rotation around the y axis followed by the x axis as a row major
+	 * 3x3 matrix.
+	 *
+	 * @param angleY in degrees
+	 * @param angleX in degrees
+	 */
+	private static void rotation(float angleY, float angleX, float m[]) {
+		angleX = (angleX % 360.0f + 360.0f) % 360.0f;
+		angleY = (angleY % 360.0f + 360.0f) % 360.0f;
+		float cosX = SculptMath.cos(angleX);
+		float sinX = SculptMath.sin(angleX);
+		float cosY = SculptMath.cos(angleY);
+		float sinY = SculptMath.sin(angleY);
+
+		m[0] = cosY;
+		m[1] = sinY * sinX;
+		m[2] = sinY * cosX;
+		m[3] = 0.0f;
+		m[4] = cosX;
+		m[5] = -sinX;
+		m[6] = -sinY;
+		m[7] = cosY * sinX;
+		m[8] = cosY * cosX;
+	}
+
+	/**
+	 * Get the signed shortest difference between two angles.
+	 *
+	 * @param from angle in degrees
+	 * @param to angle in degrees
+	 * @return difference in the interval [-180, 180)
+	 */
+	private static float angleDifference(float from, float to) {
+		return ((to - from + 540.0f) % 360.0f) - 180.0f;
+	}
+
+	public void draw(GL2 gl) {
+		gl.glPushMatrix();
+
+		// Place the depth map at the sensor pose
+		gl.glTranslatef(offset.x, offset.y, offset.z);
+		gl.glRotatef(yaw, 0.0f, 1.0f, 0.0f);
+		gl.glRotatef(pitch, 1.0f, 0.0f, 0.0f);
+
+		gl.glTranslatef(-320.0f, -240.0f, -KINECT_DEPTH_FACTOR * 0.5f);
+		gl.glBegin(GL.GL_POINTS);
+		gl.glColor4f(0.5f, 0.5f, 0.5f, 0.5f);
+		for (int x = 0; x < DEPTH_WIDTH; ++x) {
+			for (int y = 0; y < DEPTH_HEIGHT; ++y) {
+				if (filteredDepth[x][y] > 0.0f) {
+					gl.glColor4f(0.5f, 0.1f, 0.1f, filteredDepth[x][y] + 0.1f);
+					gl.glVertex3f(x, DEPTH_HEIGHT - y, filteredDepth[x][y] * KINECT_DEPTH_FACTOR);
+				}
+			}
+		}
+		gl.glEnd();
+		gl.glPopMatrix();
+	}
+}
@@ -0,0 +1,244 @@
+package sculptnect;
+
+import java.util.Arrays;
+
+/**
+ * Dual contouring on the binary voxel grid. Every cell the surface passes
+ * through gets one vertex, placed where it best fits the tangent planes at
+ * the crossed edges of the cell, and every crossed edge is closed by a quad
+ * connecting the four cells around it. Unlike the fixed displacement of the
+ * surface net this keeps edges and corners of the sculpture sharp.
+ *
+ * The planes go through the middle of the crossed edges and their normals
+ * come from the normal field, which follows the surface much more smoothly
+ * than the voxels themselves.
+ */
+public class DualContouringMesher implements Mesher {
+	// Pull towards the mass point of the crossings, keeps the solution stable
+	// where the planes are (nearly) parallel
+	private static final float REGULARIZATION = 0.05f;
+
+	// Corner offsets of the cell edges, the lower corner and the axis
+	private static final int[][] EDGES = {
+			//
+			{ 0, 0, 0, 0 }, { 0, 1, 0, 0 }, { 0, 0, 1, 0 }, { 0, 1, 1, 0 }, //
+			{ 0, 0, 0, 1 }, { 1, 0, 0, 1 }, { 0, 0, 1, 1 }, { 1, 0, 1, 1 }, //
+			{ 0, 0, 0, 2 }, { 1, 0, 0, 2 }, { 0, 1, 0, 2 }, { 1, 1, 0, 2 }, //
+	};
+
+	private final VoxelGrid grid;
+	private final NormalField normalField;
+
+	// Vertex index of every cell from one below the chunk to its upper end,
+	// only valid where the generation of the cell is the current one
+	private final int[] cellIndices;
+	private final int[] cellGenerations;
+	private int generation;
+	private int cellGridSize;
+
+	// The cells begun and the mesh they go to
+	private final int[] origin = new int[3];
+	private MeshBuffer mesh;
+
+	private final float[] normal = new float[6];
+	private final float[] crossing = new float[6];
+	private final int[] cell = new int[3];
+	private final int[] p = new int[3];
+
+	public DualContouringMesher(VoxelGrid grid, int chunkSize) {
+		this.grid = grid;
+		this.normalField = new NormalField(grid, chunkSize + 2);
+		int size = chunkSize + 1;
+		cellIndices = new int[size * size * size];
+		cellGenerations = new int[cellIndices.length];
+	}
+
+	@Override
+	public void extract(int[] lower, int[] upper, MeshBuffer mesh) {
+		begin(lower, upper, mesh);
+		extract(lower, upper);
+	}
+
+	@Override
+	public void begin(int[] lower, int[] upper, MeshBuffer mesh) {
+		this.mesh = mesh;
+		System.arraycopy(lower, 0, origin, 0, 3);
+		cellGridSize = Math.max(upper[0] - lower[0], Math.max(upper[1] - lower[1], upper[2] - lower[2])) + 1;
+		// Forget all vertices of the previous chunk without touching the cells
+		if (++generation == 0) {
+			Arrays.fill(cellGenerations, 0);
+			generation = 1;
+		}
+		normalField.prepare(lower[0] - 1, lower[1] - 1, lower[2] - 1, upper[0] + 1, upper[1] + 1, upper[2] + 1);
+	}
+
+	@Override
+	public void extract(int[] lower, int[] upper) {
+		// Every edge belongs to the chunk holding the cell at its lower voxel
+		for (p[0] = lower[0]; p[0] < upper[0]; p[0]++) {
+			for (p[1] = lower[1]; p[1] < upper[1]; p[1]++) {
+				for (p[2] = lower[2]; p[2] < upper[2]; p[2]++) {
+					boolean solid = !grid.isAir(p[0], p[1], p[2]);
+					for (int axis = 0; axis < 3; axis++) {
+						p[axis]++;
+						boolean next = !grid.isAir(p[0], p[1], p[2]);
+						p[axis]--;
+						if (solid == next) {
+							continue;
+						}
+
+						// The four cells around the edge, counter-clockwise
+						// around the axis
+						int u = (axis + 1) % 3;
+						int v = (axis + 2) % 3;
+						int q11 = cellVertex(p, u, v, 1, 1);
+						int q01 = cellVertex(p, u, v, 0, 1);
+						int q00 = cellVertex(p, u, v, 0, 0);
+						int q10 = cellVertex(p, u, v, 1, 0);
+
+						// Face the air voxel
+						if (solid) {
+							mesh.addTriangle(q11, q01, q00);
+							mesh.addTriangle(q11, q00, q10);
+						} else {
+							mesh.addTriangle(q11, q00, q01);
+							mesh.addTriangle(q11, q10, q00);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the vertex of the cell the given number of voxels below p along u
+	 * and v, placing it the first time it's needed.
+	 */
+	private int cellVertex(int[] p, int u, int v, int du, int dv) {
+		cell[0] = p[0];
+		cell[1] = p[1];
+		cell[2] = p[2];
+		cell[u] -= du;
+		cell[v] -= dv;
+
+		int key = ((cell[0] - origin[0] + 1) * cellGridSize + (cell[1] - origin[1] + 1)) * cellGridSize + (cell[2] - origin[2] + 1);
+		if (cellGenerations[key] != generation) {
+			cellIndices[key] = placeVertex(cell[0], cell[1], cell[2]);
+			cellGenerations[key] = generation;
+		}
+		return cellIndices[key];
+	}
+
+	/**
+	 * Minimize the squared distances to the planes at the crossed edges of a
+	 * cell, plus a small pull towards their mass point.
+	 */
+	private int placeVertex(int x, int y, int z) {
+		// Normal equations relative to the mass point, A^T A is symmetric
+		float a00 = 0, a01 = 0, a02 = 0, a11 = 0, a12 = 0, a22 = 0;
+		float mx = 0, my = 0, mz = 0;
+		float nx = 0, ny = 0, nz = 0;
+		int numCrossings = 0;
+
+		// First pass finds the mass point
+		for (int[] edge : EDGES) {
+			if (crossingAt(x, y, z, edge, false)) {
+				mx += crossing[0];
+				my += crossing[1];
+				mz += crossing[2];
+				numCrossings++;
+			}
+		}
+		mx /= numCrossings;
+		my /= numCrossings;
+		mz /= numCrossings;
+
+		float b0 = 0, b1 = 0, b2 = 0;
+		for (int[] edge : EDGES) {
+			if (!crossingAt(x, y, z, edge, true)) {
+				continue;
+			}
+
+			float cx = crossing[3], cy = crossing[4], cz = crossing[5];
+			float d = cx * (crossing[0] - mx) + cy * (crossing[1] - my) + cz * (crossing[2] - mz);
+			a00 += cx * cx;
+			a01 += cx * cy;
+			a02 += cx * cz;
+			a11 += cy * cy;
+			a12 += cy * cz;
+			a22 += cz * cz;
+			b0 += cx * d;
+			b1 += cy * d;
+			b2 += cz * d;
+			nx += cx;
+			ny += cy;
+			nz += cz;
+		}
+		a00 += REGULARIZATION;
+		a11 += REGULARIZATION;
+		a22 += REGULARIZATION;
+
+		// Cramer's rule, the regularization keeps the determinant positive
+		float c00 = a11 * a22 - a12 * a12;
+		float c01 = a02 * a12 - a01 * a22;
+		float c02 = a01 * a12 - a02 * a11;
+		float det = a00 * c00 + a01 * c01 + a02 * c02;
+		float dx = (c00 * b0 + c01 * b1 + c02 * b2) / det;
+		float dy = (c01 * b0 + (a00 * a22 - a02 * a02) * b1 + (a01 * a02 - a00 * a12) * b2) / det;
+		float dz = (c02 * b0 + (a01 * a02 - a00 * a12) * b1 + (a00 * a11 - a01 * a01) * b2) / det;
+
+		// Stay inside the cell, otherwise the mesh folds over
+		float px = Math.max(x, Math.min(x + 1, mx + dx));
+		float py = Math.max(y, Math.min(y + 1, my + dy));
+		float pz = Math.max(z, Math.min(z + 1, mz + dz));
+
+		float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length > 0.0f) {
+			nx /= length;
+			ny /= length;
+			nz /= length;
+		}
+		return mesh.addVertex(MeshBuffer.key(x, y, z, 0), px, py, pz, nx, ny, nz);
+	}
+
+	/**
+	 * Find whether an edge of a cell is crossed, and if so store the middle of
+	 * the edge and, if asked for, the surface normal there in crossing.
+	 */
+	private boolean crossingAt(int x, int y, int z, int[] edge, boolean withNormal) {
+		int axis = edge[3];
+		int x0 = x + edge[0], y0 = y + edge[1], z0 = z + edge[2];
+		int x1 = x0 + (axis == 0 ? 1 : 0), y1 = y0 + (axis == 1 ? 1 : 0), z1 = z0 + (axis == 2 ? 1 : 0);
+		boolean solid = !grid.isAir(x0, y0, z0);
+		if (solid == !grid.isAir(x1, y1, z1)) {
+			return false;
+		}
+
+		crossing[0] = (x0 + x1) * 0.5f;
+		crossing[1] = (y0 + y1) * 0.5f;
+		crossing[2] = (z0 + z1) * 0.5f;
+		if (!withNormal) {
+			return true;
+		}
+
+		// Average the normals of the two voxels, falling back to the edge
+		// direction where they cancel out
+		normalField.normal(x0, y0, z0, normal, 0);
+		normalField.normal(x1, y1, z1, normal, 3);
+		float nx = normal[0] + normal[3];
+		float ny = normal[1] + normal[4];
+		float nz = normal[2] + normal[5];
+		float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length > 0.0f) {
+			crossing[3] = nx / length;
+			crossing[4] = ny / length;
+			crossing[5] = nz / length;
+		} else {
+			float n = solid ? 1.0f : -1.0f;
+			crossing[3] = axis == 0 ? n : 0.0f;
+			crossing[4] = axis == 1 ? n : 0.0f;
+			crossing[5] = axis == 2 ? n : 0.0f;
+		}
+		return true;
+	}
+}
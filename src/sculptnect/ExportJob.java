@@ -0,0 +1,135 @@
+package sculptnect;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports the sculpture in the background while it is carved on. The grid is
+ * copied at the end of an edit batch, so the file holds the sculpture as it
+ * was at one moment, and the copy is meshed and written by low priority
+ * tasks that yield to carving and to the renders.
+ */
+public class ExportJob implements Runnable, MeshExtractor.ProgressListener {
+	public enum State {
+		SNAPSHOT, MESHING, DONE, CANCELLED, FAILED
+	}
+
+	// Progress is reported in steps of this many percent
+	private static final int REPORT_STEP = 10;
+
+	private final VoxelGrid grid;
+	private final Mesher.Type type;
+	private final File file;
+	private final MeshDecimator decimator;
+
+	private volatile MeshExtractor extractor;
+	private volatile boolean cancelled;
+	private volatile State state = State.SNAPSHOT;
+	private volatile float progress;
+	private final AtomicInteger reported = new AtomicInteger();
+
+	/**
+	 * @param decimator the decimation of the surface, null to export every
+	 *            triangle
+	 */
+	public ExportJob(VoxelGrid grid, Mesher.Type type, File file, MeshDecimator decimator) {
+		this.grid = grid;
+		this.type = type;
+		this.file = file;
+		this.decimator = decimator;
+	}
+
+	/**
+	 * Run the export on a thread of its own.
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "sculptnect-export");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Stop the export as soon as possible, the partial file is removed.
+	 */
+	public void cancel() {
+		cancelled = true;
+		MeshExtractor extractor = this.extractor;
+		if (extractor != null) {
+			extractor.cancel();
+		}
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public boolean isDone() {
+		return state == State.DONE || state == State.CANCELLED || state == State.FAILED;
+	}
+
+	/**
+	 * Get the share of chunks meshed and written, from 0 to 1.
+	 */
+	public float getProgress() {
+		return progress;
+	}
+
+	@Override
+	public void run() {
+		long start = System.nanoTime();
+		try {
+			VoxelGrid snapshot = grid.snapshot();
+			System.out.println(String.format("Export to %s: snapshot taken in %.1f s", file, (System.nanoTime() - start) / 1e9));
+
+			state = State.MESHING;
+			MeshExtractor extractor = new MeshExtractor(snapshot, type);
+			extractor.setProgressListener(this);
+			this.extractor = extractor;
+			if (cancelled) {
+				extractor.cancel();
+			}
+
+			MeshExporter exporter = new MeshExporter(extractor);
+			exporter.setDecimator(decimator);
+			exporter.export(file);
+			state = State.DONE;
+			System.out.println(String.format("Exported %d vertices and %d triangles to %s in %.1f s", exporter.getNumVertices(), exporter.getNumTriangles(), file, (System.nanoTime() - start) / 1e9));
+		} catch (CancellationException e) {
+			state = State.CANCELLED;
+			System.out.println("Export to " + file + " cancelled");
+		} catch (Exception e) {
+			state = State.FAILED;
+			System.err.println("Export to " + file + " failed");
+			e.printStackTrace();
+		} finally {
+			extractor = null;
+		}
+	}
+
+	@Override
+	public void chunksDone(int done, int total) {
+		progress = (float) done / total;
+		if (cancelled) {
+			return;
+		}
+
+		// Only one thread reports each step
+		int step = done * (100 / REPORT_STEP) / total;
+		int last;
+		while ((last = reported.get()) < step) {
+			if (reported.compareAndSet(last, step)) {
+				if (step < 100 / REPORT_STEP) {
+					System.out.println(String.format("Export to %s: %d%%", file, step * REPORT_STEP));
+				}
+				break;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Export to %s: %s %.0f%%", file, state, progress * 100.0f);
+	}
+}
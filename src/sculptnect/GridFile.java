@@ -0,0 +1,470 @@
+package sculptnect;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Saves and loads the voxels of a grid in a compact file of its own. The grid
+ * is cut into bricks, which are encoded and decoded in parallel on the task
+ * scheduler. Most bricks of a sculpture are all air or all clay and take two
+ * bytes. The others list the values they hold and pack a palette index per
+ * voxel into as few bits as needed, compressed if that makes them smaller.
+ *
+ * The file is little endian: a header of magic, version, width, height,
+ * depth and brick size, the length of every brick record, then the records
+ * in order of x, y and z. A record starts with its tag, followed by the value
+ * of a uniform brick, or the palette size less one, the palette and the
+ * packed indices, deflated or not. Files are read through a memory mapping.
+ */
+public class GridFile {
+	// The bricks the grid keeps its voxels in
+	public static final int BRICK_SIZE = VoxelGrid.BRICK_SIZE;
+
+	private static final int MAGIC = 0x47435353; // "SSCG"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int BUFFER_SIZE = 1 << 20;
+	// Largest side of a grid read, mesh vertices key cells by 20 bits
+	private static final int MAX_SIZE = 1 << 20;
+
+	// Record tags
+	private static final byte UNIFORM = 0;
+	private static final byte PACKED = 1;
+	private static final byte DEFLATED = 2;
+
+	// The record of a uniform brick of every value, shared by all of them
+	private static final byte[][] UNIFORM_RECORDS = new byte[256][];
+	static {
+		for (int value = 0; value < 256; value++) {
+			UNIFORM_RECORDS[value] = new byte[] { UNIFORM, (byte) value };
+		}
+	}
+
+	// Voxels of a whole brick
+	static final int BRICK_VOXELS = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+
+	/**
+	 * Scratch data of a thread coding bricks.
+	 */
+	static class Coder {
+		Deflater deflater;
+		Inflater inflater;
+		final int[] paletteIndex = new int[256];
+		final byte[] palette = new byte[256];
+		final byte[] voxels = new byte[BRICK_VOXELS];
+		final byte[] packed = new byte[BRICK_VOXELS];
+		final byte[] record = new byte[2 + 256 + BRICK_VOXELS * 2];
+
+		/**
+		 * Give back the native memory of the compression.
+		 */
+		void end() {
+			if (deflater != null) {
+				deflater.end();
+			}
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+
+	private final TaskScheduler scheduler;
+	private final TaskScheduler.Priority priority;
+
+	public GridFile() {
+		this(TaskScheduler.getShared(), TaskScheduler.Priority.REFRESH);
+	}
+
+	public GridFile(TaskScheduler scheduler, TaskScheduler.Priority priority) {
+		this.scheduler = scheduler;
+		this.priority = priority;
+	}
+
+	/**
+	 * Save the voxels of a grid, which must not change meanwhile. The file is
+	 * replaced only once it's complete. Must not be used from a task of the
+	 * scheduler.
+	 */
+	public void write(final VoxelGrid grid, File file) throws IOException, InterruptedException {
+		final int[] bricks = bricks(grid.width, grid.height, grid.depth);
+		final byte[][] records = new byte[bricks[0] * bricks[1] * bricks[2]][];
+		final BlockingQueue<Coder> coders = coders();
+
+		// A task per row of bricks along z
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (int x = 0; x < bricks[0]; x++) {
+			for (int y = 0; y < bricks[1]; y++) {
+				final int bx = x, by = y;
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						Coder coder = coders.poll();
+						try {
+							for (int bz = 0; bz < bricks[2]; bz++) {
+								int brick = (bx * bricks[1] + by) * bricks[2] + bz;
+								int numVoxels = gather(grid, brick, coder.voxels);
+								records[brick] = encode(coder.voxels, numVoxels, coder);
+							}
+						} finally {
+							coders.offer(coder);
+						}
+					}
+				});
+			}
+		}
+		try {
+			scheduler.invokeAll(priority, tasks);
+		} finally {
+			end(coders);
+		}
+
+		File temporary = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		FileChannel out = new FileOutputStream(temporary).getChannel();
+		boolean complete = false;
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(grid.width).putInt(grid.height).putInt(grid.depth).putInt(BRICK_SIZE);
+			for (byte[] record : records) {
+				if (buffer.remaining() < 4) {
+					flush(buffer, out);
+				}
+				buffer.putInt(record.length);
+			}
+			for (byte[] record : records) {
+				if (buffer.remaining() < record.length) {
+					flush(buffer, out);
+				}
+				buffer.put(record);
+			}
+			flush(buffer, out);
+			out.force(false);
+			complete = true;
+		} finally {
+			out.close();
+			if (!complete) {
+				temporary.delete();
+			}
+		}
+
+		// Some platforms don't rename over an existing file
+		if (!temporary.renameTo(file)) {
+			file.delete();
+			if (!temporary.renameTo(file)) {
+				throw new IOException("Can't rename " + temporary + " to " + file);
+			}
+		}
+	}
+
+	/**
+	 * Load the voxels saved in a file into a grid of their own, without any
+	 * renders. Must not be used from a task of the scheduler.
+	 */
+	public VoxelGrid read(File file) throws IOException, InterruptedException {
+		return read(file, null);
+	}
+
+	/**
+	 * @param end set to the end of the grid in the file, other data may
+	 *            follow
+	 */
+	VoxelGrid read(File file, long[] end) throws IOException, InterruptedException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		final MappedByteBuffer data;
+		try {
+			data = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+		} finally {
+			// The mapping stays valid
+			in.close();
+		}
+		data.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+			throw new IOException(file + " is no grid file");
+		}
+		if (data.getInt(4) != VERSION) {
+			throw new IOException(file + " has unknown version " + data.getInt(4));
+		}
+		int width = data.getInt(8), height = data.getInt(12), depth = data.getInt(16);
+		if (!isSize(width) || !isSize(height) || !isSize(depth) || data.getInt(20) != BRICK_SIZE) {
+			throw new IOException(file + " has a broken header");
+		}
+
+		// Every brick has a table entry and a record of two bytes at least,
+		// the file must hold them before anything is allocated
+		final int[] bricks = bricks(width, height, depth);
+		long bricksTotal = (long) bricks[0] * bricks[1] * bricks[2];
+		if (HEADER_SIZE + (4L + 2L) * bricksTotal > data.limit()) {
+			throw new IOException(file + " is truncated");
+		}
+		int count = (int) bricksTotal;
+
+		final VoxelGrid grid = new VoxelGrid(width, height, depth, false);
+		final long[] offsets = new long[count + 1];
+		offsets[0] = HEADER_SIZE + 4L * count;
+		for (int i = 0; i < count; i++) {
+			int length = data.getInt(HEADER_SIZE + 4 * i);
+			if (length < 2) {
+				throw new IOException(file + " has a broken brick table");
+			}
+			offsets[i + 1] = offsets[i] + length;
+		}
+		if (offsets[count] > data.limit()) {
+			throw new IOException(file + " is truncated");
+		}
+
+		final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		final BlockingQueue<Coder> coders = coders();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (int x = 0; x < bricks[0]; x++) {
+			for (int y = 0; y < bricks[1]; y++) {
+				final int bx = x, by = y;
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						// Every task reads at its own position
+						ByteBuffer view = data.duplicate();
+						Coder coder = coders.poll();
+						try {
+							for (int bz = 0; bz < bricks[2] && failure.get() == null; bz++) {
+								int brick = (bx * bricks[1] + by) * bricks[2] + bz;
+								int offset = (int) offsets[brick];
+								if (data.get(offset) == UNIFORM && data.get(offset + 1) == VoxelGrid.VOXEL_GRID_AIR) {
+									// New grids are all air already
+									continue;
+								}
+								view.limit((int) offsets[brick + 1]).position(offset);
+								decode(view, grid, brick, coder);
+							}
+						} catch (IOException e) {
+							failure.compareAndSet(null, e);
+						} catch (RuntimeException e) {
+							failure.compareAndSet(null, new IOException("Broken brick in row " + bx + ", " + by, e));
+						} finally {
+							coders.offer(coder);
+						}
+					}
+				});
+			}
+		}
+		try {
+			scheduler.invokeAll(priority, tasks);
+		} finally {
+			end(coders);
+		}
+
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		if (end != null) {
+			end[0] = offsets[count];
+		}
+		return grid;
+	}
+
+	/**
+	 * Get the bounds of a brick, given by its index in the file.
+	 *
+	 * @param lower the lower voxel of the brick
+	 * @param upper the voxel after the upper end of the brick, bricks on the
+	 *            far sides of the grid may be smaller
+	 */
+	static void brickBounds(VoxelGrid grid, int brick, int[] lower, int[] upper) {
+		int[] bricks = bricks(grid.width, grid.height, grid.depth);
+		int[] size = { grid.width, grid.height, grid.depth };
+		int[] position = { brick / (bricks[1] * bricks[2]), brick / bricks[2] % bricks[1], brick % bricks[2] };
+		for (int k = 0; k < 3; k++) {
+			lower[k] = position[k] * BRICK_SIZE;
+			upper[k] = Math.min(lower[k] + BRICK_SIZE, size[k]);
+		}
+	}
+
+	static int numBricks(VoxelGrid grid) {
+		int[] bricks = bricks(grid.width, grid.height, grid.depth);
+		return bricks[0] * bricks[1] * bricks[2];
+	}
+
+	/**
+	 * Copy the voxels of a brick in order of x, y and z.
+	 *
+	 * @return the number of voxels
+	 */
+	static int gather(VoxelGrid grid, int brick, byte[] voxels) {
+		return grid.getBrick(brick, voxels);
+	}
+
+	/**
+	 * Get the record of a brick, possibly in the scratch space of the coder.
+	 *
+	 * @param voxels the voxels of the brick, as gathered
+	 */
+	static byte[] encode(byte[] voxels, int numVoxels, Coder coder) {
+		// Collect the values, indices left from earlier bricks don't count
+		int[] paletteIndex = coder.paletteIndex;
+		byte[] palette = coder.palette;
+		int paletteSize = 0;
+		for (int i = 0; i < numVoxels; i++) {
+			int value = voxels[i] & 0xff;
+			int index = paletteIndex[value];
+			if (index >= paletteSize || palette[index] != (byte) value) {
+				paletteIndex[value] = paletteSize;
+				palette[paletteSize++] = (byte) value;
+			}
+		}
+		if (paletteSize == 1) {
+			return UNIFORM_RECORDS[palette[0] & 0xff];
+		}
+
+		// Pack the indices, a power of two bits each so none straddles two
+		// bytes
+		int bits = bitsPerVoxel(paletteSize);
+		int packedSize = (numVoxels * bits + 7) / 8;
+		byte[] packed = coder.packed;
+		Arrays.fill(packed, 0, packedSize, (byte) 0);
+		for (int i = 0, bit = 0; i < numVoxels; i++, bit += bits) {
+			packed[bit >> 3] |= paletteIndex[voxels[i] & 0xff] << (bit & 7);
+		}
+
+		byte[] record = coder.record;
+		record[1] = (byte) (paletteSize - 1);
+		System.arraycopy(palette, 0, record, 2, paletteSize);
+		int start = 2 + paletteSize;
+
+		if (coder.deflater == null) {
+			coder.deflater = new Deflater();
+		}
+		Deflater deflater = coder.deflater;
+		deflater.reset();
+		deflater.setInput(packed, 0, packedSize);
+		deflater.finish();
+		int length = deflater.deflate(record, start, record.length - start);
+		if (deflater.finished() && length < packedSize) {
+			record[0] = DEFLATED;
+		} else {
+			record[0] = PACKED;
+			System.arraycopy(packed, 0, record, start, packedSize);
+			length = packedSize;
+		}
+		return Arrays.copyOf(record, start + length);
+	}
+
+	/**
+	 * Decode the record of a brick into the grid. The record lies between
+	 * the position and the limit of the buffer.
+	 */
+	static void decode(ByteBuffer record, VoxelGrid grid, int brick, Coder coder) throws IOException {
+		int[] lower = new int[3];
+		int[] upper = new int[3];
+		brickBounds(grid, brick, lower, upper);
+		int numVoxels = (upper[0] - lower[0]) * (upper[1] - lower[1]) * (upper[2] - lower[2]);
+		byte[] voxels = coder.voxels;
+
+		byte tag = record.get();
+		if (tag == UNIFORM) {
+			Arrays.fill(voxels, 0, numVoxels, record.get());
+		} else if (tag == PACKED || tag == DEFLATED) {
+			int paletteSize = (record.get() & 0xff) + 1;
+			byte[] palette = coder.palette;
+			record.get(palette, 0, paletteSize);
+			int bits = bitsPerVoxel(paletteSize);
+			int packedSize = (numVoxels * bits + 7) / 8;
+			byte[] packed = coder.packed;
+
+			if (tag == PACKED) {
+				if (record.remaining() != packedSize) {
+					throw new IOException("Packed brick of " + record.remaining() + " bytes instead of " + packedSize);
+				}
+				record.get(packed, 0, packedSize);
+			} else {
+				byte[] compressed = coder.record;
+				int length = record.remaining();
+				record.get(compressed, 0, length);
+				if (coder.inflater == null) {
+					coder.inflater = new Inflater();
+				}
+				Inflater inflater = coder.inflater;
+				inflater.reset();
+				inflater.setInput(compressed, 0, length);
+				try {
+					if (inflater.inflate(packed, 0, packedSize) != packedSize || !inflater.finished()) {
+						throw new IOException("Deflated brick doesn't hold " + packedSize + " bytes");
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("Broken deflated brick", e);
+				}
+			}
+
+			int mask = (1 << bits) - 1;
+			for (int i = 0, bit = 0; i < numVoxels; i++, bit += bits) {
+				int index = (packed[bit >> 3] >> (bit & 7)) & mask;
+				if (index >= paletteSize) {
+					throw new IOException("Palette index " + index + " out of " + paletteSize);
+				}
+				voxels[i] = palette[index];
+			}
+		} else {
+			throw new IOException("Unknown brick tag " + tag);
+		}
+		scatter(grid, brick, voxels);
+	}
+
+	/**
+	 * Copy the voxels of a brick, in order of x, y and z, into the grid.
+	 */
+	static void scatter(VoxelGrid grid, int brick, byte[] voxels) {
+		grid.setBrick(brick, voxels);
+	}
+
+	private static int bitsPerVoxel(int paletteSize) {
+		return paletteSize <= 2 ? 1 : paletteSize <= 4 ? 2 : paletteSize <= 16 ? 4 : 8;
+	}
+
+	private static boolean isSize(int size) {
+		return size > 0 && size <= MAX_SIZE;
+	}
+
+	private static int[] bricks(int width, int height, int depth) {
+		return new int[] { (width + BRICK_SIZE - 1) / BRICK_SIZE, (height + BRICK_SIZE - 1) / BRICK_SIZE, (depth + BRICK_SIZE - 1) / BRICK_SIZE };
+	}
+
+	/**
+	 * No more tasks than threads run at once, so there's always a coder to
+	 * spare.
+	 */
+	private BlockingQueue<Coder> coders() {
+		BlockingQueue<Coder> coders = new ArrayBlockingQueue<Coder>(scheduler.getNumThreads());
+		for (int i = 0; i < scheduler.getNumThreads(); i++) {
+			coders.offer(new Coder());
+		}
+		return coders;
+	}
+
+	private static void end(BlockingQueue<Coder> coders) {
+		Coder coder;
+		while ((coder = coders.poll()) != null) {
+			coder.end();
+		}
+	}
+
+	private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
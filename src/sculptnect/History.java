@@ -0,0 +1,414 @@
+package sculptnect;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Undo and redo of the changes to a grid. The history keeps a snapshot of
+ * the grid as of the last step, its base, and the bricks of the grid file
+ * changed since. Closing a step stores the changed bricks as the XOR of their
+ * old and new voxels, as runs of equal bytes or as is, whichever is shorter,
+ * so applying the same delta to the base undoes a step and redoes it.
+ *
+ * Carving goes into steps of a given time, other operations like resets and
+ * loads are steps of their own. The steps of carving are closed on a low
+ * priority thread of the history, editors only note that one is due. Deltas
+ * are coded and applied in parallel, and undo and redo only dirty the cells
+ * and chunks of the bricks they change.
+ */
+public class History {
+	// Codings of a delta, given by its first byte
+	private static final byte RUNS = 0;
+	private static final byte RAW = 1;
+
+	// Bricks per task coding or applying deltas
+	private static final int BRICKS_PER_TASK = 64;
+
+	private static class Step {
+		final int[] bricks;
+		final byte[][] deltas;
+		final long bytes;
+
+		Step(int[] bricks, byte[][] deltas) {
+			this.bricks = bricks;
+			this.deltas = deltas;
+			long bytes = bricks.length * 4L;
+			for (byte[] delta : deltas) {
+				bytes += delta.length;
+			}
+			this.bytes = bytes;
+		}
+	}
+
+	private final VoxelGrid grid;
+	private final long budget;
+	private final long stepMillis;
+	private final TaskScheduler scheduler;
+
+	// Held while the steps and the base change, editors never wait for it
+	private final ReentrantLock lock = new ReentrantLock();
+	private final AtomicLongArray changedBricks;
+	private VoxelGrid base;
+	private final Deque<Step> undoSteps = new ArrayDeque<Step>();
+	private final Deque<Step> redoSteps = new ArrayDeque<Step>();
+	private long bytes;
+	// Start of the step in progress, 0 until something is carved
+	private final AtomicLong stepStart = new AtomicLong();
+	// Whether the step in progress has been open long enough, guarded by
+	// the history
+	private volatile boolean stepDue;
+
+	/**
+	 * @param budget the memory kept for the steps in bytes, the oldest are
+	 *            forgotten beyond
+	 * @param stepMillis the time carving goes into one step at most
+	 */
+	public History(VoxelGrid grid, long budget, long stepMillis) {
+		this(grid, budget, stepMillis, TaskScheduler.getShared());
+	}
+
+	public History(VoxelGrid grid, long budget, long stepMillis, TaskScheduler scheduler) {
+		this.grid = grid;
+		this.budget = budget;
+		this.stepMillis = stepMillis;
+		this.scheduler = scheduler;
+
+		// Bricks changed while the base is copied are looked at again
+		changedBricks = grid.trackBricks();
+		base = grid.snapshot();
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				recordSteps();
+			}
+		}, "sculptnect-history");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	public int getNumUndoSteps() {
+		lock.lock();
+		try {
+			return undoSteps.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getNumRedoSteps() {
+		lock.lock();
+		try {
+			return redoSteps.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Note the end of a batch of changes, and that the step is due to be
+	 * closed once it's been open long enough. Called by the grid after every
+	 * batch, it never waits for the history.
+	 */
+	void endBatch() {
+		long now = System.currentTimeMillis();
+		long start = stepStart.get();
+		if (start == 0) {
+			stepStart.compareAndSet(0, now);
+		} else if (now - start >= stepMillis && !stepDue) {
+			synchronized (this) {
+				stepDue = true;
+				notifyAll();
+			}
+		}
+	}
+
+	// Close the steps of carving as they fall due, in the background behind
+	// carving and meshing
+	private void recordSteps() {
+		try {
+			while (true) {
+				synchronized (this) {
+					while (!stepDue) {
+						wait();
+					}
+					stepDue = false;
+				}
+				lock.lock();
+				try {
+					record(TaskScheduler.Priority.REFRESH);
+				} finally {
+					lock.unlock();
+				}
+			}
+		} catch (InterruptedException e) {
+			// The scheduler shut down, carving is over
+		}
+	}
+
+	/**
+	 * Close the step in progress, if anything changed. Must not be called
+	 * from a batch or a task of the scheduler.
+	 */
+	public void commit() {
+		lock.lock();
+		try {
+			record(TaskScheduler.Priority.CARVING);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take back the last step, along with anything changed since. Must not
+	 * be called from a batch or a task of the scheduler.
+	 *
+	 * @return whether there was a step to undo
+	 */
+	public boolean undo() throws InterruptedException {
+		lock.lock();
+		try {
+			record(TaskScheduler.Priority.CARVING);
+			return move(undoSteps, redoSteps);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Make the last step undone again, as long as nothing changed since.
+	 * Must not be called from a batch or a task of the scheduler.
+	 *
+	 * @return whether there was a step to redo
+	 */
+	public boolean redo() throws InterruptedException {
+		lock.lock();
+		try {
+			record(TaskScheduler.Priority.CARVING);
+			return move(redoSteps, undoSteps);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Turn the changes since the last step into a step, coding the deltas at
+	// the given priority
+	private void record(TaskScheduler.Priority priority) throws InterruptedException {
+		stepStart.set(0);
+		Map<Integer, byte[]> changed = grid.takeChangedBricks(changedBricks);
+		if (changed.isEmpty()) {
+			return;
+		}
+
+		final int[] bricks = new int[changed.size()];
+		final byte[][] voxels = new byte[bricks.length][];
+		int i = 0;
+		for (Map.Entry<Integer, byte[]> entry : changed.entrySet()) {
+			bricks[i] = entry.getKey();
+			voxels[i++] = entry.getValue();
+		}
+
+		// Bricks written back and forth in the meantime come out unchanged
+		final byte[][] deltas = new byte[bricks.length][];
+		boolean done = false;
+		try {
+			forEachSlice(bricks.length, priority, new Slice() {
+				@Override
+				public void run(int from, int to, byte[] scratch, byte[] runs) {
+					for (int i = from; i < to; i++) {
+						int numVoxels = GridFile.gather(base, bricks[i], scratch);
+						boolean unchanged = true;
+						for (int j = 0; j < numVoxels; j++) {
+							scratch[j] ^= voxels[i][j];
+							unchanged &= scratch[j] == 0;
+						}
+						if (!unchanged) {
+							deltas[i] = encode(scratch, numVoxels, runs);
+							GridFile.scatter(base, bricks[i], voxels[i]);
+						}
+					}
+				}
+			});
+			done = true;
+		} finally {
+			if (!done) {
+				// The base may be half updated
+				forget();
+			}
+		}
+
+		int numChanged = 0;
+		for (byte[] delta : deltas) {
+			if (delta != null) {
+				numChanged++;
+			}
+		}
+		if (numChanged == 0) {
+			return;
+		}
+		int[] stepBricks = new int[numChanged];
+		byte[][] stepDeltas = new byte[numChanged][];
+		for (int j = 0, k = 0; j < bricks.length; j++) {
+			if (deltas[j] != null) {
+				stepBricks[k] = bricks[j];
+				stepDeltas[k++] = deltas[j];
+			}
+		}
+
+		// A new step ends whatever was undone before
+		for (Step step : redoSteps) {
+			bytes -= step.bytes;
+		}
+		redoSteps.clear();
+		Step step = new Step(stepBricks, stepDeltas);
+		undoSteps.push(step);
+		bytes += step.bytes;
+
+		// Forget the oldest steps beyond the budget
+		while (bytes > budget && !undoSteps.isEmpty()) {
+			bytes -= undoSteps.removeLast().bytes;
+		}
+	}
+
+	// Apply the top step of one stack to the base and the grid, and move it
+	// to the other
+	private boolean move(Deque<Step> source, Deque<Step> target) throws InterruptedException {
+		final Step step = source.poll();
+		if (step == null) {
+			return false;
+		}
+
+		boolean done = false;
+		try {
+			forEachSlice(step.bricks.length, TaskScheduler.Priority.CARVING, new Slice() {
+				@Override
+				public void run(int from, int to, byte[] scratch, byte[] runs) {
+					for (int i = from; i < to; i++) {
+						int numVoxels = GridFile.gather(base, step.bricks[i], scratch);
+						apply(step.deltas[i], scratch, numVoxels);
+						GridFile.scatter(base, step.bricks[i], scratch);
+					}
+				}
+			});
+			done = true;
+		} finally {
+			if (!done) {
+				forget();
+			}
+		}
+
+		grid.restoreBricks(base, step.bricks, changedBricks);
+		target.push(step);
+		return true;
+	}
+
+	// Drop all steps, after a failure left the base out of step with them,
+	// and start over from the grid as it is
+	private void forget() {
+		undoSteps.clear();
+		redoSteps.clear();
+		bytes = 0;
+		base = grid.snapshot();
+	}
+
+	private interface Slice {
+		void run(int from, int to, byte[] scratch, byte[] runs);
+	}
+
+	// Run over the bricks in slices on the scheduler, with scratch space for
+	// a brick and its delta
+	private void forEachSlice(int numBricks, TaskScheduler.Priority priority, final Slice slice) throws InterruptedException {
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (int from = 0; from < numBricks; from += BRICKS_PER_TASK) {
+			final int sliceFrom = from;
+			final int sliceTo = Math.min(from + BRICKS_PER_TASK, numBricks);
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					slice.run(sliceFrom, sliceTo, new byte[GridFile.BRICK_VOXELS], new byte[1 + GridFile.BRICK_VOXELS * 2]);
+				}
+			});
+		}
+		scheduler.invokeAll(priority, tasks);
+	}
+
+	/**
+	 * Code the XOR of the old and new voxels of a brick as runs of equal
+	 * bytes, each a length less one in one or two bytes and the byte, or as
+	 * is if that's shorter.
+	 */
+	static byte[] encode(byte[] delta, int numVoxels, byte[] runs) {
+		int length = 1;
+		for (int i = 0; i < numVoxels && length <= numVoxels;) {
+			int end = i + 1;
+			while (end < numVoxels && delta[end] == delta[i]) {
+				end++;
+			}
+			int run = end - i - 1;
+			if (run < 0x80) {
+				runs[length++] = (byte) run;
+			} else {
+				runs[length++] = (byte) (0x80 | run >> 8);
+				runs[length++] = (byte) run;
+			}
+			runs[length++] = delta[i];
+			i = end;
+		}
+
+		if (length > numVoxels) {
+			byte[] raw = new byte[1 + numVoxels];
+			raw[0] = RAW;
+			System.arraycopy(delta, 0, raw, 1, numVoxels);
+			return raw;
+		}
+		runs[0] = RUNS;
+		return Arrays.copyOf(runs, length);
+	}
+
+	/**
+	 * XOR a coded delta into the voxels of a brick.
+	 */
+	static void apply(byte[] delta, byte[] voxels, int numVoxels) {
+		if (delta[0] == RAW) {
+			for (int i = 0; i < numVoxels; i++) {
+				voxels[i] ^= delta[i + 1];
+			}
+			return;
+		}
+
+		for (int p = 1, i = 0; p < delta.length;) {
+			int run = delta[p++];
+			if (run < 0) {
+				run = (run & 0x7f) << 8 | delta[p++] & 0xff;
+			}
+			byte value = delta[p++];
+			int end = i + run + 1;
+			if (value != 0) {
+				for (; i < end; i++) {
+					voxels[i] ^= value;
+				}
+			}
+			i = end;
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return String.format("History: %d steps to undo, %d to redo, %d of %d kB", undoSteps.size(), redoSteps.size(), bytes >> 10, budget >> 10);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package sculptnect;
+
+import java.util.Arrays;
+
+/**
+ * Marching cubes on the binary voxel grid. Every cell is classified by which
+ * of its eight corners are solid, and the 256 entry tables give the edges the
+ * surface crosses and the triangles connecting them. Vertices sit in the
+ * middle of the crossed edges, since the grid holds no densities to
+ * interpolate, and are shared by all cells around the edge.
+ *
+ * The tables are generated when the class is loaded instead of being spelled
+ * out. On every face of the cube the crossings are paired so that they cut
+ * off solid corners, which resolves ambiguous faces the same way in both
+ * cells sharing the face and keeps the surface closed. The pairs form loops
+ * around the cube that are split into triangle fans.
+ */
+public class MarchingCubesMesher implements Mesher {
+	// Corner i of a cell is at (i & 1, (i >> 1) & 1, (i >> 2) & 1)
+	private static final int[][] EDGE_CORNERS = new int[12][];
+	private static final int[] EDGE_AXIS = new int[12];
+
+	// Bit i set when the surface crosses edge i
+	static final int[] EDGE_TABLE = new int[256];
+	// Edges of the triangles of every case, three per triangle
+	static final int[][] TRIANGLE_TABLE = new int[256][];
+
+	static {
+		int edge = 0;
+		for (int a = 0; a < 8; a++) {
+			for (int axis = 0; axis < 3; axis++) {
+				if ((a & (1 << axis)) == 0) {
+					EDGE_CORNERS[edge] = new int[] { a, a | (1 << axis) };
+					EDGE_AXIS[edge] = axis;
+					edge++;
+				}
+			}
+		}
+
+		// Corners of every face, counter-clockwise seen from outside
+		int[][] faces = new int[6][4];
+		for (int axis = 0; axis < 3; axis++) {
+			int u = (axis + 1) % 3;
+			int v = (axis + 2) % 3;
+			for (int side = 0; side < 2; side++) {
+				int[] face = faces[axis * 2 + side];
+				int[][] square = { { 0, 0 }, { 1, 0 }, { 1, 1 }, { 0, 1 } };
+				for (int k = 0; k < 4; k++) {
+					// The square turns around +axis, so it's reversed on the
+					// negative side
+					int[] c = square[side == 1 ? k : 3 - k];
+					face[k] = (side << axis) | (c[0] << u) | (c[1] << v);
+				}
+			}
+		}
+
+		for (int c = 0; c < 256; c++) {
+			// Follow every crossing from air to solid around a face to the
+			// next crossing, the corners passed on the way are solid
+			int[] next = new int[12];
+			Arrays.fill(next, -1);
+			for (int[] face : faces) {
+				for (int k = 0; k < 4; k++) {
+					boolean from = (c & (1 << face[k])) != 0;
+					boolean to = (c & (1 << face[(k + 1) % 4])) != 0;
+					if (from || !to) {
+						continue;
+					}
+
+					for (int j = 1; j < 4; j++) {
+						int a = face[(k + j) % 4];
+						int b = face[(k + j + 1) % 4];
+						if (((c >> a) & 1) != ((c >> b) & 1)) {
+							next[edgeBetween(face[k], face[(k + 1) % 4])] = edgeBetween(a, b);
+							break;
+						}
+					}
+				}
+			}
+
+			int[] triangles = new int[12 * 3];
+			int numTriangles = 0;
+			boolean[] visited = new boolean[12];
+			for (int e = 0; e < 12; e++) {
+				if (next[e] < 0) {
+					continue;
+				}
+				EDGE_TABLE[c] |= 1 << e;
+				if (visited[e]) {
+					continue;
+				}
+
+				// Fan out from the first edge of the loop, which runs clockwise
+				// seen from the air
+				visited[e] = true;
+				int previous = next[e];
+				visited[previous] = true;
+				for (int current = next[previous]; current != e; current = next[current]) {
+					visited[current] = true;
+					triangles[numTriangles * 3] = e;
+					triangles[numTriangles * 3 + 1] = previous;
+					triangles[numTriangles * 3 + 2] = current;
+					numTriangles++;
+					previous = current;
+				}
+			}
+			TRIANGLE_TABLE[c] = Arrays.copyOf(triangles, numTriangles * 3);
+		}
+	}
+
+	private static int edgeBetween(int a, int b) {
+		for (int e = 0; e < 12; e++) {
+			if ((EDGE_CORNERS[e][0] == a && EDGE_CORNERS[e][1] == b) || (EDGE_CORNERS[e][0] == b && EDGE_CORNERS[e][1] == a)) {
+				return e;
+			}
+		}
+		throw new IllegalArgumentException("Corners " + a + " and " + b + " share no edge");
+	}
+
+	private final VoxelGrid grid;
+	private final NormalField normalField;
+
+	// Vertex index of every edge of the chunk by its lower voxel and axis,
+	// only valid where the generation of the edge is the current one
+	private final int[] edgeIndices;
+	private final int[] edgeGenerations;
+	private int generation;
+	private int edgeGridSize;
+
+	// The cells begun and the mesh they go to
+	private final int[] origin = new int[3];
+	private MeshBuffer mesh;
+
+	private final float[] normal = new float[6];
+	private final int[] vertices = new int[12];
+
+	public MarchingCubesMesher(VoxelGrid grid, int chunkSize) {
+		this.grid = grid;
+		this.normalField = new NormalField(grid, chunkSize + 1);
+		int size = chunkSize + 1;
+		edgeIndices = new int[size * size * size * 3];
+		edgeGenerations = new int[edgeIndices.length];
+	}
+
+	@Override
+	public void extract(int[] lower, int[] upper, MeshBuffer mesh) {
+		begin(lower, upper, mesh);
+		extract(lower, upper);
+	}
+
+	@Override
+	public void begin(int[] lower, int[] upper, MeshBuffer mesh) {
+		this.mesh = mesh;
+		System.arraycopy(lower, 0, origin, 0, 3);
+		// Edges start at the voxels from lower to upper inclusive
+		edgeGridSize = Math.max(upper[0] - lower[0], Math.max(upper[1] - lower[1], upper[2] - lower[2])) + 1;
+		// Forget all vertices of the previous chunk without touching the edges
+		if (++generation == 0) {
+			Arrays.fill(edgeGenerations, 0);
+			generation = 1;
+		}
+		normalField.prepare(lower[0], lower[1], lower[2], upper[0] + 1, upper[1] + 1, upper[2] + 1);
+	}
+
+	@Override
+	public void extract(int[] lower, int[] upper) {
+		for (int x = lower[0]; x < upper[0]; x++) {
+			for (int y = lower[1]; y < upper[1]; y++) {
+				for (int z = lower[2]; z < upper[2]; z++) {
+					int c = 0;
+					for (int i = 0; i < 8; i++) {
+						if (!grid.isAir(x + (i & 1), y + ((i >> 1) & 1), z + ((i >> 2) & 1))) {
+							c |= 1 << i;
+						}
+					}
+
+					int edges = EDGE_TABLE[c];
+					if (edges == 0) {
+						continue;
+					}
+
+					for (int e = 0; e < 12; e++) {
+						if ((edges & (1 << e)) != 0) {
+							vertices[e] = vertexIndex(x, y, z, e, (c & (1 << EDGE_CORNERS[e][0])) != 0);
+						}
+					}
+
+					int[] triangles = TRIANGLE_TABLE[c];
+					for (int i = 0; i < triangles.length; i += 3) {
+						mesh.addTriangle(vertices[triangles[i]], vertices[triangles[i + 1]], vertices[triangles[i + 2]]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the vertex on an edge of a cell, adding it the first time the edge
+	 * is crossed.
+	 */
+	private int vertexIndex(int x, int y, int z, int e, boolean solidFirst) {
+		int corner = EDGE_CORNERS[e][0];
+		int axis = EDGE_AXIS[e];
+		int vx = x + (corner & 1);
+		int vy = y + ((corner >> 1) & 1);
+		int vz = z + ((corner >> 2) & 1);
+
+		int key = (((vx - origin[0]) * edgeGridSize + (vy - origin[1])) * edgeGridSize + (vz - origin[2])) * 3 + axis;
+		if (edgeGenerations[key] == generation) {
+			return edgeIndices[key];
+		}
+
+		// Average the normals of the two voxels, which point away from the
+		// solid one in any case
+		normalField.normal(vx, vy, vz, normal, 0);
+		normalField.normal(vx + (axis == 0 ? 1 : 0), vy + (axis == 1 ? 1 : 0), vz + (axis == 2 ? 1 : 0), normal, 3);
+		float nx = normal[0] + normal[3];
+		float ny = normal[1] + normal[4];
+		float nz = normal[2] + normal[5];
+		float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length > 0.0f) {
+			nx /= length;
+			ny /= length;
+			nz /= length;
+		} else {
+			float n = solidFirst ? 1.0f : -1.0f;
+			nx = axis == 0 ? n : 0.0f;
+			ny = axis == 1 ? n : 0.0f;
+			nz = axis == 2 ? n : 0.0f;
+		}
+
+		int index = mesh.addVertex(MeshBuffer.key(vx, vy, vz, axis), vx + (axis == 0 ? 0.5f : 0.0f), vy + (axis == 1 ? 0.5f : 0.0f), vz + (axis == 2 ? 0.5f : 0.0f), nx, ny, nz);
+		edgeIndices[key] = index;
+		edgeGenerations[key] = generation;
+		return index;
+	}
+}
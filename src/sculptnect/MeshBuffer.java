@@ -0,0 +1,148 @@
+package sculptnect;
+
+import java.util.Arrays;
+
+/**
+ * Indexed triangle mesh kept in primitive arrays, which grow as needed and
+ * are reused between chunks.
+ *
+ * Every vertex carries a key given by the mesher, the cell or edge of the
+ * grid it was built for. Boxes meshed apart build the vertices they share
+ * with the same key, so they can be welded without comparing positions,
+ * which neighboring vertices may have in common.
+ */
+public class MeshBuffer {
+	// Components of a vertex, position followed by normal
+	public static final int VERTEX_SIZE = 6;
+
+	// Bits of a key per coordinate, and for the kind of vertex of the cell,
+	// such as the axis of an edge
+	private static final int KEY_BITS = 20;
+	private static final int KIND_BITS = 2;
+	private static final int KEY_MASK = (1 << KEY_BITS) - 1;
+
+	float[] vertices;
+	long[] keys;
+	int[] indices;
+	int numVertices;
+	int numIndices;
+
+	public MeshBuffer() {
+		this(4096, 4096);
+	}
+
+	/**
+	 * Create a mesh with room for the given number of vertices and triangles
+	 * before it has to grow.
+	 */
+	public MeshBuffer(int vertexCapacity, int triangleCapacity) {
+		vertices = new float[vertexCapacity * VERTEX_SIZE];
+		keys = new long[vertexCapacity];
+		indices = new int[triangleCapacity * 3];
+	}
+
+	public void clear() {
+		numVertices = 0;
+		numIndices = 0;
+	}
+
+	/**
+	 * Get the key of a vertex built for a cell or edge of the grid.
+	 *
+	 * @param kind tells apart several vertices of the cell, from 0 to 3
+	 */
+	public static long key(int x, int y, int z, int kind) {
+		return ((((long) x << KEY_BITS) | y) << KEY_BITS | z) << KIND_BITS | kind;
+	}
+
+	/**
+	 * Get a coordinate of the cell of a key.
+	 *
+	 * @param axis 0, 1 or 2 for x, y or z
+	 */
+	public static int keyCell(long key, int axis) {
+		return (int) (key >>> (KIND_BITS + KEY_BITS * (2 - axis))) & KEY_MASK;
+	}
+
+	/**
+	 * @param key the cell or edge the vertex was built for, see key
+	 * @return the index of the new vertex
+	 */
+	public int addVertex(long key, float x, float y, float z, float nx, float ny, float nz) {
+		ensureVertices(numVertices + 1);
+
+		keys[numVertices] = key;
+		int i = numVertices * VERTEX_SIZE;
+		vertices[i] = x;
+		vertices[i + 1] = y;
+		vertices[i + 2] = z;
+		vertices[i + 3] = nx;
+		vertices[i + 4] = ny;
+		vertices[i + 5] = nz;
+		return numVertices++;
+	}
+
+	/**
+	 * Add a copy of a vertex of another mesh, key included.
+	 *
+	 * @return the index of the new vertex
+	 */
+	public int addVertex(MeshBuffer mesh, int v) {
+		int i = v * VERTEX_SIZE;
+		float[] from = mesh.vertices;
+		return addVertex(mesh.keys[v], from[i], from[i + 1], from[i + 2], from[i + 3], from[i + 4], from[i + 5]);
+	}
+
+	/**
+	 * Add a triangle, counter-clockwise seen from the side it faces.
+	 */
+	public void addTriangle(int i0, int i1, int i2) {
+		ensureIndices(numIndices + 3);
+
+		indices[numIndices] = i0;
+		indices[numIndices + 1] = i1;
+		indices[numIndices + 2] = i2;
+		numIndices += 3;
+	}
+
+	/**
+	 * Add all triangles of another mesh, along with its vertices.
+	 */
+	public void append(MeshBuffer mesh) {
+		ensureVertices(numVertices + mesh.numVertices);
+		ensureIndices(numIndices + mesh.numIndices);
+
+		System.arraycopy(mesh.vertices, 0, vertices, numVertices * VERTEX_SIZE, mesh.numVertices * VERTEX_SIZE);
+		System.arraycopy(mesh.keys, 0, keys, numVertices, mesh.numVertices);
+		for (int i = 0; i < mesh.numIndices; i++) {
+			indices[numIndices + i] = mesh.indices[i] + numVertices;
+		}
+		numVertices += mesh.numVertices;
+		numIndices += mesh.numIndices;
+	}
+
+	private void ensureVertices(int count) {
+		if (count * VERTEX_SIZE > vertices.length) {
+			float[] grown = new float[Math.max(count * VERTEX_SIZE, vertices.length * 2)];
+			System.arraycopy(vertices, 0, grown, 0, numVertices * VERTEX_SIZE);
+			vertices = grown;
+			keys = Arrays.copyOf(keys, grown.length / VERTEX_SIZE);
+		}
+	}
+
+	private void ensureIndices(int count) {
+		if (count > indices.length) {
+			int[] grown = new int[Math.max(count, indices.length * 2)];
+			System.arraycopy(indices, 0, grown, 0, numIndices);
+			indices = grown;
+		}
+	}
+
+	public int getNumVertices() {
+		return numVertices;
+	}
+
+	public int getNumTriangles() {
+		return numIndices / 3;
+	}
+}
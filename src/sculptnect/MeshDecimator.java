@@ -0,0 +1,779 @@
+package sculptnect;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reduces the triangles of the whole surface by quadric edge collapse, for
+ * exports much lighter than the millions of tiny triangles of the meshers.
+ * Edges are collapsed cheapest first, the cost being the summed squared
+ * distance of the merged vertex to the planes of the faces it stands for,
+ * until the target number of triangles is reached or the next collapse would
+ * cost more than the error bound.
+ *
+ * The chunks are first decimated on their own and in parallel, with the
+ * vertices on their borders locked so that the seams still weld. The welded
+ * mesh, by then a fraction of the original, is decimated once more as a
+ * whole to thin out the seams.
+ */
+public class MeshDecimator {
+	// Smallest cosine of the angle a face normal may turn by in a collapse,
+	// sharper turns fold the surface over
+	private static final double MIN_NORMAL_COSINE = 0.2;
+
+	// Mesh of a chunk between the passes, with the quadrics of its vertices
+	private static class Chunk {
+		int[] lower;
+		int[] upper;
+		MeshBuffer mesh;
+		double[] quadrics;
+	}
+
+	private final int targetTriangles;
+	private final double maxCost;
+	private final TaskScheduler scheduler;
+	private final TaskScheduler.Priority priority;
+	private final BlockingQueue<Simplifier> simplifiers;
+
+	/**
+	 * @param targetTriangles the number of triangles to stop at, 0 for no
+	 *            limit
+	 * @param maxError the largest distance in voxels the surface may move by,
+	 *            roughly, 0 for no limit
+	 */
+	public MeshDecimator(int targetTriangles, float maxError) {
+		this(targetTriangles, maxError, TaskScheduler.getShared(), TaskScheduler.Priority.REFRESH);
+	}
+
+	public MeshDecimator(int targetTriangles, float maxError, TaskScheduler scheduler, TaskScheduler.Priority priority) {
+		this.targetTriangles = targetTriangles;
+		this.maxCost = maxError > 0.0f ? (double) maxError * maxError : Double.MAX_VALUE;
+		this.scheduler = scheduler;
+		this.priority = priority;
+
+		simplifiers = new ArrayBlockingQueue<Simplifier>(scheduler.getNumThreads());
+		for (int i = 0; i < scheduler.getNumThreads(); i++) {
+			simplifiers.offer(new Simplifier());
+		}
+	}
+
+	/**
+	 * Mesh the whole grid with the extractor and decimate it into a single
+	 * welded mesh, with smooth normals. Must not be used from a task of the
+	 * scheduler.
+	 *
+	 * @throws CancellationException if the extractor was cancelled
+	 */
+	public MeshBuffer decimate(final MeshExtractor extractor) throws InterruptedException {
+		// Every chunk is kept, the totals are needed to share out the target
+		final List<Chunk> chunks = Collections.synchronizedList(new ArrayList<Chunk>());
+		try {
+			extractor.extract(null, null, new MeshExtractor.ChunkHandler() {
+				@Override
+				public void chunkExtracted(int[] lower, int[] upper, MeshBuffer mesh) {
+					Chunk chunk = new Chunk();
+					chunk.lower = lower.clone();
+					chunk.upper = upper.clone();
+					chunk.mesh = new MeshBuffer(mesh.numVertices, mesh.numIndices / 3);
+					chunk.mesh.append(mesh);
+					chunks.add(chunk);
+				}
+			});
+		} catch (IOException e) {
+			// The handler above doesn't throw any
+			throw new IllegalStateException(e);
+		}
+
+		// Same order whatever the threads did, so is the result
+		Collections.sort(chunks, new Comparator<Chunk>() {
+			@Override
+			public int compare(Chunk a, Chunk b) {
+				for (int k = 0; k < 3; k++) {
+					if (a.lower[k] != b.lower[k]) {
+						return a.lower[k] < b.lower[k] ? -1 : 1;
+					}
+				}
+				return 0;
+			}
+		});
+
+		long total = 0;
+		for (Chunk chunk : chunks) {
+			total += chunk.mesh.getNumTriangles();
+		}
+		decimateChunks(chunks, total, extractor);
+
+		int numVertices = 0, numTriangles = 0;
+		for (Chunk chunk : chunks) {
+			numVertices += chunk.mesh.numVertices;
+			numTriangles += chunk.mesh.getNumTriangles();
+		}
+		MeshBuffer mesh = new MeshBuffer(numVertices, numTriangles);
+		double[] quadrics = new double[numVertices * Simplifier.QUADRIC_SIZE];
+		weld(chunks, extractor.getGrid(), mesh, quadrics);
+
+		Simplifier simplifier = new Simplifier();
+		simplifier.simplify(mesh, null, null, quadrics, targetTriangles, maxCost);
+		computeNormals(mesh);
+		return mesh;
+	}
+
+	/**
+	 * Decimate every chunk to its share of the target, in parallel.
+	 */
+	private void decimateChunks(List<Chunk> chunks, final long total, final MeshExtractor extractor) throws InterruptedException {
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (final Chunk chunk : chunks) {
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					if (failure.get() != null || extractor.isCancelled()) {
+						return;
+					}
+					try {
+						// Nothing to share out once everything is carved away
+						int target = total > 0 ? (int) (targetTriangles * (long) chunk.mesh.getNumTriangles() / total) : 0;
+						Simplifier simplifier = simplifiers.take();
+						try {
+							simplifier.simplify(chunk.mesh, chunk.lower, chunk.upper, null, target, maxCost);
+							chunk.quadrics = simplifier.getQuadrics();
+						} finally {
+							simplifiers.offer(simplifier);
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+		}
+		scheduler.invokeAll(priority, tasks);
+		if (extractor.isCancelled()) {
+			throw new CancellationException("Decimation cancelled");
+		}
+
+		Throwable e = failure.get();
+		if (e instanceof InterruptedException) {
+			throw (InterruptedException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		} else if (e != null) {
+			throw (Error) e;
+		}
+	}
+
+	/**
+	 * Put the chunks together, welding the border vertices built by both
+	 * sides of a seam and summing their quadrics.
+	 */
+	private static void weld(List<Chunk> chunks, VoxelGrid grid, MeshBuffer mesh, double[] quadrics) {
+		SeamVertices seam = new SeamVertices(grid, MeshExtractor.CHUNK_SIZE);
+		int[] remap = new int[0];
+		for (Chunk chunk : chunks) {
+			MeshBuffer part = chunk.mesh;
+			float[] vertices = part.vertices;
+			if (remap.length < part.numVertices) {
+				remap = new int[part.numVertices];
+			}
+
+			for (int v = 0; v < part.numVertices; v++) {
+				int i = v * MeshBuffer.VERTEX_SIZE;
+				long key = part.keys[v];
+				boolean border = SeamVertices.isBorder(key, chunk.lower, chunk.upper);
+				int index = border ? seam.get(key) : -1;
+				if (index < 0) {
+					index = mesh.addVertex(key, vertices[i], vertices[i + 1], vertices[i + 2], vertices[i + 3], vertices[i + 4], vertices[i + 5]);
+					if (border) {
+						seam.put(key, index);
+					}
+				}
+				for (int k = 0; k < Simplifier.QUADRIC_SIZE; k++) {
+					quadrics[index * Simplifier.QUADRIC_SIZE + k] += chunk.quadrics[v * Simplifier.QUADRIC_SIZE + k];
+				}
+				remap[v] = index;
+			}
+
+			for (int i = 0; i < part.numIndices; i += 3) {
+				mesh.addTriangle(remap[part.indices[i]], remap[part.indices[i + 1]], remap[part.indices[i + 2]]);
+			}
+
+			// Done with the chunk, let it go early
+			seam.chunkDone(chunk.lower);
+			chunk.mesh = null;
+			chunk.quadrics = null;
+		}
+	}
+
+	/**
+	 * Give every vertex the area weighted normal of its faces, the normals of
+	 * the mesher don't fit the merged vertices anymore.
+	 */
+	private static void computeNormals(MeshBuffer mesh) {
+		float[] vertices = mesh.vertices;
+		int[] indices = mesh.indices;
+		for (int v = 0; v < mesh.numVertices; v++) {
+			int i = v * MeshBuffer.VERTEX_SIZE;
+			vertices[i + 3] = vertices[i + 4] = vertices[i + 5] = 0.0f;
+		}
+
+		for (int i = 0; i < mesh.numIndices; i += 3) {
+			int a = indices[i] * MeshBuffer.VERTEX_SIZE;
+			int b = indices[i + 1] * MeshBuffer.VERTEX_SIZE;
+			int c = indices[i + 2] * MeshBuffer.VERTEX_SIZE;
+			float ux = vertices[b] - vertices[a], uy = vertices[b + 1] - vertices[a + 1], uz = vertices[b + 2] - vertices[a + 2];
+			float wx = vertices[c] - vertices[a], wy = vertices[c + 1] - vertices[a + 1], wz = vertices[c + 2] - vertices[a + 2];
+			float nx = uy * wz - uz * wy;
+			float ny = uz * wx - ux * wz;
+			float nz = ux * wy - uy * wx;
+			for (int corner : new int[] { a, b, c }) {
+				vertices[corner + 3] += nx;
+				vertices[corner + 4] += ny;
+				vertices[corner + 5] += nz;
+			}
+		}
+
+		for (int v = 0; v < mesh.numVertices; v++) {
+			int i = v * MeshBuffer.VERTEX_SIZE;
+			float length = (float) Math.sqrt(vertices[i + 3] * vertices[i + 3] + vertices[i + 4] * vertices[i + 4] + vertices[i + 5] * vertices[i + 5]);
+			if (length > 0.0f) {
+				vertices[i + 3] /= length;
+				vertices[i + 4] /= length;
+				vertices[i + 5] /= length;
+			}
+		}
+	}
+
+	/**
+	 * Decimates one mesh in place. All data is kept in primitive arrays that
+	 * are reused from mesh to mesh: the quadrics of the vertices, a linked
+	 * list of the triangles around every vertex and a binary heap of
+	 * candidate collapses. Heap entries aren't updated when a vertex moves,
+	 * they carry the versions of their vertices instead and are dropped once
+	 * outdated, the new costs having been pushed by then.
+	 */
+	private static class Simplifier {
+		// Quadric of a vertex, the upper half of a symmetric 4x4 matrix: aa ab
+		// ac ad bb bc bd cc cd dd for planes ax + by + cz + d = 0
+		static final int QUADRIC_SIZE = 10;
+
+		private static final byte LOCKED = 1;
+		private static final byte REMOVED = 2;
+
+		private float[] vertices;
+		private long[] keys;
+		private int[] indices;
+		private int liveTriangles;
+
+		// Per vertex
+		private double[] quadrics = new double[0];
+		private byte[] flags = new byte[0];
+		private int[] versions = new int[0];
+		private int[] marks = new int[0];
+		private int[] heads = new int[0];
+		private int[] tails = new int[0];
+		private int mark;
+
+		// Per triangle corner, the triangle lists of the vertices
+		private int[] next = new int[0];
+		private long[] edges = new long[0];
+
+		// Candidate collapses ordered by cost, with the vertices of the edge
+		// and their versions packed into longs
+		private float[] heapCosts = new float[256];
+		private long[] heapEdges = new long[256];
+		private long[] heapVersions = new long[256];
+		private int heapSize;
+
+		// Scratch space of the cost evaluation
+		private final double[] sum = new double[QUADRIC_SIZE];
+		private final double[] position = new double[3];
+		private int numVertices;
+
+		/**
+		 * Collapse edges until the mesh has no more than the target number of
+		 * triangles or the next collapse costs too much, then drop the removed
+		 * triangles and vertices. Vertices on the border of a chunk, on open
+		 * edges and on edges shared by more than two triangles never move.
+		 *
+		 * @param lower the lower cell of the chunk, null for a mesh without
+		 *            chunk borders
+		 * @param upper the cell after the upper end of the chunk
+		 * @param initialQuadrics the quadrics of the vertices, computed from
+		 *            the faces if null
+		 */
+		void simplify(MeshBuffer mesh, int[] lower, int[] upper, double[] initialQuadrics, int target, double maxCost) {
+			vertices = mesh.vertices;
+			keys = mesh.keys;
+			indices = mesh.indices;
+			numVertices = mesh.numVertices;
+			liveTriangles = mesh.numIndices / 3;
+			allocate(numVertices, mesh.numIndices);
+
+			for (int v = 0; v < numVertices; v++) {
+				boolean border = lower != null && SeamVertices.isBorder(keys[v], lower, upper);
+				flags[v] = border ? LOCKED : 0;
+				versions[v] = 0;
+				marks[v] = 0;
+				heads[v] = -1;
+				tails[v] = -1;
+			}
+			mark = 0;
+
+			if (initialQuadrics != null) {
+				System.arraycopy(initialQuadrics, 0, quadrics, 0, numVertices * QUADRIC_SIZE);
+			} else {
+				Arrays.fill(quadrics, 0, numVertices * QUADRIC_SIZE, 0.0);
+				for (int t = 0; t < liveTriangles; t++) {
+					addPlane(t);
+				}
+			}
+
+			// The corner lists start out in triangle order
+			for (int corner = mesh.numIndices - 1; corner >= 0; corner--) {
+				int v = indices[corner];
+				next[corner] = heads[v];
+				heads[v] = corner;
+				if (tails[v] < 0) {
+					tails[v] = corner;
+				}
+			}
+
+			heapSize = 0;
+			pushEdges(mesh.numIndices);
+
+			while (heapSize > 0 && liveTriangles > target) {
+				float cost = heapCosts[0];
+				long edge = heapEdges[0];
+				long version = heapVersions[0];
+				pop();
+				if (cost > maxCost) {
+					break;
+				}
+
+				int a = (int) (edge >>> 32);
+				int b = (int) edge;
+				if (((flags[a] | flags[b]) & REMOVED) != 0 || version != versions(a, b)) {
+					continue;
+				}
+				collapse(a, b);
+			}
+
+			compact(mesh);
+		}
+
+		/**
+		 * Get the quadrics of the vertices left by the last simplification.
+		 */
+		double[] getQuadrics() {
+			return Arrays.copyOf(quadrics, numVertices * QUADRIC_SIZE);
+		}
+
+		private void allocate(int numVertices, int numCorners) {
+			if (flags.length < numVertices) {
+				int capacity = Math.max(numVertices, flags.length * 2);
+				quadrics = new double[capacity * QUADRIC_SIZE];
+				flags = new byte[capacity];
+				versions = new int[capacity];
+				marks = new int[capacity];
+				heads = new int[capacity];
+				tails = new int[capacity];
+			}
+			if (next.length < numCorners) {
+				int capacity = Math.max(numCorners, next.length * 2);
+				next = new int[capacity];
+				edges = new long[capacity];
+			}
+		}
+
+		/**
+		 * Add the plane of a triangle to the quadrics of its corners.
+		 */
+		private void addPlane(int t) {
+			int a = indices[t * 3], b = indices[t * 3 + 1], c = indices[t * 3 + 2];
+			int ia = a * MeshBuffer.VERTEX_SIZE, ib = b * MeshBuffer.VERTEX_SIZE, ic = c * MeshBuffer.VERTEX_SIZE;
+			double ux = vertices[ib] - vertices[ia], uy = vertices[ib + 1] - vertices[ia + 1], uz = vertices[ib + 2] - vertices[ia + 2];
+			double wx = vertices[ic] - vertices[ia], wy = vertices[ic + 1] - vertices[ia + 1], wz = vertices[ic + 2] - vertices[ia + 2];
+			double nx = uy * wz - uz * wy;
+			double ny = uz * wx - ux * wz;
+			double nz = ux * wy - uy * wx;
+			double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (length == 0.0) {
+				return;
+			}
+			nx /= length;
+			ny /= length;
+			nz /= length;
+			double d = -(nx * vertices[ia] + ny * vertices[ia + 1] + nz * vertices[ia + 2]);
+
+			for (int v : new int[] { a, b, c }) {
+				int q = v * QUADRIC_SIZE;
+				quadrics[q] += nx * nx;
+				quadrics[q + 1] += nx * ny;
+				quadrics[q + 2] += nx * nz;
+				quadrics[q + 3] += nx * d;
+				quadrics[q + 4] += ny * ny;
+				quadrics[q + 5] += ny * nz;
+				quadrics[q + 6] += ny * d;
+				quadrics[q + 7] += nz * nz;
+				quadrics[q + 8] += nz * d;
+				quadrics[q + 9] += d * d;
+			}
+		}
+
+		/**
+		 * Lock the vertices of open and non-manifold edges, then push every
+		 * edge once.
+		 */
+		private void pushEdges(int numCorners) {
+			for (int corner = 0; corner < numCorners; corner++) {
+				int a = indices[corner];
+				int b = indices[corner % 3 == 2 ? corner - 2 : corner + 1];
+				edges[corner] = (long) Math.min(a, b) << 32 | Math.max(a, b);
+			}
+			Arrays.sort(edges, 0, numCorners);
+
+			for (int i = 0, j; i < numCorners; i = j) {
+				for (j = i + 1; j < numCorners && edges[j] == edges[i]; j++) {
+				}
+				if (j - i != 2) {
+					flags[(int) (edges[i] >>> 32)] |= LOCKED;
+					flags[(int) edges[i]] |= LOCKED;
+				}
+			}
+
+			for (int i = 0; i < numCorners; i++) {
+				if (i == 0 || edges[i] != edges[i - 1]) {
+					push((int) (edges[i] >>> 32), (int) edges[i]);
+				}
+			}
+		}
+
+		private long versions(int a, int b) {
+			return (long) versions[a] << 32 | (versions[b] & 0xffffffffL);
+		}
+
+		/**
+		 * Find where the edge would collapse to and what that would cost.
+		 *
+		 * @return the cost, or -1 if both ends are locked
+		 */
+		private double evaluate(int a, int b) {
+			int qa = a * QUADRIC_SIZE, qb = b * QUADRIC_SIZE;
+			for (int k = 0; k < QUADRIC_SIZE; k++) {
+				sum[k] = quadrics[qa + k] + quadrics[qb + k];
+			}
+
+			boolean lockedA = (flags[a] & LOCKED) != 0;
+			boolean lockedB = (flags[b] & LOCKED) != 0;
+			if (lockedA && lockedB) {
+				return -1.0;
+			} else if (lockedA) {
+				return errorAt(a);
+			} else if (lockedB) {
+				return errorAt(b);
+			}
+
+			// Point of least error, if the quadric has a single one near the
+			// edge. Flat and cylindric regions have a line or plane of them
+			double[] q = sum;
+			double r0 = -q[3], r1 = -q[6], r2 = -q[8];
+			double det = q[0] * (q[4] * q[7] - q[5] * q[5]) - q[1] * (q[1] * q[7] - q[5] * q[2]) + q[2] * (q[1] * q[5] - q[4] * q[2]);
+			double trace = q[0] + q[4] + q[7];
+			if (Math.abs(det) > 1e-6 * trace * trace * trace) {
+				double x = (r0 * (q[4] * q[7] - q[5] * q[5]) - q[1] * (r1 * q[7] - q[5] * r2) + q[2] * (r1 * q[5] - q[4] * r2)) / det;
+				double y = (q[0] * (r1 * q[7] - q[5] * r2) - r0 * (q[1] * q[7] - q[5] * q[2]) + q[2] * (q[1] * r2 - r1 * q[2])) / det;
+				double z = (q[0] * (q[4] * r2 - q[5] * r1) - q[1] * (q[1] * r2 - r1 * q[2]) + r0 * (q[1] * q[5] - q[4] * q[2])) / det;
+
+				int ia = a * MeshBuffer.VERTEX_SIZE, ib = b * MeshBuffer.VERTEX_SIZE;
+				double mx = (vertices[ia] + vertices[ib]) * 0.5, my = (vertices[ia + 1] + vertices[ib + 1]) * 0.5, mz = (vertices[ia + 2] + vertices[ib + 2]) * 0.5;
+				double ex = vertices[ib] - vertices[ia], ey = vertices[ib + 1] - vertices[ia + 1], ez = vertices[ib + 2] - vertices[ia + 2];
+				double dx = x - mx, dy = y - my, dz = z - mz;
+				if (dx * dx + dy * dy + dz * dz <= ex * ex + ey * ey + ez * ez) {
+					return errorAt(x, y, z);
+				}
+			}
+
+			// Otherwise the best of the ends and the middle
+			double cost = errorAt(a);
+			double px = position[0], py = position[1], pz = position[2];
+			double costB = errorAt(b);
+			if (costB < cost) {
+				cost = costB;
+				px = position[0];
+				py = position[1];
+				pz = position[2];
+			}
+			int ia = a * MeshBuffer.VERTEX_SIZE, ib = b * MeshBuffer.VERTEX_SIZE;
+			double costMiddle = errorAt((vertices[ia] + vertices[ib]) * 0.5, (vertices[ia + 1] + vertices[ib + 1]) * 0.5, (vertices[ia + 2] + vertices[ib + 2]) * 0.5);
+			if (costMiddle >= cost) {
+				position[0] = px;
+				position[1] = py;
+				position[2] = pz;
+			} else {
+				cost = costMiddle;
+			}
+			return cost;
+		}
+
+		private double errorAt(int v) {
+			int i = v * MeshBuffer.VERTEX_SIZE;
+			return errorAt(vertices[i], vertices[i + 1], vertices[i + 2]);
+		}
+
+		/**
+		 * Get the error of the summed quadric at a point, which becomes the
+		 * position of the collapse.
+		 */
+		private double errorAt(double x, double y, double z) {
+			double[] q = sum;
+			position[0] = x;
+			position[1] = y;
+			position[2] = z;
+			double error = q[0] * x * x + 2.0 * q[1] * x * y + 2.0 * q[2] * x * z + 2.0 * q[3] * x //
+					+ q[4] * y * y + 2.0 * q[5] * y * z + 2.0 * q[6] * y //
+					+ q[7] * z * z + 2.0 * q[8] * z + q[9];
+			return Math.max(0.0, error);
+		}
+
+		private void collapse(int a, int b) {
+			evaluate(a, b);
+
+			// The locked end stays where it is and takes in the other one
+			int v0 = (flags[b] & LOCKED) != 0 ? b : a;
+			int v1 = v0 == a ? b : a;
+			removeDeadCorners(v0);
+			removeDeadCorners(v1);
+
+			// Keep the surface a manifold: the ends may have no common
+			// neighbors but those across the triangles of the edge
+			mark++;
+			for (int corner = heads[v0]; corner >= 0; corner = next[corner]) {
+				int t = corner / 3 * 3;
+				for (int k = 0; k < 3; k++) {
+					marks[indices[t + k]] = mark;
+				}
+			}
+			int shared = 0, common = 0;
+			for (int corner = heads[v1]; corner >= 0; corner = next[corner]) {
+				int t = corner / 3 * 3;
+				boolean hasV0 = false;
+				for (int k = 0; k < 3; k++) {
+					int w = indices[t + k];
+					hasV0 |= w == v0;
+					if (w != v0 && w != v1 && marks[w] == mark) {
+						marks[w] = -mark;
+						common++;
+					}
+				}
+				if (hasV0) {
+					shared++;
+				}
+			}
+			if (shared == 0 || common != shared || flips(v0, v1) || flips(v1, v0)) {
+				return;
+			}
+
+			// Move the kept vertex and hand it the triangles of the other one,
+			// those of the edge disappear
+			int i0 = v0 * MeshBuffer.VERTEX_SIZE;
+			vertices[i0] = (float) position[0];
+			vertices[i0 + 1] = (float) position[1];
+			vertices[i0 + 2] = (float) position[2];
+			for (int k = 0; k < QUADRIC_SIZE; k++) {
+				quadrics[v0 * QUADRIC_SIZE + k] += quadrics[v1 * QUADRIC_SIZE + k];
+			}
+			for (int corner = heads[v1]; corner >= 0; corner = next[corner]) {
+				int t = corner / 3 * 3;
+				if (indices[t] == v0 || indices[t + 1] == v0 || indices[t + 2] == v0) {
+					indices[t] = -1;
+					liveTriangles--;
+				} else {
+					indices[corner] = v0;
+				}
+			}
+			if (heads[v1] >= 0) {
+				next[tails[v0]] = heads[v1];
+				tails[v0] = tails[v1];
+			}
+			flags[v1] |= REMOVED;
+			versions[v0]++;
+
+			// New costs for all edges of the kept vertex
+			removeDeadCorners(v0);
+			mark++;
+			marks[v0] = mark;
+			for (int corner = heads[v0]; corner >= 0; corner = next[corner]) {
+				int t = corner / 3 * 3;
+				for (int k = 0; k < 3; k++) {
+					int w = indices[t + k];
+					if (marks[w] != mark) {
+						marks[w] = mark;
+						push(v0, w);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Whether moving a vertex to the collapse position turns any of its
+		 * triangles around, or makes one degenerate. The triangles shared with
+		 * the other end of the edge disappear and aren't checked.
+		 */
+		private boolean flips(int v, int other) {
+			for (int corner = heads[v]; corner >= 0; corner = next[corner]) {
+				int t = corner / 3 * 3;
+				if (indices[t] == other || indices[t + 1] == other || indices[t + 2] == other) {
+					continue;
+				}
+
+				// The other two corners in order, after the moving one
+				int k = corner - t;
+				int ib = indices[t + (k + 1) % 3] * MeshBuffer.VERTEX_SIZE;
+				int ic = indices[t + (k + 2) % 3] * MeshBuffer.VERTEX_SIZE;
+				int ia = v * MeshBuffer.VERTEX_SIZE;
+				double bx = vertices[ib], by = vertices[ib + 1], bz = vertices[ib + 2];
+				double cx = vertices[ic] - bx, cy = vertices[ic + 1] - by, cz = vertices[ic + 2] - bz;
+
+				double ux = vertices[ia] - bx, uy = vertices[ia + 1] - by, uz = vertices[ia + 2] - bz;
+				double nx = cy * uz - cz * uy, ny = cz * ux - cx * uz, nz = cx * uy - cy * ux;
+				double px = position[0] - bx, py = position[1] - by, pz = position[2] - bz;
+				double mx = cy * pz - cz * py, my = cz * px - cx * pz, mz = cx * py - cy * px;
+
+				double before = nx * nx + ny * ny + nz * nz;
+				double after = mx * mx + my * my + mz * mz;
+				if (after == 0.0 || nx * mx + ny * my + nz * mz < MIN_NORMAL_COSINE * Math.sqrt(before * after)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Unlink the corners of removed triangles from the list of a vertex.
+		 */
+		private void removeDeadCorners(int v) {
+			int previous = -1;
+			for (int corner = heads[v]; corner >= 0; corner = next[corner]) {
+				if (indices[corner / 3 * 3] < 0) {
+					if (previous < 0) {
+						heads[v] = next[corner];
+					} else {
+						next[previous] = next[corner];
+					}
+				} else {
+					previous = corner;
+				}
+			}
+			tails[v] = previous;
+		}
+
+		private void push(int a, int b) {
+			double cost = evaluate(a, b);
+			if (cost < 0.0) {
+				return;
+			}
+
+			if (heapSize == heapCosts.length) {
+				heapCosts = Arrays.copyOf(heapCosts, heapSize * 2);
+				heapEdges = Arrays.copyOf(heapEdges, heapSize * 2);
+				heapVersions = Arrays.copyOf(heapVersions, heapSize * 2);
+			}
+
+			float key = (float) cost;
+			long edge = (long) a << 32 | b;
+			long version = versions(a, b);
+			int i = heapSize++;
+			while (i > 0) {
+				int parent = (i - 1) >> 1;
+				if (heapCosts[parent] <= key) {
+					break;
+				}
+				move(parent, i);
+				i = parent;
+			}
+			heapCosts[i] = key;
+			heapEdges[i] = edge;
+			heapVersions[i] = version;
+		}
+
+		/**
+		 * Remove the cheapest entry.
+		 */
+		private void pop() {
+			heapSize--;
+			float key = heapCosts[heapSize];
+			long edge = heapEdges[heapSize];
+			long version = heapVersions[heapSize];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= heapSize) {
+					break;
+				}
+				if (child + 1 < heapSize && heapCosts[child + 1] < heapCosts[child]) {
+					child++;
+				}
+				if (key <= heapCosts[child]) {
+					break;
+				}
+				move(child, i);
+				i = child;
+			}
+			heapCosts[i] = key;
+			heapEdges[i] = edge;
+			heapVersions[i] = version;
+		}
+
+		private void move(int from, int to) {
+			heapCosts[to] = heapCosts[from];
+			heapEdges[to] = heapEdges[from];
+			heapVersions[to] = heapVersions[from];
+		}
+
+		/**
+		 * Drop the removed triangles and the vertices no triangle uses anymore,
+		 * keeping the order of the rest.
+		 */
+		private void compact(MeshBuffer mesh) {
+			int numIndices = 0;
+			for (int i = 0; i < mesh.numIndices; i += 3) {
+				if (indices[i] >= 0) {
+					indices[numIndices++] = indices[i];
+					indices[numIndices++] = indices[i + 1];
+					indices[numIndices++] = indices[i + 2];
+				}
+			}
+
+			// Marks become the new indices, -1 for unused vertices
+			Arrays.fill(marks, 0, numVertices, -1);
+			for (int i = 0; i < numIndices; i++) {
+				marks[indices[i]] = 0;
+			}
+			int count = 0;
+			for (int v = 0; v < numVertices; v++) {
+				if (marks[v] < 0) {
+					continue;
+				}
+				marks[v] = count;
+				System.arraycopy(vertices, v * MeshBuffer.VERTEX_SIZE, vertices, count * MeshBuffer.VERTEX_SIZE, MeshBuffer.VERTEX_SIZE);
+				keys[count] = keys[v];
+				System.arraycopy(quadrics, v * QUADRIC_SIZE, quadrics, count * QUADRIC_SIZE, QUADRIC_SIZE);
+				count++;
+			}
+			for (int i = 0; i < numIndices; i++) {
+				indices[i] = marks[indices[i]];
+			}
+
+			mesh.numVertices = numVertices = count;
+			mesh.numIndices = numIndices;
+		}
+	}
+}
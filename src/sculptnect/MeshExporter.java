@@ -0,0 +1,358 @@
+package sculptnect;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Writes the surface of the grid to a single binary STL, binary PLY or OBJ
+ * file while the extractor meshes the chunks in parallel. Every chunk is
+ * written as soon as it's done, so memory stays bounded by a buffer per
+ * section plus the vertices along the seams of the chunks still to come.
+ *
+ * Vertices on a seam are built by the chunks on both sides for the same cell
+ * or edge, they are welded into one by its key so that the indexed formats
+ * get a closed mesh. STL has no shared vertices and is written as it comes.
+ */
+public class MeshExporter {
+	public enum Format {
+		STL, PLY, OBJ;
+
+		/**
+		 * Get the format from the extension of a file name.
+		 *
+		 * @throws IllegalArgumentException if the extension is none of the
+		 *             formats
+		 */
+		public static Format forFile(File file) {
+			String name = file.getName();
+			return valueOf(name.substring(name.lastIndexOf('.') + 1).toUpperCase(Locale.ROOT));
+		}
+	}
+
+	private static final int BUFFER_SIZE = 1 << 20;
+	// Largest record of any format, a text vertex with its normal
+	private static final int MAX_RECORD = 128;
+	private static final int STL_HEADER = 80;
+	private static final int FIXED_DECIMALS = 10000;
+
+	private final MeshExtractor extractor;
+	private MeshDecimator decimator;
+
+	// State of the export in progress, the chunks are written under the lock
+	// while export waits for them holding the exporter
+	private final Object writeLock = new Object();
+	private Format format;
+	private FileChannel vertexChannel;
+	private FileChannel faceChannel;
+	private ByteBuffer vertexBuffer;
+	private ByteBuffer faceBuffer;
+	private int numVertices;
+	private int numTriangles;
+	private int[] remap = new int[4096];
+	private SeamVertices seam;
+	private final float[] normal = new float[3];
+
+	public MeshExporter(MeshExtractor extractor) {
+		this.extractor = extractor;
+	}
+
+	/**
+	 * Decimate the surface before writing it, null to write every triangle.
+	 * The decimated surface is written in one go once all chunks are done.
+	 */
+	public synchronized void setDecimator(MeshDecimator decimator) {
+		this.decimator = decimator;
+	}
+
+	public int getNumVertices() {
+		return numVertices;
+	}
+
+	public int getNumTriangles() {
+		return numTriangles;
+	}
+
+	/**
+	 * Mesh the whole grid and write it to a file, in the format given by its
+	 * extension.
+	 */
+	public void export(File file) throws IOException, InterruptedException {
+		export(file, Format.forFile(file));
+	}
+
+	public synchronized void export(File file, Format format) throws IOException, InterruptedException {
+		this.format = format;
+		numVertices = 0;
+		numTriangles = 0;
+		seam = new SeamVertices(extractor.getGrid(), MeshExtractor.CHUNK_SIZE);
+		vertexBuffer = allocate();
+		faceBuffer = allocate();
+
+		// PLY needs the counts up front, so the sections are gathered in
+		// temporary files and put behind the header at the end
+		File vertexFile = null, faceFile = null;
+		FileChannel out = null;
+		boolean complete = false;
+		try {
+			if (format == Format.PLY) {
+				vertexFile = File.createTempFile("sculptnect", ".vertices", file.getAbsoluteFile().getParentFile());
+				faceFile = File.createTempFile("sculptnect", ".faces", file.getAbsoluteFile().getParentFile());
+				vertexChannel = new RandomAccessFile(vertexFile, "rw").getChannel();
+				faceChannel = new RandomAccessFile(faceFile, "rw").getChannel();
+			} else {
+				out = new FileOutputStream(file).getChannel();
+				vertexChannel = out;
+				faceChannel = out;
+				if (format == Format.STL) {
+					// Header and triangle count are filled in at the end
+					out.write(ByteBuffer.allocate(STL_HEADER + 4));
+				} else {
+					put(vertexBuffer, "# sculptnect\n");
+				}
+			}
+
+			if (decimator != null) {
+				write(null, null, decimator.decimate(extractor));
+			} else {
+				extractor.extract(null, null, new MeshExtractor.ChunkHandler() {
+					@Override
+					public void chunkExtracted(int[] lower, int[] upper, MeshBuffer mesh) throws IOException {
+						write(lower, upper, mesh);
+					}
+				});
+			}
+			flush(vertexBuffer, vertexChannel);
+			flush(faceBuffer, faceChannel);
+
+			if (format == Format.STL) {
+				ByteBuffer header = ByteBuffer.allocate(STL_HEADER + 4).order(ByteOrder.LITTLE_ENDIAN);
+				header.put("sculptnect".getBytes("US-ASCII"));
+				header.putInt(STL_HEADER, numTriangles);
+				header.rewind();
+				writeFully(out, header, 0);
+			} else if (format == Format.PLY) {
+				out = new FileOutputStream(file).getChannel();
+				ByteBuffer header = ByteBuffer.wrap(String.format(Locale.ROOT, "ply\nformat binary_little_endian 1.0\ncomment sculptnect\n" //
+						+ "element vertex %d\nproperty float x\nproperty float y\nproperty float z\nproperty float nx\nproperty float ny\nproperty float nz\n" //
+						+ "element face %d\nproperty list uchar int vertex_indices\nend_header\n", numVertices, numTriangles).getBytes("US-ASCII"));
+				while (header.hasRemaining()) {
+					out.write(header);
+				}
+				transferFully(vertexChannel, out);
+				transferFully(faceChannel, out);
+			}
+			complete = true;
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+			// Don't leave half a mesh behind after a failure or cancellation
+			if (!complete) {
+				file.delete();
+			}
+			if (vertexFile != null) {
+				vertexChannel.close();
+				faceChannel.close();
+				vertexFile.delete();
+				faceFile.delete();
+			}
+			vertexChannel = null;
+			faceChannel = null;
+			vertexBuffer = null;
+			faceBuffer = null;
+			seam = null;
+		}
+	}
+
+	/**
+	 * Append the mesh of a chunk, the chunks come in one at a time. Without
+	 * chunk bounds the mesh is taken as already welded.
+	 */
+	private void write(int[] lower, int[] upper, MeshBuffer mesh) throws IOException {
+		synchronized (writeLock) {
+			writeChunk(lower, upper, mesh);
+		}
+	}
+
+	private void writeChunk(int[] lower, int[] upper, MeshBuffer mesh) throws IOException {
+		float[] vertices = mesh.vertices;
+		int[] indices = mesh.indices;
+
+		if (format == Format.STL) {
+			for (int i = 0; i < mesh.numIndices; i += 3) {
+				int a = indices[i] * MeshBuffer.VERTEX_SIZE;
+				int b = indices[i + 1] * MeshBuffer.VERTEX_SIZE;
+				int c = indices[i + 2] * MeshBuffer.VERTEX_SIZE;
+				faceNormal(vertices, a, b, c);
+				ensure(faceBuffer, faceChannel, 50);
+				faceBuffer.putFloat(normal[0]).putFloat(normal[1]).putFloat(normal[2]);
+				putPosition(faceBuffer, vertices, a);
+				putPosition(faceBuffer, vertices, b);
+				putPosition(faceBuffer, vertices, c);
+				faceBuffer.putShort((short) 0);
+			}
+			numTriangles += mesh.numIndices / 3;
+			return;
+		}
+
+		// Give every vertex its index in the file. Vertices on the border of
+		// the chunk may already be there from a neighbor chunk, a mesh
+		// without chunk bounds is already welded
+		if (remap.length < mesh.numVertices) {
+			remap = new int[Math.max(mesh.numVertices, remap.length * 2)];
+		}
+		for (int v = 0; v < mesh.numVertices; v++) {
+			long key = mesh.keys[v];
+			boolean border = lower != null && SeamVertices.isBorder(key, lower, upper);
+			int index = border ? seam.get(key) : -1;
+			if (index < 0) {
+				index = numVertices++;
+				if (border) {
+					seam.put(key, index);
+				}
+				writeVertex(vertices, v * MeshBuffer.VERTEX_SIZE);
+			}
+			remap[v] = index;
+		}
+
+		for (int i = 0; i < mesh.numIndices; i += 3) {
+			writeFace(remap[indices[i]], remap[indices[i + 1]], remap[indices[i + 2]]);
+		}
+		numTriangles += mesh.numIndices / 3;
+
+		// Drop the seam vertices no chunk still to come may build
+		if (lower != null) {
+			seam.chunkDone(lower);
+		}
+	}
+
+	private void writeVertex(float[] vertices, int i) throws IOException {
+		ensure(vertexBuffer, vertexChannel, MAX_RECORD);
+		if (format == Format.PLY) {
+			putPosition(vertexBuffer, vertices, i);
+			vertexBuffer.putFloat(vertices[i + 3]).putFloat(vertices[i + 4]).putFloat(vertices[i + 5]);
+		} else {
+			vertexBuffer.put((byte) 'v');
+			for (int k = 0; k < 3; k++) {
+				vertexBuffer.put((byte) ' ');
+				putFixed(vertexBuffer, vertices[i + k]);
+			}
+			vertexBuffer.put((byte) '\n').put((byte) 'v').put((byte) 'n');
+			for (int k = 3; k < 6; k++) {
+				vertexBuffer.put((byte) ' ');
+				putFixed(vertexBuffer, vertices[i + k]);
+			}
+			vertexBuffer.put((byte) '\n');
+		}
+	}
+
+	private void writeFace(int a, int b, int c) throws IOException {
+		if (format == Format.PLY) {
+			ensure(faceBuffer, faceChannel, MAX_RECORD);
+			faceBuffer.put((byte) 3).putInt(a).putInt(b).putInt(c);
+		} else {
+			// OBJ reads the vertices written so far, they share the channel
+			ensure(vertexBuffer, vertexChannel, MAX_RECORD);
+			vertexBuffer.put((byte) 'f');
+			for (int index : new int[] { a, b, c }) {
+				// Indices start at one, the normal has the same index
+				vertexBuffer.put((byte) ' ');
+				putInteger(vertexBuffer, index + 1);
+				vertexBuffer.put((byte) '/').put((byte) '/');
+				putInteger(vertexBuffer, index + 1);
+			}
+			vertexBuffer.put((byte) '\n');
+		}
+	}
+
+	private void faceNormal(float[] v, int a, int b, int c) {
+		float ux = v[b] - v[a], uy = v[b + 1] - v[a + 1], uz = v[b + 2] - v[a + 2];
+		float wx = v[c] - v[a], wy = v[c + 1] - v[a + 1], wz = v[c + 2] - v[a + 2];
+		float nx = uy * wz - uz * wy;
+		float ny = uz * wx - ux * wz;
+		float nz = ux * wy - uy * wx;
+		float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length > 0.0f) {
+			nx /= length;
+			ny /= length;
+			nz /= length;
+		}
+		normal[0] = nx;
+		normal[1] = ny;
+		normal[2] = nz;
+	}
+
+	private static void putPosition(ByteBuffer buffer, float[] vertices, int i) {
+		buffer.putFloat(vertices[i]).putFloat(vertices[i + 1]).putFloat(vertices[i + 2]);
+	}
+
+	/**
+	 * Append a number with four decimals, much quicker than formatting it.
+	 */
+	private static void putFixed(ByteBuffer buffer, float value) {
+		long fixed = Math.round((double) value * FIXED_DECIMALS);
+		if (fixed < 0) {
+			buffer.put((byte) '-');
+			fixed = -fixed;
+		}
+		putInteger(buffer, fixed / FIXED_DECIMALS);
+		buffer.put((byte) '.');
+		for (long digit = FIXED_DECIMALS / 10, fraction = fixed % FIXED_DECIMALS; digit > 0; digit /= 10) {
+			buffer.put((byte) ('0' + fraction / digit % 10));
+		}
+	}
+
+	private static void putInteger(ByteBuffer buffer, long value) {
+		long digit = 1;
+		while (digit * 10 <= value) {
+			digit *= 10;
+		}
+		for (; digit > 0; digit /= 10) {
+			buffer.put((byte) ('0' + value / digit % 10));
+		}
+	}
+
+	private static void put(ByteBuffer buffer, String text) throws IOException {
+		buffer.put(text.getBytes("US-ASCII"));
+	}
+
+	private static ByteBuffer allocate() {
+		return ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Make room for a record, writing out the buffer if needed.
+	 */
+	private static void ensure(ByteBuffer buffer, FileChannel channel, int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			flush(buffer, channel);
+		}
+	}
+
+	private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private static void transferFully(FileChannel from, FileChannel to) throws IOException {
+		long size = from.size();
+		for (long position = 0; position < size;) {
+			position += from.transferTo(position, size - position, to);
+		}
+	}
+}
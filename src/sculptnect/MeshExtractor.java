@@ -0,0 +1,297 @@
+package sculptnect;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Meshes a region of the voxel grid without any GL, chunk by chunk on the
+ * threads of the task scheduler. The chunks are laid out as in the mesh
+ * render, so exports, benchmarks and tests see exactly the triangles it
+ * draws.
+ *
+ * Must not be used from a task of the scheduler, the chunks might never get
+ * a thread otherwise.
+ */
+public class MeshExtractor {
+	public static final int CHUNK_SIZE = 32;
+
+	/**
+	 * Receives the meshes of the chunks as they are done.
+	 */
+	public interface ChunkHandler {
+		/**
+		 * Take the mesh of a chunk, with positions in grid coordinates. Called
+		 * from several threads at once and in no particular order, the mesh is
+		 * reused once the call returns.
+		 *
+		 * @param lower the lower cell of the chunk
+		 * @param upper the cell after the upper end of the chunk
+		 */
+		public void chunkExtracted(int[] lower, int[] upper, MeshBuffer mesh) throws IOException;
+	}
+
+	/**
+	 * Follows the progress of an extraction.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called from the worker threads after every chunk, with or without
+		 * triangles.
+		 */
+		public void chunksDone(int done, int total);
+	}
+
+	// Scratch data of a thread extracting a chunk
+	private static class Worker {
+		Mesher mesher;
+		MeshBuffer mesh = new MeshBuffer();
+	}
+
+	private final VoxelGrid grid;
+	private final Mesher.Type type;
+	private final TaskScheduler scheduler;
+	private final TaskScheduler.Priority priority;
+	private final BlockingQueue<Worker> workers;
+	private volatile ProgressListener progressListener;
+	private volatile boolean cancelled;
+
+	public MeshExtractor(VoxelGrid grid, Mesher.Type type) {
+		this(grid, type, TaskScheduler.getShared(), TaskScheduler.Priority.REFRESH);
+	}
+
+	/**
+	 * @param priority the class of the extraction tasks, background work by
+	 *            default
+	 */
+	public MeshExtractor(VoxelGrid grid, Mesher.Type type, TaskScheduler scheduler, TaskScheduler.Priority priority) {
+		this.grid = grid;
+		this.type = type;
+		this.scheduler = scheduler;
+		this.priority = priority;
+
+		// No more tasks than threads run at once, so there's always a worker
+		// to spare
+		workers = new ArrayBlockingQueue<Worker>(scheduler.getNumThreads());
+		for (int i = 0; i < scheduler.getNumThreads(); i++) {
+			workers.offer(new Worker());
+		}
+	}
+
+	public VoxelGrid getGrid() {
+		return grid;
+	}
+
+	public Mesher.Type getType() {
+		return type;
+	}
+
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Skip all chunks not started yet, the extraction in progress and any
+	 * later one end with a CancellationException.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Get the cells of a chunk, cut to the cells of the grid, which start one
+	 * voxel inside it.
+	 *
+	 * @param chunk the position of the chunk in the chunk grid
+	 */
+	public static void chunkBounds(VoxelGrid grid, int chunkSize, int[] chunk, int[] lower, int[] upper) {
+		int[] size = { grid.width, grid.height, grid.depth };
+		for (int k = 0; k < 3; k++) {
+			lower[k] = Math.max(1, chunk[k] * chunkSize);
+			upper[k] = Math.min((chunk[k] + 1) * chunkSize, size[k] - 1);
+		}
+	}
+
+	/**
+	 * Get the chunks overlapping the cells in [lower, upper), all of them if
+	 * lower and upper are null.
+	 */
+	public List<int[]> chunks(int[] lower, int[] upper) {
+		int[] size = { grid.width, grid.height, grid.depth };
+		int[] from = new int[3];
+		int[] to = new int[3];
+		for (int k = 0; k < 3; k++) {
+			int l = Math.max(1, lower == null ? 1 : lower[k]);
+			int u = Math.min(size[k] - 1, upper == null ? size[k] - 1 : upper[k]);
+			from[k] = l / CHUNK_SIZE;
+			to[k] = l < u ? (u - 1) / CHUNK_SIZE + 1 : from[k];
+		}
+
+		List<int[]> chunks = new ArrayList<int[]>();
+		for (int x = from[0]; x < to[0]; x++) {
+			for (int y = from[1]; y < to[1]; y++) {
+				for (int z = from[2]; z < to[2]; z++) {
+					chunks.add(new int[] { x, y, z });
+				}
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Mesh the cells in [lower, upper) and hand every chunk to the handler,
+	 * with or without triangles, the whole grid if lower and upper are null.
+	 * Returns once all chunks are done.
+	 *
+	 * @throws IOException the first exception thrown by the handler, the
+	 *             remaining chunks are skipped
+	 * @throws CancellationException if the extraction was cancelled
+	 */
+	public void extract(final int[] lower, final int[] upper, final ChunkHandler handler) throws IOException, InterruptedException {
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicInteger done = new AtomicInteger();
+		final List<int[]> chunks = chunks(lower, upper);
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (final int[] chunk : chunks) {
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (failure.get() == null && !cancelled) {
+							extractChunk(chunk, lower, upper, handler);
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						ProgressListener listener = progressListener;
+						if (listener != null) {
+							listener.chunksDone(done.incrementAndGet(), chunks.size());
+						}
+					}
+				}
+			});
+		}
+		scheduler.invokeAll(priority, tasks);
+		if (cancelled) {
+			throw new CancellationException("Extraction cancelled");
+		}
+
+		Throwable e = failure.get();
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e instanceof InterruptedException) {
+			throw (InterruptedException) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		} else if (e != null) {
+			throw (Error) e;
+		}
+	}
+
+	/**
+	 * Mesh the cells in [lower, upper) into a single mesh, the whole grid if
+	 * lower and upper are null. The chunks follow each other in order, so the
+	 * result doesn't depend on the threads.
+	 */
+	public MeshBuffer extract(int[] lower, int[] upper) throws InterruptedException {
+		final List<int[]> chunks = chunks(lower, upper);
+		final MeshBuffer[] meshes = new MeshBuffer[chunks.size()];
+		try {
+			extract(lower, upper, new ChunkHandler() {
+				@Override
+				public void chunkExtracted(int[] chunkLower, int[] chunkUpper, MeshBuffer mesh) {
+					MeshBuffer copy = new MeshBuffer(mesh.numVertices, mesh.numIndices / 3);
+					copy.append(mesh);
+					meshes[index(chunks, chunkLower)] = copy;
+				}
+			});
+		} catch (IOException e) {
+			// The handler above doesn't throw any
+			throw new IllegalStateException(e);
+		}
+
+		int numVertices = 0, numIndices = 0;
+		for (MeshBuffer mesh : meshes) {
+			if (mesh != null) {
+				numVertices += mesh.numVertices;
+				numIndices += mesh.numIndices;
+			}
+		}
+		MeshBuffer result = new MeshBuffer(numVertices, numIndices / 3);
+		for (MeshBuffer mesh : meshes) {
+			if (mesh != null) {
+				result.append(mesh);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Mesh a single chunk on the calling thread.
+	 *
+	 * @return the mesh, owned by the extractor until the next call
+	 */
+	public MeshBuffer extractChunk(int[] chunk) throws InterruptedException {
+		final MeshBuffer[] result = new MeshBuffer[1];
+		try {
+			extractChunk(chunk, null, null, new ChunkHandler() {
+				@Override
+				public void chunkExtracted(int[] lower, int[] upper, MeshBuffer mesh) {
+					result[0] = mesh;
+				}
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return result[0];
+	}
+
+	private void extractChunk(int[] chunk, int[] regionLower, int[] regionUpper, ChunkHandler handler) throws IOException, InterruptedException {
+		int[] lower = new int[3];
+		int[] upper = new int[3];
+		chunkBounds(grid, CHUNK_SIZE, chunk, lower, upper);
+		for (int k = 0; k < 3; k++) {
+			if (regionLower != null) {
+				lower[k] = Math.max(lower[k], regionLower[k]);
+			}
+			if (regionUpper != null) {
+				upper[k] = Math.min(upper[k], regionUpper[k]);
+			}
+			if (lower[k] >= upper[k]) {
+				return;
+			}
+		}
+
+		Worker worker = workers.take();
+		try {
+			if (worker.mesher == null) {
+				worker.mesher = type.create(grid, CHUNK_SIZE);
+			}
+			worker.mesh.clear();
+			worker.mesher.extract(lower, upper, worker.mesh);
+			handler.chunkExtracted(lower, upper, worker.mesh);
+		} finally {
+			workers.offer(worker);
+		}
+	}
+
+	private static int index(List<int[]> chunks, int[] lower) {
+		int[] first = chunks.get(0);
+		int[] last = chunks.get(chunks.size() - 1);
+		int x = lower[0] / CHUNK_SIZE - first[0];
+		int y = lower[1] / CHUNK_SIZE - first[1];
+		int z = lower[2] / CHUNK_SIZE - first[2];
+		int sy = last[1] - first[1] + 1;
+		int sz = last[2] - first[2] + 1;
+		return (x * sy + y) * sz + z;
+	}
+}
@@ -0,0 +1,72 @@
+package sculptnect;
+
+/**
+ * Turns a box of the voxel grid into triangles. A cell of the box spans the
+ * voxels from its indices to its indices plus one, and voxel (x, y, z) sits at
+ * position (x, y, z). Every vertex is keyed by the cell or edge it's built
+ * for, and comes out the same whatever box it's built by.
+ *
+ * Meshers keep scratch state between calls, so every worker thread needs its
+ * own.
+ */
+public interface Mesher {
+	public enum Type {
+		// The surface net displaces the nodes of the cells around the box too,
+		// which reaches one cell further than the normal window of the voxel
+		SURFACE_NET(NormalField.RADIUS + 1, NormalField.RADIUS + 1),
+		// Marching cubes takes normals at both ends of the cell edges
+		MARCHING_CUBES(NormalField.RADIUS + 1, NormalField.RADIUS),
+		// Dual contouring quads connect the cell vertices around an edge
+		DUAL_CONTOURING(NormalField.RADIUS + 1, NormalField.RADIUS + 1);
+
+		/**
+		 * The cells from below to above the index of a voxel along every
+		 * axis, whose part of the mesh can change with the voxel.
+		 */
+		public final int below, above;
+
+		private Type(int below, int above) {
+			this.below = below;
+			this.above = above;
+		}
+
+		/**
+		 * @param chunkSize the largest edge length of a box that will be
+		 *            extracted
+		 */
+		public Mesher create(VoxelGrid grid, int chunkSize) {
+			switch (this) {
+			case MARCHING_CUBES:
+				return new MarchingCubesMesher(grid, chunkSize);
+			case DUAL_CONTOURING:
+				return new DualContouringMesher(grid, chunkSize);
+			default:
+				return new SurfaceNetMesher(grid, chunkSize);
+			}
+		}
+
+		public Type next() {
+			return values()[(ordinal() + 1) % values().length];
+		}
+	}
+
+	/**
+	 * Add the surface crossing the cells in [lower, upper) to the mesh. The
+	 * cells must lie at least one voxel inside the grid on every side.
+	 */
+	public void extract(int[] lower, int[] upper, MeshBuffer mesh);
+
+	/**
+	 * Start meshing boxes inside the cells in [lower, upper) into the mesh,
+	 * which is at most a chunk. The boxes extracted until the next call share
+	 * their vertices and the normal field, so a chunk meshed box by box
+	 * comes out as if meshed in one go.
+	 */
+	public void begin(int[] lower, int[] upper, MeshBuffer mesh);
+
+	/**
+	 * Add the surface crossing the cells in [lower, upper), inside the cells
+	 * given to begin, to the mesh given to begin.
+	 */
+	public void extract(int[] lower, int[] upper);
+}
@@ -0,0 +1,171 @@
+package sculptnect;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import javax.vecmath.Point3i;
+import javax.vecmath.Vector3f;
+
+import shape.CubeGenerator;
+
+/**
+ * Replays depth recordings made with the 'R' key and compares the meshers on
+ * the sculpture as it is carved. Every few frames the grid is copied and each
+ * mesher extracts all chunks of the copy on a single thread, reporting the
+ * size of the mesh and how fast it was built.
+ *
+ * Usage: MesherBenchmark [-every frames] [-turn degrees] recording.raw.gz ...
+ */
+public class MesherBenchmark {
+	// Same grid and chunks as the scene and the mesh render
+	private static final int GRID_SIZE = 200;
+	private static final int CHUNK_SIZE = MeshExtractor.CHUNK_SIZE;
+	private static final int FRAME_SIZE = DepthSource.DEPTH_WIDTH * DepthSource.DEPTH_HEIGHT * 2;
+
+	// Runs per snapshot and mesher, the fastest one counts
+	private static final int REPEATS = 3;
+
+	private static class Result {
+		long nanos;
+		long vertices;
+		long triangles;
+		long cells;
+		int snapshots;
+	}
+
+	// Reads snapshots of the sculpture, so it has no renders of its own
+	private final VoxelGrid grid = new VoxelGrid(GRID_SIZE, GRID_SIZE, GRID_SIZE, false);
+	private final Mesher.Type[] types = Mesher.Type.values();
+	private final Mesher[] meshers = new Mesher[types.length];
+	private final Result[] results = new Result[types.length];
+	private final MeshBuffer mesh = new MeshBuffer();
+	private final List<int[][]> chunks = new ArrayList<int[][]>();
+
+	public MesherBenchmark() {
+		for (int i = 0; i < types.length; i++) {
+			meshers[i] = types[i].create(grid, CHUNK_SIZE);
+			results[i] = new Result();
+		}
+
+		// Chunk bounds as used by the mesh render
+		for (int[] chunk : new MeshExtractor(grid, types[0]).chunks(null, null)) {
+			int[] lower = new int[3];
+			int[] upper = new int[3];
+			MeshExtractor.chunkBounds(grid, CHUNK_SIZE, chunk, lower, upper);
+			chunks.add(new int[][] { lower, upper });
+		}
+	}
+
+	/**
+	 * Carve a recording into a fresh cube and measure every mesher on it.
+	 */
+	public void replay(String file, int every, float turn) throws IOException {
+		VoxelGrid sculpture = new VoxelGrid(GRID_SIZE);
+		sculpture.insertShape(new CubeGenerator(VoxelGrid.VOXEL_GRID_CLAY, new Point3i(GRID_SIZE / 2, GRID_SIZE / 2, GRID_SIZE / 2), GRID_SIZE / 2 - 2));
+		DepthSource source = new DepthSource(sculpture, GRID_SIZE, 0.0f, 0.0f, new Vector3f());
+
+		DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)));
+		byte[] frame = new byte[FRAME_SIZE];
+		int frames = 0;
+		try {
+			while (true) {
+				try {
+					in.readFully(frame);
+				} catch (EOFException e) {
+					break;
+				}
+
+				source.update(ByteBuffer.wrap(frame), 0.0f, (turn * frames) % 360.0f, false);
+				frames++;
+				if (frames % every == 0) {
+					measure(sculpture);
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		if (frames % every != 0) {
+			measure(sculpture);
+		}
+		System.out.println(file + ": " + frames + " frames");
+	}
+
+	private void measure(VoxelGrid sculpture) {
+		// Work on a snapshot, the sculpture's own renders may still touch it
+		grid.readFrom(sculpture.snapshot());
+
+		for (int i = 0; i < types.length; i++) {
+			Result result = results[i];
+			long best = Long.MAX_VALUE;
+			long vertices = 0, triangles = 0, cells = 0;
+			for (int repeat = 0; repeat < REPEATS; repeat++) {
+				vertices = triangles = cells = 0;
+				long start = System.nanoTime();
+				for (int[][] chunk : chunks) {
+					int[] lower = chunk[0], upper = chunk[1];
+					mesh.clear();
+					meshers[i].extract(lower, upper, mesh);
+					vertices += mesh.getNumVertices();
+					triangles += mesh.getNumTriangles();
+					cells += (long) (upper[0] - lower[0]) * (upper[1] - lower[1]) * (upper[2] - lower[2]);
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+
+			result.nanos += best;
+			result.vertices += vertices;
+			result.triangles += triangles;
+			result.cells += cells;
+			result.snapshots++;
+		}
+	}
+
+	public void report() {
+		System.out.println(String.format("%-16s %12s %12s %10s %10s", "mesher", "vertices", "triangles", "ms", "Mcells/s"));
+		for (int i = 0; i < types.length; i++) {
+			Result result = results[i];
+			if (result.snapshots == 0) {
+				continue;
+			}
+
+			// Averages per snapshot
+			double ms = result.nanos / 1e6 / result.snapshots;
+			double throughput = result.cells / (result.nanos / 1e9) / 1e6;
+			System.out.println(String.format("%-16s %12d %12d %10.2f %10.1f", types[i], result.vertices / result.snapshots, result.triangles / result.snapshots, ms, throughput));
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int every = 30;
+		float turn = 0.0f;
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-every")) {
+				every = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-turn")) {
+				turn = Float.parseFloat(args[++i]);
+			} else {
+				files.add(args[i]);
+			}
+		}
+
+		if (files.isEmpty()) {
+			System.err.println("Usage: MesherBenchmark [-every frames] [-turn degrees] recording.raw.gz ...");
+			System.exit(1);
+		}
+
+		MesherBenchmark benchmark = new MesherBenchmark();
+		for (String file : files) {
+			benchmark.replay(file, every, turn);
+		}
+		benchmark.report();
+		TaskScheduler.getShared().shutdown(1000);
+	}
+}
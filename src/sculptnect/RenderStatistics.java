@@ -0,0 +1,96 @@
+package sculptnect;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how much of the work done by a render's workers actually
+ * reaches the GPU.
+ */
+public class RenderStatistics {
+	private final String name;
+
+	// Results produced by the workers
+	final AtomicLong extracted = new AtomicLong();
+	// Results dropped because the chunk changed while it was being extracted,
+	// or coalesced with a newer result before upload
+	final AtomicLong stale = new AtomicLong();
+	// Results uploaded to the GPU and the number of bytes they took
+	final AtomicLong uploaded = new AtomicLong();
+	final AtomicLong uploadedBytes = new AtomicLong();
+	// Catch-ups after the render became active again, the chunks they queued
+	// and the time until the last of them was uploaded
+	final AtomicLong catchUps = new AtomicLong();
+	final AtomicLong catchUpChunks = new AtomicLong();
+	final AtomicLong catchUpNanos = new AtomicLong();
+	// Results queued, being extracted or waiting for upload at the end of
+	// the last frame
+	volatile int pending;
+
+	// Start of the catch-up in progress, zero if there is none
+	private volatile long catchUpStart;
+	private volatile int catchUpPending;
+
+	public RenderStatistics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the fraction of extracted results that were never uploaded because
+	 * they were outdated.
+	 */
+	public float getStaleRate() {
+		long total = extracted.get();
+		return total == 0 ? 0.0f : (float) stale.get() / total;
+	}
+
+	/**
+	 * Start timing a catch-up, call once its chunks have been queued.
+	 *
+	 * @param start when the render became active
+	 */
+	public void beginCatchUp(long start, int chunks) {
+		catchUpPending = chunks;
+		catchUpStart = start;
+	}
+
+	public boolean isCatchingUp() {
+		return catchUpStart != 0;
+	}
+
+	/**
+	 * Finish timing the catch-up in progress, call once the last chunk has
+	 * been uploaded.
+	 *
+	 * @return a description of the catch-up
+	 */
+	public String endCatchUp() {
+		long nanos = System.nanoTime() - catchUpStart;
+		int chunks = catchUpPending;
+		catchUpStart = 0;
+
+		catchUps.incrementAndGet();
+		catchUpChunks.addAndGet(chunks);
+		catchUpNanos.addAndGet(nanos);
+		return String.format("%s: caught up with %d chunks in %.1f ms", name, chunks, nanos / 1e6);
+	}
+
+	public void reset() {
+		extracted.set(0);
+		stale.set(0);
+		uploaded.set(0);
+		uploadedBytes.set(0);
+		catchUps.set(0);
+		catchUpChunks.set(0);
+		catchUpNanos.set(0);
+	}
+
+	@Override
+	public String toString() {
+		String text = String.format("%s: %d extracted, %d uploaded (%.1f MB), %d pending, %d stale (%.1f%%)", name, extracted.get(), uploaded.get(), uploadedBytes.get() / (1024.0 * 1024.0), pending, stale.get(), getStaleRate() * 100.0f);
+		long count = catchUps.get();
+		if (count > 0) {
+			text += String.format(", %d catch-ups (%.1f chunks, %.1f ms on average)", count, (float) catchUpChunks.get() / count, catchUpNanos.get() / 1e6 / count);
+		}
+		return text;
+	}
+}
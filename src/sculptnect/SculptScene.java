@@ -1,20 +1,17 @@
 package sculptnect;
 
+import java.io.File;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
-import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
 import javax.media.opengl.GLEventListener;
 import javax.media.opengl.glu.gl2.GLUgl2;
 import javax.vecmath.Point3i;
 import javax.vecmath.Vector2f;
+import javax.vecmath.Vector3f;
 
 import joystick.JoystickListener;
 import shape.CubeGenerator;
@@ -22,14 +19,6 @@ import shape.SphereGenerator;
 
 public class SculptScene implements GLEventListener, JoystickListener {
 	private final int VOXEL_GRID_SIZE = 200;
-	private final short KINECT_NEAR_THRESHOLD = KinectUtils.metersToRawDepth(0.5f);
-	private final short KINECT_FAR_THRESHOLD = KinectUtils.metersToRawDepth(1.4f);
-	private final float KINECT_DEPTH_FACTOR = 500.0f;
-
-	private static final int NUM_THREADS = 8;
-
-	private static final int DEPTH_WIDTH = 640;
-	private static final int DEPTH_HEIGHT = 480;
 
 	private final float JOYSTICK_ROTATION_SENSITIVITY = 3.0f;
 
@@ -40,9 +29,6 @@ public class SculptScene implements GLEventListener, JoystickListener {
 	private Vector2f rotation = new Vector2f(INITIAL_ROTATION);
 	private Vector2f rotationSpeed = new Vector2f();
 
-	private float filteredDepth[][] = new float[DEPTH_WIDTH][DEPTH_HEIGHT];
-	private float depth[][] = new float[DEPTH_WIDTH][DEPTH_HEIGHT];
-
 	private float modelRotationX = 0.0f;
 	private float modelRotationY = 0.0f;
 
@@ -51,99 +37,70 @@ public class SculptScene implements GLEventListener, JoystickListener {
 
 	private boolean turningMode;
 
-	private final ExecutorService kinectExecutorService = Executors.newFixedThreadPool(NUM_THREADS);
-	private final List<KinectWorker> kinectWorkers = new ArrayList<KinectWorker>();
+	private boolean sweptCarving = false;
+
+	private final List<DepthSource> depthSources = new ArrayList<DepthSource>();
+	private Autosave autosave;
+
+	public SculptScene() {
+		this(1);
+	}
 
-	public class KinectWorker implements Callable<Void> {
-		public int lower, upper;
-		public ByteBuffer depthBuffer;
+	public SculptScene(int numDepthSources) {
+		// Create voxel grid
+		int size = VOXEL_GRID_SIZE;
+		grid = new VoxelGrid(size);
 
-		public KinectWorker(int lower, int upper) {
-			this.lower = lower;
-			this.upper = upper;
+		// Place the depth sources evenly around the sculpture
+		for (int i = 0; i < numDepthSources; i++) {
+			float yaw = 360.0f * i / numDepthSources;
+			depthSources.add(new DepthSource(grid, VOXEL_GRID_SIZE, yaw, 0.0f, new Vector3f()));
 		}
 
-		@Override
-		public Void call() throws Exception {
-			final int radius = 0;
-			int bounds[] = { DEPTH_WIDTH / 2 - (int) (Math.sqrt(3) * VOXEL_GRID_SIZE * 0.5f), //
-					DEPTH_WIDTH / 2 + (int) (Math.sqrt(3) * VOXEL_GRID_SIZE * 0.5f), //
-					DEPTH_HEIGHT / 2 - (int) (Math.sqrt(3) * VOXEL_GRID_SIZE * 0.5f), //
-					DEPTH_HEIGHT / 2 + (int) (Math.sqrt(3) * VOXEL_GRID_SIZE * 0.5f) };
-			
-			float cosModelRotationY = SculptMath.cos(modelRotationY);
-			float cosModelRotationX = SculptMath.cos(modelRotationX);
-			float sinModelRotationY = SculptMath.sin(modelRotationY);
-			float sinModelRotationX = SculptMath.sin(modelRotationX);
-
-			int lowery = (lower < radius ? radius : lower);
-			int uppery = (upper > DEPTH_HEIGHT - radius ? DEPTH_HEIGHT - radius : upper);
-			for (int x = radius; x < DEPTH_WIDTH - radius; ++x) {
-				for (int y = lowery; y < uppery; ++y) {
-					// Optimization, ignore points too far from the model
-					if (x < bounds[0] || x > bounds[1] || y < bounds[2] || y > bounds[3]) {
-						continue;
-					}
-
-					// Apply simple box blur
-					float total = 0.0f;
-					int count = 0;
-					for (int xk = -radius; xk <= radius; ++xk) {
-						for (int yk = -radius; yk <= radius; ++yk) {
-							if (Math.abs(depth[x][y] - depth[x + xk][y + yk]) < 0.02) {
-								total += depth[x + xk][y + yk];
-								++count;
-							}
-						}
-					}
-					filteredDepth[x][y] = total / count;
-
-					int padDepth = 30;
-					for (int i = 0; i < padDepth; ++i) {
-						float xOrig = x - DEPTH_WIDTH / 2;
-						float yOrig = (DEPTH_HEIGHT - 1 - y) - DEPTH_HEIGHT / 2;
-						float zOrig = filteredDepth[x][y] * KINECT_DEPTH_FACTOR - KINECT_DEPTH_FACTOR * 0.5f - i;
-
-						// Rotate the points the same amount that the model is
-						// rotated
-						float xVal = (float) (xOrig * cosModelRotationY + yOrig * sinModelRotationY * sinModelRotationX + zOrig * sinModelRotationY * cosModelRotationX);
-						float yVal = (float) (yOrig * cosModelRotationX - zOrig * sinModelRotationX);
-						float zVal = (float) (-xOrig * sinModelRotationY + yOrig * cosModelRotationY * sinModelRotationX + zOrig * cosModelRotationY * cosModelRotationX);
-
-						int xPos = (int) (xVal + VOXEL_GRID_SIZE / 2);
-						int yPos = (int) (yVal + VOXEL_GRID_SIZE / 2);
-						int zPos = (int) (zVal + VOXEL_GRID_SIZE / 2);
-
-						// Check whether the point is within the bounding box of
-						// the
-						// model
-						if (zPos >= 0 && zPos < VOXEL_GRID_SIZE && xPos >= 0 && xPos < VOXEL_GRID_SIZE && yPos >= 0 && yPos < VOXEL_GRID_SIZE) {
-							grid.setVoxel(xPos, yPos, zPos, VoxelGrid.VOXEL_GRID_AIR);
-						} else {
-							break;
-						}
-					}
-				}
-			}
+		resetModel();
 
-			return null;
+		String autosaveFile = System.getProperty("sculptnect.autosave");
+		if (autosaveFile != null) {
+			startAutosave(new File(autosaveFile));
+		}
+
+		// Keep the last steps for undo, the budget is in megabytes
+		long historyBudget = Long.getLong("sculptnect.history.budget", 64) << 20;
+		if (historyBudget > 0) {
+			grid.enableHistory(historyBudget, Long.getLong("sculptnect.history.step", 1000));
 		}
 	}
 
-	public SculptScene() {
-		// Create KinectWorkers
-		int step = DEPTH_HEIGHT / NUM_THREADS;
-		for (int i = 0; i < NUM_THREADS; i++) {
-			int lower = step * i;
-			int upper = Math.min(lower + step, DEPTH_HEIGHT);
-			kinectWorkers.add(new KinectWorker(lower, upper));
+	// Carry on from the journal of an earlier run, then keep it up to date
+	private void startAutosave(File file) {
+		if (file.exists()) {
+			try {
+				long start = System.nanoTime();
+				grid.restore(Autosave.recover(file));
+				System.out.println(String.format("Recovered %s in %.2f s", file, (System.nanoTime() - start) / 1e9));
+			} catch (Exception e) {
+				// Keep the journal for a closer look instead of overwriting it
+				File broken = new File(file.getPath() + ".broken");
+				System.err.println("Recovering " + file + " failed, moved it to " + broken);
+				e.printStackTrace();
+				file.renameTo(broken);
+			}
 		}
-		
-		// Create voxel grid
-		int size = VOXEL_GRID_SIZE;
-		grid = new VoxelGrid(size);
 
-		resetModel();
+		long interval = Long.getLong("sculptnect.autosave.interval", 2000);
+		long sync = Long.getLong("sculptnect.autosave.sync", 10000);
+		long compaction = Long.getLong("sculptnect.autosave.compaction", 300000);
+		autosave = new Autosave(grid, file, interval, sync, compaction);
+		autosave.start();
+	}
+
+	/**
+	 * Take a last checkpoint of the autosave, if it runs, and wait for it.
+	 */
+	public void stopAutosave() throws InterruptedException {
+		if (autosave != null) {
+			autosave.stop();
+		}
 	}
 
 	@Override
@@ -218,6 +175,9 @@ public class SculptScene implements GLEventListener, JoystickListener {
 
 	@Override
 	public void display(GLAutoDrawable drawable) {
+		// Measure the frame, the uploads get whatever time is left over
+		grid.uploadBudget.beginFrame();
+
 		rotation.add(rotationSpeed);
 
 		modelRotationX = (modelRotationX + modelRotationSpeedX + 360.0f) % 360.0f;
@@ -245,6 +205,8 @@ public class SculptScene implements GLEventListener, JoystickListener {
 		gl.glRotatef(rotation.x * 57.2957795f, 1.0f, 0.0f, 0.0f);
 		gl.glRotatef(rotation.y * 57.2957795f, 0.0f, 1.0f, 0.0f);
 
+		updateViewPoint();
+
 		// Draw voxel grid
 		gl.glPointSize(4.0f);
 		gl.glPushMatrix();
@@ -258,22 +220,11 @@ public class SculptScene implements GLEventListener, JoystickListener {
 		// Disable lighting to draw depth points and axis lines
 		gl.glDisable(GL2.GL_LIGHTING);
 
-		// Draw Kinect depth map
+		// Draw Kinect depth maps
 		gl.glPointSize(3.0f);
-		gl.glPushMatrix();
-		gl.glTranslatef(-320.0f, -240.0f, -KINECT_DEPTH_FACTOR * 0.5f);
-		gl.glBegin(GL.GL_POINTS);
-		gl.glColor4f(0.5f, 0.5f, 0.5f, 0.5f);
-		for (int x = 0; x < DEPTH_WIDTH; ++x) {
-			for (int y = 0; y < DEPTH_HEIGHT; ++y) {
-				if (filteredDepth[x][y] > 0.0f) {
-					gl.glColor4f(0.5f, 0.1f, 0.1f, filteredDepth[x][y] + 0.1f);
-					gl.glVertex3f(x, DEPTH_HEIGHT - y, filteredDepth[x][y] * KINECT_DEPTH_FACTOR);
-				}
-			}
+		for (DepthSource source : depthSources) {
+			source.draw(gl);
 		}
-		gl.glEnd();
-		gl.glPopMatrix();
 
 		// Draw coordinate axes
 		gl.glBegin(GL2.GL_LINES);
@@ -296,6 +247,46 @@ public class SculptScene implements GLEventListener, JoystickListener {
 
 		// Enable light again
 		gl.glEnable(GL2.GL_LIGHTING);
+
+		grid.uploadBudget.endFrame();
+	}
+
+	/**
+	 * Tell the grid where the viewer is, by taking the eye through the inverse
+	 * of the transforms used to draw the grid.
+	 */
+	private void updateViewPoint() {
+		float x = 0.0f;
+		float y = 0.0f;
+		float z = grid.depth << 1;
+
+		// Undo the view rotation
+		float cos = (float) Math.cos(-rotation.x);
+		float sin = (float) Math.sin(-rotation.x);
+		float t = y * cos - z * sin;
+		z = y * sin + z * cos;
+		y = t;
+
+		cos = (float) Math.cos(-rotation.y);
+		sin = (float) Math.sin(-rotation.y);
+		t = x * cos + z * sin;
+		z = -x * sin + z * cos;
+		x = t;
+
+		// Undo the model rotation
+		cos = SculptMath.cos(modelRotationX);
+		sin = SculptMath.sin(modelRotationX);
+		t = y * cos - z * sin;
+		z = y * sin + z * cos;
+		y = t;
+
+		cos = SculptMath.cos(modelRotationY);
+		sin = SculptMath.sin(modelRotationY);
+		t = x * cos + z * sin;
+		z = -x * sin + z * cos;
+		x = t;
+
+		grid.setViewPoint(x + VOXEL_GRID_SIZE * 0.5f, y + VOXEL_GRID_SIZE * 0.5f, z + VOXEL_GRID_SIZE * 0.5f);
 	}
 
 	public void mouseDragged(int prevX, int prevY, int x, int y) {
@@ -316,36 +307,32 @@ public class SculptScene implements GLEventListener, JoystickListener {
 	}
 
 	public void updateKinect(ByteBuffer depthBuffer) {
-		depthBuffer.rewind();
-		depthBuffer.order(ByteOrder.LITTLE_ENDIAN);
-
-		// Retrieve Kinect depth data within the near and far threshold to a
-		// depth array
-		for (int y = 0; y < DEPTH_HEIGHT; ++y) {
-			for (int x = 0; x < DEPTH_WIDTH; ++x) {
-				short rawDepth = depthBuffer.getShort();
-				if (rawDepth < KINECT_NEAR_THRESHOLD || rawDepth > KINECT_FAR_THRESHOLD) {
-					depth[x][y] = 0.0f;
-				} else {
-					depth[x][y] = (KINECT_FAR_THRESHOLD - rawDepth) / (float) (KINECT_FAR_THRESHOLD - KINECT_NEAR_THRESHOLD);
-				}
-			}
-		}
+		updateKinect(0, depthBuffer);
+	}
 
-		for (KinectWorker worker : kinectWorkers) {
-			worker.depthBuffer = depthBuffer;
-		}
+	/**
+	 * Carve a frame from the given depth source and wait for it to finish.
+	 */
+	public void updateKinect(int source, ByteBuffer depthBuffer) {
+		depthSources.get(source).update(depthBuffer, modelRotationX, modelRotationY, sweptCarving);
+	}
 
-		try {
-			grid.beginEditing();
-			
-			// Start all workers and wait for them to finish
-			kinectExecutorService.invokeAll(kinectWorkers);
-			
-			grid.endEditing();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+	/**
+	 * Hand a frame from the given depth source over to its carving workers
+	 * without waiting. Frames arriving while the source is still busy are
+	 * dropped.
+	 */
+	public void submitKinectFrame(int source, ByteBuffer depthBuffer) {
+		depthSources.get(source).submit(depthBuffer, modelRotationX, modelRotationY, sweptCarving);
+	}
+
+	public int getNumDepthSources() {
+		return depthSources.size();
+	}
+
+	public void toggleSweptCarving() {
+		sweptCarving = !sweptCarving;
+		System.out.println("Swept carving " + (sweptCarving ? "enabled" : "disabled"));
 	}
 	
 	public void toggleTurningMode() {
@@ -365,9 +352,74 @@ public class SculptScene implements GLEventListener, JoystickListener {
 		grid.toggleRenderMode();
 	}
 	
+	public void toggleVertexFormat() {
+		VertexFormat format = grid.toggleVertexFormat();
+		System.out.println("Vertex format " + format);
+	}
+	
+	public void cycleMesher() {
+		Mesher.Type mesher = grid.cycleMesher();
+		System.out.println("Mesher " + mesher);
+	}
+	
 	public void dumpMesh() {
 		grid.dumpMesh();
 	}
+
+	public void saveSession() {
+		File file = new File(System.getProperty("sculptnect.session", "sculpture.grid"));
+		try {
+			long start = System.nanoTime();
+			grid.save(file);
+			System.out.println(String.format("Saved to %s in %.2f s", file, (System.nanoTime() - start) / 1e9));
+		} catch (Exception e) {
+			System.err.println("Saving to " + file + " failed");
+			e.printStackTrace();
+		}
+	}
+
+	public void loadSession() {
+		File file = new File(System.getProperty("sculptnect.session", "sculpture.grid"));
+		try {
+			long start = System.nanoTime();
+			grid.load(file);
+			System.out.println(String.format("Loaded %s in %.2f s", file, (System.nanoTime() - start) / 1e9));
+		} catch (Exception e) {
+			System.err.println("Loading " + file + " failed");
+			e.printStackTrace();
+		}
+	}
+
+	public void undo() {
+		try {
+			long start = System.nanoTime();
+			if (grid.undo()) {
+				System.out.println(String.format("Undone in %.3f s", (System.nanoTime() - start) / 1e9));
+			} else {
+				System.out.println("Nothing to undo");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void redo() {
+		try {
+			long start = System.nanoTime();
+			if (grid.redo()) {
+				System.out.println(String.format("Redone in %.3f s", (System.nanoTime() - start) / 1e9));
+			} else {
+				System.out.println("Nothing to redo");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void printStatistics() {
+		grid.printStatistics();
+		System.out.println(TaskScheduler.getShared());
+	}
 	
 	@Override
 	public void buttonReceived(String button, boolean value) {
@@ -13,7 +13,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import javax.media.opengl.GLCapabilities;
 import javax.media.opengl.GLProfile;
@@ -34,16 +36,20 @@ import com.jogamp.opengl.util.FPSAnimator;
 
 public class Sculptnect {
 	private Context kinectContext = null;
-	private Device kinect = null;
+	private List<Device> kinects = new ArrayList<Device>();
 
 	private boolean dump = false;
 	private KinectDepthRecord depthRecord = null;
+	private SculptScene scene;
 
 	public Sculptnect() {
 		// Set up Kinect
 		kinectContext = Freenect.createContext();
-		if (kinectContext.numDevices() > 0) {
-			kinect = kinectContext.openDevice(0);
+		int numDevices = kinectContext.numDevices();
+		if (numDevices > 0) {
+			for (int i = 0; i < numDevices; ++i) {
+				kinects.add(kinectContext.openDevice(i));
+			}
 		} else {
 			System.err.println("Error, no Kinect detected.");
 		}
@@ -58,7 +64,7 @@ public class Sculptnect {
 		caps.setBlueBits(8);
 		caps.setDepthBits(32);
 
-		final SculptScene scene = new SculptScene();
+		scene = new SculptScene(Math.max(1, kinects.size()));
 
 		final Frame frame = new Frame();
 		final GLCanvas canvas = new GLCanvas(caps);
@@ -149,6 +155,9 @@ public class Sculptnect {
 				case 'T':
 					scene.toggleTurningMode();
 					break;
+				case 'S':
+					scene.toggleSweptCarving();
+					break;
 				case 'I':
 					insertKinectPlaceholder(scene);
 					break;
@@ -158,6 +167,27 @@ public class Sculptnect {
 				case 'D':
 					scene.dumpMesh();
 					break;
+				case 'W':
+					scene.saveSession();
+					break;
+				case 'L':
+					scene.loadSession();
+					break;
+				case 'Z':
+					scene.undo();
+					break;
+				case 'Y':
+					scene.redo();
+					break;
+				case 'P':
+					scene.printStatistics();
+					break;
+				case 'C':
+					scene.toggleVertexFormat();
+					break;
+				case 'N':
+					scene.cycleMesher();
+					break;
 				}
 			}
 		});
@@ -184,12 +214,14 @@ public class Sculptnect {
 		canvas.addMouseMotionListener(mouseAdapter);
 		canvas.addMouseListener(mouseAdapter);
 
-		if (kinect != null) {
+		for (int i = 0; i < kinects.size(); ++i) {
+			final int source = i;
+			Device kinect = kinects.get(i);
 			kinect.setDepthFormat(DepthFormat.D10BIT);
 			kinect.startDepth(new DepthHandler() {
 				@Override
 				public void onFrameReceived(FrameMode arg0, ByteBuffer arg1, int arg2) {
-					if (dump) {
+					if (source == 0 && dump) {
 						// Dump a raw depth image
 						arg1.rewind();
 						FileOutputStream fos = null;
@@ -205,9 +237,11 @@ public class Sculptnect {
 						dump = false;
 					}
 
-					scene.updateKinect(arg1);
+					// All devices share the same event thread, so carving is
+					// handed over to the depth source's own workers
+					scene.submitKinectFrame(source, arg1);
 
-					if (depthRecord != null) {
+					if (source == 0 && depthRecord != null) {
 						try {
 							depthRecord.addFrame(arg1);
 						} catch (Exception e) {
@@ -216,7 +250,9 @@ public class Sculptnect {
 					}
 				}
 			});
-		} else {
+		}
+
+		if (kinects.isEmpty()) {
 			insertKinectPlaceholder(scene);
 		}
 
@@ -242,7 +278,14 @@ public class Sculptnect {
 	}
 
 	public void exit(int exitCode) {
-		// Clean up Kinect before exiting
+		// Save the last changes, stop carving and meshing, then clean up
+		// Kinect before exiting
+		try {
+			scene.stopAutosave();
+			TaskScheduler.getShared().shutdown(1000);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
 		cleanup();
 
 		System.exit(exitCode);
@@ -251,7 +294,7 @@ public class Sculptnect {
 	public void cleanup() {
 		// Shut down Kinect
 		if (kinectContext != null) {
-			if (kinect != null) {
+			for (Device kinect : kinects) {
 				kinect.close();
 			}
 		}
@@ -0,0 +1,249 @@
+package sculptnect;
+
+import java.util.Arrays;
+
+/**
+ * Indices of the vertices near chunk borders by their key, in an open
+ * addressing table of flat arrays. The chunks on both sides of a seam build
+ * these vertices for the same cell or edge, so they can be welded into one.
+ * Positions aren't compared, neighboring vertices may have the same one.
+ *
+ * Given the layout of the chunks, a vertex is dropped as soon as every chunk
+ * that may build it is done, so the table only holds the seams of the
+ * chunks still to come.
+ */
+class SeamVertices {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private long[] keys;
+	private int[] indices;
+	private int size;
+
+	// Chunk layout, null if vertices are kept until cleared
+	private final int[] gridSize;
+	private final int chunkSize;
+	private final int[] numChunks;
+	// Whether every chunk is done, and the keys of the vertices waiting for
+	// it otherwise
+	private boolean[] done;
+	private long[][] waiting;
+	private int[] numWaiting;
+
+	private final int[] from = new int[3];
+	private final int[] to = new int[3];
+
+	/**
+	 * Make a table keeping all vertices until cleared.
+	 */
+	SeamVertices() {
+		gridSize = null;
+		chunkSize = 0;
+		numChunks = null;
+		clear();
+	}
+
+	/**
+	 * Make a table for the chunks of the extractor on a grid, see chunkDone.
+	 */
+	SeamVertices(VoxelGrid grid, int chunkSize) {
+		gridSize = new int[] { grid.width, grid.height, grid.depth };
+		this.chunkSize = chunkSize;
+		numChunks = new int[3];
+		for (int k = 0; k < 3; k++) {
+			numChunks[k] = (gridSize[k] - 2) / chunkSize + 1;
+		}
+		clear();
+	}
+
+	/**
+	 * Whether a vertex of a chunk may also be built by a neighbor chunk. That
+	 * is the case for the vertices of the first and last cell of the chunk or
+	 * just outside, every mesher builds the vertices of a cell for the cells
+	 * next to it too.
+	 *
+	 * @param key the key of the vertex
+	 * @param lower the lower cell of the chunk
+	 * @param upper the cell after the upper end of the chunk
+	 */
+	static boolean isBorder(long key, int[] lower, int[] upper) {
+		for (int k = 0; k < 3; k++) {
+			int cell = MeshBuffer.keyCell(key, k);
+			if (cell - 1 < lower[k] || cell + 1 >= upper[k]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forget all vertices and chunks done, keeping the room the vertices
+	 * took.
+	 */
+	void clear() {
+		if (indices == null) {
+			keys = new long[INITIAL_CAPACITY];
+			indices = new int[INITIAL_CAPACITY];
+		}
+		Arrays.fill(indices, -1);
+		size = 0;
+		if (numChunks != null) {
+			int count = numChunks[0] * numChunks[1] * numChunks[2];
+			done = new boolean[count];
+			waiting = new long[count][];
+			numWaiting = new int[count];
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	int get(long key) {
+		int mask = indices.length - 1;
+		for (int slot = hash(key) & mask; indices[slot] >= 0; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				return indices[slot];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Add a vertex built by a chunk not done yet.
+	 */
+	void put(long key, int index) {
+		if ((size + 1) * 2 > indices.length) {
+			grow();
+		}
+		int mask = indices.length - 1;
+		int slot = hash(key) & mask;
+		while (indices[slot] >= 0) {
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		indices[slot] = index;
+		size++;
+
+		if (numChunks != null) {
+			// Let every chunk that may still build the vertex know
+			chunkRange(key);
+			for (int x = from[0]; x <= to[0]; x++) {
+				for (int y = from[1]; y <= to[1]; y++) {
+					for (int z = from[2]; z <= to[2]; z++) {
+						int chunk = (x * numChunks[1] + y) * numChunks[2] + z;
+						if (!done[chunk]) {
+							wait(chunk, key);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Note that a chunk has added all its vertices, and drop those no other
+	 * chunk may build anymore.
+	 *
+	 * @param lower the lower cell of the chunk
+	 */
+	void chunkDone(int[] lower) {
+		int chunk = ((lower[0] / chunkSize) * numChunks[1] + lower[1] / chunkSize) * numChunks[2] + lower[2] / chunkSize;
+		done[chunk] = true;
+		long[] keys = waiting[chunk];
+		for (int i = 0; i < numWaiting[chunk]; i++) {
+			if (isDone(keys[i])) {
+				remove(keys[i]);
+			}
+		}
+		waiting[chunk] = null;
+		numWaiting[chunk] = 0;
+	}
+
+	/**
+	 * Find the chunks holding any of the cells next to the cell of a key.
+	 */
+	private void chunkRange(long key) {
+		for (int k = 0; k < 3; k++) {
+			int cell = MeshBuffer.keyCell(key, k);
+			from[k] = Math.max(1, cell - 1) / chunkSize;
+			to[k] = Math.min(gridSize[k] - 2, cell + 1) / chunkSize;
+		}
+	}
+
+	private boolean isDone(long key) {
+		chunkRange(key);
+		for (int x = from[0]; x <= to[0]; x++) {
+			for (int y = from[1]; y <= to[1]; y++) {
+				for (int z = from[2]; z <= to[2]; z++) {
+					if (!done[(x * numChunks[1] + y) * numChunks[2] + z]) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private void wait(int chunk, long key) {
+		long[] keys = waiting[chunk];
+		if (keys == null) {
+			keys = waiting[chunk] = new long[16];
+		} else if (numWaiting[chunk] == keys.length) {
+			keys = waiting[chunk] = Arrays.copyOf(keys, keys.length * 2);
+		}
+		keys[numWaiting[chunk]++] = key;
+	}
+
+	/**
+	 * Remove a vertex, moving back the ones after it that would no longer be
+	 * found.
+	 */
+	private void remove(long key) {
+		int mask = indices.length - 1;
+		int slot = hash(key) & mask;
+		while (indices[slot] >= 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		if (indices[slot] < 0) {
+			return;
+		}
+
+		indices[slot] = -1;
+		size--;
+		for (int next = (slot + 1) & mask; indices[next] >= 0; next = (next + 1) & mask) {
+			int home = hash(keys[next]) & mask;
+			// Move the entry back unless its home lies between the gap and it
+			if (slot <= next ? (home <= slot || home > next) : (home <= slot && home > next)) {
+				keys[slot] = keys[next];
+				indices[slot] = indices[next];
+				indices[next] = -1;
+				slot = next;
+			}
+		}
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldIndices = indices;
+		keys = new long[oldKeys.length * 2];
+		indices = new int[oldIndices.length * 2];
+		Arrays.fill(indices, -1);
+		int mask = indices.length - 1;
+		for (int old = 0; old < oldIndices.length; old++) {
+			if (oldIndices[old] < 0) {
+				continue;
+			}
+			int slot = hash(oldKeys[old]) & mask;
+			while (indices[slot] >= 0) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = oldKeys[old];
+			indices[slot] = oldIndices[old];
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 29));
+	}
+}
@@ -0,0 +1,207 @@
+package sculptnect;
+
+import java.util.Arrays;
+
+/** Naive surfacenet, one node per cell with an edge crossing. The node is
+ *  pushed a fixed distance towards every side of its voronoi cell that has a
+ *  crossing, which is quick but rudimentary. Nodes are shared by all tris
+ *  around them.
+ */
+public class SurfaceNetMesher implements Mesher {
+	private static final int VERTEX_GRID_OFFSET = 1;// offset of surfacenet cells in grid +2 on each side because chunk updates propagate 2 vertices wider than the actual chunk for better normal calculations
+	private static final float VERTEX_OFFSET = 0.5f;// offset of surfacenet node
+	
+	// Accumulate all tris of a chunk as indices into its nodes. A node gets
+	// its vertex the first time a tri uses it, displaced within its voronoi
+	// cell right away. The displacement only depends on the voxels around
+	// the node, so every box building the node builds the same vertex.
+	//
+	// Every vertex is a vert and a normal.
+	// 3 indices == 1 tri (counter-clockwise)
+	
+	VoxelGrid grid;
+	NormalField normalField;
+	
+	int nodeGridSize;// edge length of the node grid including the border nodes
+	int[] nodeIndices;// vertex index of every node, valid where its generation is the current one
+	int[] nodeGenerations;// generation a node was last added in, older nodes are added again when first used
+	int generation;// bumped for every chunk, so resetting costs nothing up front
+	float[] node = new float[6];// vert + normal of the node being displaced
+	
+	int[] origin = new int[3];// the lower cell begun
+	MeshBuffer mesh;
+	
+	public SurfaceNetMesher (VoxelGrid grid, int chunkSize) {
+		this.grid = grid;
+		
+		// normals are needed for the chunk and its border vertices
+		this.normalField = new NormalField(grid, chunkSize + 2);
+		
+		nodeGridSize = chunkSize + VERTEX_GRID_OFFSET*2;
+		int numNodes = nodeGridSize * nodeGridSize * nodeGridSize;
+		nodeIndices = new int[numNodes];
+		nodeGenerations = new int[numNodes];
+	}
+	
+	@Override
+	public void extract (int[] lower, int[] upper, MeshBuffer mesh) {
+		begin(lower, upper, mesh);
+		extract(lower, upper);
+	}
+	
+	@Override
+	public void begin (int[] lower, int[] upper, MeshBuffer mesh) {
+		this.mesh = mesh;
+		System.arraycopy(lower, 0, origin, 0, 3);
+		
+		// invalidate all surfacenet nodes at once, they're reset when touched
+		if (++generation == 0) {
+			// wrapped around, old stamps could look current
+			Arrays.fill(nodeGenerations, 0);
+			generation = 1;
+		}
+		
+		normalField.prepare(
+			lower[0] - 1, lower[1] - 1, lower[2] - 1,
+			upper[0] + 1, upper[1] + 1, upper[2] + 1);
+	}
+	
+	@Override
+	public void extract (int[] lower, int[] upper) {
+		// build faces, displacing the nodes they use
+		for (int x=lower[0]; x<upper[0]; ++x)
+			for (int y=lower[1]; y<upper[1]; ++y)
+				for (int z=lower[2]; z<upper[2]; ++z)
+					updateVertices(x, y, z);
+	}
+	
+	private void updateVertices (int x, int y, int z) {
+		/*
+		 * Find all relevant edge crossings, ie where a cell transitions from
+		 * matter->air or other way around. An edge crossing means we have two
+		 * adjacent cells with which we can create a tri with its normal
+		 * pointing in the direction of the air voxel.
+		 * 
+		 * Build tris in either strictly positive directions or strictly
+		 * negative. Otherwise adjacent cells will build intersecting tris.
+		 * This means we build in all six orthogonal directions with only six
+		 * different tris facing one of two possible directions - thats a total
+		 * of twelve different tris.
+		 * 
+		 * This means we only have to check half the edges, those originating
+		 * from either c0 (left, down, back) or c7 (right, up, front).
+		 * 
+		 * 
+		 * Interpolating the current cell vertex position:
+		 * 
+		 * - Either do this rudimentary by perhaps just summing up all the
+		 * edges and dividing the resulting vector by the amount of summations
+		 * and multiplying by a factor.
+		 * 
+		 * - Or we can go more along the lines of the original
+		 * surfacenet definition and find position inside the bounds
+		 * of the cell (voronoi cell) and try to minimize the total
+		 * distance to adjacent vertices. Frisken refers to this
+		 * process as relaxation, lowering the energy in the
+		 * surfacenet. This requires a lookup of all six possibly
+		 * adjacent vertices, and also multiple iterations.
+		 * 
+		 * The latter method isnt really real-time feasible.
+		 */
+		
+		// get all corners
+		boolean c0 = ! grid.isAir(x, y, z);// left down back
+		boolean c1 = ! grid.isAir(x+1, y, z);// right down back
+		boolean c2 = ! grid.isAir(x, y+1, z);// left up back
+		boolean c3 = ! grid.isAir(x, y, z+1);// left down up
+		boolean c4 = ! grid.isAir(x+1, y+1, z);// right up back
+		boolean c5 = ! grid.isAir(x+1, y, z+1);// right down front
+		boolean c6 = ! grid.isAir(x, y+1, z+1);// left up front
+		boolean c7 = ! grid.isAir(x+1, y+1, z+1);// right up front
+		
+		// If no relevant edge crossings exist (we mustnt check all)
+		if (c0==c1 && c1==c2 && c2==c3 && c7==c4 && c7==c5 && c7==c6)
+			return;
+
+		if (c0!=c1 || c0!=c2 || c0!=c3) {
+			// generate triangles if the three bottom edges are crossed
+			int i = vertexIndex(x, y, z);
+			if (c0) {
+				if (!c1) mesh.addTriangle(i, vertexIndex(x, y-1, z), vertexIndex(x, y, z-1));// down back
+				if (!c2) mesh.addTriangle(i, vertexIndex(x, y, z-1), vertexIndex(x-1, y, z));// back left
+				if (!c3) mesh.addTriangle(i, vertexIndex(x-1, y, z), vertexIndex(x, y-1, z));// left down
+			}
+			else {
+				if (c1) mesh.addTriangle(i, vertexIndex(x, y, z-1), vertexIndex(x, y-1, z));// back down
+				if (c2) mesh.addTriangle(i, vertexIndex(x-1, y, z), vertexIndex(x, y, z-1));// left back
+				if (c3) mesh.addTriangle(i, vertexIndex(x, y-1, z), vertexIndex(x-1, y, z));// down left
+			}
+		}
+		
+		if (c7!=c4 || c7!=c5 || c7!=c6) {
+			// generate triangles if the three top edges are crossed
+			int i = vertexIndex(x, y, z);
+			if (c7) {
+				if (!c4) mesh.addTriangle(i, vertexIndex(x, y+1, z), vertexIndex(x+1, y, z));// y+1, x+1
+				if (!c5) mesh.addTriangle(i, vertexIndex(x+1, y, z), vertexIndex(x, y, z+1));// x+1, z+1
+				if (!c6) mesh.addTriangle(i, vertexIndex(x, y, z+1), vertexIndex(x, y+1, z));// z+1, y+1
+			}
+			else {
+				if (c4) mesh.addTriangle(i, vertexIndex(x+1, y, z), vertexIndex(x, y+1, z));// x+1, y+1
+				if (c5) mesh.addTriangle(i, vertexIndex(x, y, z+1), vertexIndex(x+1, y, z));// z+1, x+1
+				if (c6) mesh.addTriangle(i, vertexIndex(x, y+1, z), vertexIndex(x, y, z+1));// y+1, z+1
+			}
+		}
+		
+	}
+	
+	/** Get the vertex index of the node of a cell, the node is displaced and
+	 *  added to the mesh the first time it's used.
+	 */
+	private int vertexIndex (int x, int y, int z) {
+		// local coords in the node grid, compensate for offset
+		int vx = x - origin[0] + VERTEX_GRID_OFFSET;
+		int vy = y - origin[1] + VERTEX_GRID_OFFSET;
+		int vz = z - origin[2] + VERTEX_GRID_OFFSET;
+		int n = (vx * nodeGridSize + vy) * nodeGridSize + vz;
+		if (nodeGenerations[n] != generation) {
+			nodeGenerations[n] = generation;
+			displace(x, y, z);
+			nodeIndices[n] = mesh.addVertex(MeshBuffer.key(x, y, z, 0), node[0], node[1], node[2], node[3], node[4], node[5]);
+		}
+		return nodeIndices[n];
+	}
+	
+	/** THE smoothing algorithm for displacing the vert within the voronoi cell
+	 *  of cell (x, y, z), into node
+	 */
+	private void displace (int x, int y, int z) {
+		boolean c0 = ! grid.isAir(x, y, z);// left down back
+		boolean c1 = ! grid.isAir(x+1, y, z);// right down back
+		boolean c2 = ! grid.isAir(x, y+1, z);// left up back
+		boolean c3 = ! grid.isAir(x, y, z+1);// left down up
+		boolean c4 = ! grid.isAir(x+1, y+1, z);// right up back
+		boolean c5 = ! grid.isAir(x+1, y, z+1);// right down front
+		boolean c6 = ! grid.isAir(x, y+1, z+1);// left up front
+		boolean c7 = ! grid.isAir(x+1, y+1, z+1);// right up front
+		
+		float dx = 0, dy = 0, dz = 0;
+		
+		// do local displacement
+		// displace in direction of every cube side with at least one zero crossing
+		final float m = 0.3f;// magnitude
+		if (c0 != c2 || c0 != c3 || c0 != c6) dx -= m;// left
+		if (c0 != c1 || c0 != c3 || c0 != c5) dy -= m;// down
+		if (c0 != c1 || c0 != c2 || c0 != c4) dz -= m;// back
+		if (c7 != c1 || c7 != c4 || c7 != c5) dx += m;// right
+		if (c7 != c2 || c7 != c4 || c7 != c6) dy += m;// up
+		if (c7 != c3 || c7 != c5 || c7 != c6) dz += m;// front
+		
+		node[0] = x + dx + VERTEX_OFFSET;
+		node[1] = y + dy + VERTEX_OFFSET;
+		node[2] = z + dz + VERTEX_OFFSET;
+		
+		// sum of directions to the air voxels among the 125 adjacent ones
+		normalField.normal(x, y, z, node, 3);
+	}
+}
@@ -0,0 +1,217 @@
+package sculptnect;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the short tasks of the whole pipeline, carving as well as extracting
+ * points, meshes and quads, on one set of threads sized to the machine. One
+ * core is left to the GL thread, which draws and uploads the results.
+ *
+ * Tasks are served strictly by class and in submission order within a class.
+ * Carving comes first, then extraction of chunks that are being carved, and
+ * background refreshes last, so that remeshing the whole grid never delays
+ * the sculpture following the hands. Tasks should be short, a single chunk
+ * or a strip of a depth frame, so that a higher class never waits long for a
+ * thread.
+ */
+public class TaskScheduler {
+	public enum Priority {
+		CARVING, MESHING, REFRESH
+	}
+
+	private static TaskScheduler shared;
+
+	/**
+	 * Get the scheduler shared by the whole pipeline. The number of threads
+	 * can be set with the sculptnect.threads property.
+	 */
+	public static synchronized TaskScheduler getShared() {
+		if (shared == null) {
+			int threads = Integer.getInteger("sculptnect.threads", Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+			shared = new TaskScheduler(threads);
+		}
+		return shared;
+	}
+
+	private final ConcurrentLinkedQueue<Runnable>[] queues;
+	private final Semaphore available = new Semaphore(0);
+	private final Thread[] threads;
+	private volatile boolean shutdown;
+
+	// Time spent running tasks and tasks run of every class since the last
+	// reset
+	private final AtomicLong[] busyNanos;
+	private final AtomicLong[] completed;
+	private volatile long resetTime = System.nanoTime();
+
+	@SuppressWarnings("unchecked")
+	public TaskScheduler(int numThreads) {
+		int classes = Priority.values().length;
+		queues = (ConcurrentLinkedQueue<Runnable>[]) new ConcurrentLinkedQueue<?>[classes];
+		busyNanos = new AtomicLong[classes];
+		completed = new AtomicLong[classes];
+		for (int i = 0; i < classes; i++) {
+			queues[i] = new ConcurrentLinkedQueue<Runnable>();
+			busyNanos[i] = new AtomicLong();
+			completed[i] = new AtomicLong();
+		}
+
+		threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "sculptnect-worker-" + i);
+
+			// Never keep the application alive
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	public int getNumThreads() {
+		return threads.length;
+	}
+
+	/**
+	 * Run a task on one of the threads. Tasks submitted after shutdown are
+	 * discarded.
+	 */
+	public void execute(Priority priority, Runnable task) {
+		if (shutdown) {
+			return;
+		}
+
+		// The task must be in the queue before it is announced
+		queues[priority.ordinal()].offer(task);
+		available.release();
+	}
+
+	/**
+	 * Run all tasks and wait for them to finish. Must not be called from a
+	 * task, the tasks might never get a thread otherwise.
+	 */
+	public void invokeAll(Priority priority, List<? extends Runnable> tasks) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(tasks.size());
+		for (final Runnable task : tasks) {
+			execute(priority, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		// Tasks discarded on shutdown never count down
+		while (!done.await(100, TimeUnit.MILLISECONDS)) {
+			if (shutdown) {
+				throw new InterruptedException("Scheduler shut down");
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting tasks and stop the threads once their current tasks are
+	 * done. Tasks still queued are discarded.
+	 *
+	 * @return whether all threads stopped in time
+	 */
+	public boolean shutdown(long timeoutMillis) throws InterruptedException {
+		shutdown = true;
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (Thread thread : threads) {
+			long timeLeft = deadline - System.currentTimeMillis();
+			if (timeLeft <= 0) {
+				return false;
+			}
+			thread.join(timeLeft);
+			if (thread.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Get the fraction of the threads' time spent on tasks of a class since
+	 * the last reset.
+	 */
+	public float getUtilization(Priority priority) {
+		long elapsed = System.nanoTime() - resetTime;
+		return elapsed <= 0 ? 0.0f : (float) busyNanos[priority.ordinal()].get() / elapsed / threads.length;
+	}
+
+	public void reset() {
+		for (int i = 0; i < queues.length; i++) {
+			busyNanos[i].set(0);
+			completed[i].set(0);
+		}
+		resetTime = System.nanoTime();
+	}
+
+	private void work() {
+		while (!shutdown) {
+			try {
+				available.acquire();
+			} catch (InterruptedException e) {
+				// Woken up to shut down
+				continue;
+			}
+
+			// Every permit has a matching task, but another thread may take
+			// the one seen first, so keep looking until one is found
+			Runnable task = null;
+			int priority = 0;
+			while (task == null) {
+				for (priority = 0; priority < queues.length; priority++) {
+					task = queues[priority].poll();
+					if (task != null) {
+						break;
+					}
+				}
+			}
+
+			long start = System.nanoTime();
+			try {
+				task.run();
+			} catch (Throwable e) {
+				// Keep the thread for the other tasks
+				e.printStackTrace();
+			}
+			busyNanos[priority].addAndGet(System.nanoTime() - start);
+			completed[priority].incrementAndGet();
+
+			// An interrupt meant to end the wait must not hit the next task,
+			// shutdown is checked by the loop
+			Thread.interrupted();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(String.format("Scheduler: %d threads", threads.length));
+		for (Priority priority : Priority.values()) {
+			builder.append(String.format(", %s %.1f%% (%d tasks)", priority.name().toLowerCase(), getUtilization(priority) * 100.0f, completed[priority.ordinal()].get()));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,85 @@
+package sculptnect;
+
+/**
+ * Decides how much the renders may upload to the GPU in a frame. The time the
+ * rest of the frame leaves over is spent on uploads, converted to bytes at the
+ * measured upload rate and compared to the measured size of a result. Only
+ * the GL thread uses it.
+ *
+ * At least one result is uploaded every frame, so a render keeps catching up
+ * however slow the frames are.
+ */
+public class UploadBudget {
+	// Frame time aimed for, the animator runs at 60 fps
+	private static final long TARGET_FRAME_NANOS = 1000000000L / 60;
+	// Limits of the time spent on uploads in a frame
+	private static final long MIN_UPLOAD_NANOS = 1000000L;
+	private static final long MAX_UPLOAD_NANOS = TARGET_FRAME_NANOS / 2;
+	// Weight of the newest measurement in the running averages
+	private static final float SMOOTHING = 0.1f;
+
+	// Running averages of the frame time without uploads, the upload rate
+	// and the size of an upload, starting from rough guesses
+	private float workNanos = TARGET_FRAME_NANOS / 2;
+	private float bytesPerNano = 1.0f;
+	private float bytesPerUpload = 64 * 1024;
+
+	// The frame in progress
+	private long frameStart;
+	private long budgetBytes;
+	private long spentBytes;
+	private long spentNanos;
+	private int uploads;
+
+	/**
+	 * Start a frame, before anything is uploaded or drawn.
+	 */
+	public void beginFrame() {
+		frameStart = System.nanoTime();
+		long nanos = Math.max(MIN_UPLOAD_NANOS, Math.min(MAX_UPLOAD_NANOS, TARGET_FRAME_NANOS - (long) workNanos));
+		budgetBytes = (long) (nanos * bytesPerNano);
+		spentBytes = 0;
+		spentNanos = 0;
+		uploads = 0;
+	}
+
+	/**
+	 * End a frame, once everything is drawn.
+	 */
+	public void endFrame() {
+		if (frameStart == 0) {
+			return;
+		}
+		long work = System.nanoTime() - frameStart - spentNanos;
+		workNanos += (Math.max(0, work) - workNanos) * SMOOTHING;
+	}
+
+	/**
+	 * Whether another upload of the usual size fits into this frame.
+	 */
+	public boolean hasRoom() {
+		return uploads == 0 || spentBytes + bytesPerUpload <= budgetBytes;
+	}
+
+	/**
+	 * Account for an upload.
+	 *
+	 * @param bytes the size of the upload
+	 * @param nanos the time it took
+	 */
+	public void spend(long bytes, long nanos) {
+		spentBytes += bytes;
+		spentNanos += nanos;
+		uploads++;
+
+		bytesPerUpload += (bytes - bytesPerUpload) * SMOOTHING;
+		if (nanos > 0 && bytes > 0) {
+			bytesPerNano += ((float) bytes / nanos - bytesPerNano) * SMOOTHING;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Uploads: %.1f ms per frame besides %.1f ms of other work, %.0f MB/s, %.1f KB per upload", budgetBytes / bytesPerNano / 1e6, workNanos / 1e6, bytesPerNano * 1000.0f, bytesPerUpload / 1024.0f);
+	}
+}
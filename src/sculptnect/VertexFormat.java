@@ -0,0 +1,92 @@
+package sculptnect;
+
+import java.nio.ByteBuffer;
+
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * Layout of the vertices the renders upload. Positions are stored relative to
+ * the origin of their chunk, so the renders translate to the origin before
+ * drawing a chunk.
+ *
+ * FLOAT stores positions and normals as three floats each. COMPACT stores
+ * positions as four shorts, x, y and z in fixed point with the scale as the w
+ * coordinate, so the division by w undoes the scaling without touching the
+ * normals. Normals are stored as three bytes padded to four, which the normal
+ * array maps to [-1, 1] by itself.
+ */
+public enum VertexFormat {
+	FLOAT(Buffers.SIZEOF_FLOAT * 6), //
+	COMPACT(Buffers.SIZEOF_SHORT * 4 + 4);
+
+	// Fixed point scale of compact positions, leaves 7 bits for the integer
+	// part of chunk relative positions
+	private static final int POSITION_SCALE = 256;
+	private static final float NORMAL_SCALE = 127.0f;
+
+	// Size of a vertex in bytes
+	public final int stride;
+
+	private VertexFormat(int stride) {
+		this.stride = stride;
+	}
+
+	/**
+	 * Append a vertex, the position given relative to the chunk origin.
+	 */
+	public void put(ByteBuffer buffer, float x, float y, float z, float nx, float ny, float nz) {
+		switch (this) {
+		case FLOAT:
+			buffer.putFloat(x).putFloat(y).putFloat(z);
+			buffer.putFloat(nx).putFloat(ny).putFloat(nz);
+			break;
+		case COMPACT:
+			buffer.putShort((short) Math.round(x * POSITION_SCALE));
+			buffer.putShort((short) Math.round(y * POSITION_SCALE));
+			buffer.putShort((short) Math.round(z * POSITION_SCALE));
+			buffer.putShort((short) POSITION_SCALE);
+			buffer.put((byte) Math.round(nx * NORMAL_SCALE));
+			buffer.put((byte) Math.round(ny * NORMAL_SCALE));
+			buffer.put((byte) Math.round(nz * NORMAL_SCALE));
+			buffer.put((byte) 0);
+			break;
+		}
+	}
+
+	/**
+	 * Read back the chunk relative position of a vertex.
+	 */
+	public void getPosition(ByteBuffer buffer, int vertex, float[] position) {
+		int i = vertex * stride;
+		switch (this) {
+		case FLOAT:
+			position[0] = buffer.getFloat(i);
+			position[1] = buffer.getFloat(i + Buffers.SIZEOF_FLOAT);
+			position[2] = buffer.getFloat(i + Buffers.SIZEOF_FLOAT * 2);
+			break;
+		case COMPACT:
+			position[0] = (float) buffer.getShort(i) / POSITION_SCALE;
+			position[1] = (float) buffer.getShort(i + Buffers.SIZEOF_SHORT) / POSITION_SCALE;
+			position[2] = (float) buffer.getShort(i + Buffers.SIZEOF_SHORT * 2) / POSITION_SCALE;
+			break;
+		}
+	}
+
+	/**
+	 * Point the vertex and normal arrays at the bound buffer object.
+	 */
+	public void setPointers(GL2 gl) {
+		switch (this) {
+		case FLOAT:
+			gl.glVertexPointer(3, GL2.GL_FLOAT, stride, 0);
+			gl.glNormalPointer(GL2.GL_FLOAT, stride, Buffers.SIZEOF_FLOAT * 3);
+			break;
+		case COMPACT:
+			gl.glVertexPointer(4, GL2.GL_SHORT, stride, 0);
+			gl.glNormalPointer(GL2.GL_BYTE, stride, Buffers.SIZEOF_SHORT * 4);
+			break;
+		}
+	}
+}
@@ -1,5 +1,15 @@
 package sculptnect;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import javax.media.opengl.GL2;
 import javax.vecmath.Tuple3i;
 
@@ -10,16 +20,69 @@ public class VoxelGrid {
 	public static final byte VOXEL_GRID_AIR = 0;
 	public static final byte VOXEL_GRID_CLAY = 1;
 	
-	public byte[][][] _voxels;
+	// Edge length of the bricks the voxels are kept in, each in order of x,
+	// y and z. Bricks are shared with snapshots until written
+	static final int BRICK_SHIFT = 4;
+	static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+	static final int BRICK_VOXELS = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+	private static final int BRICK_MASK = BRICK_SIZE - 1;
+
+	// Shared by all grids for bricks never written, so it's all air
+	private static final byte[] AIR_BRICK = new byte[BRICK_VOXELS];
+
+	private byte[][] bricks;
+	private final int bricksY, bricksZ;
+	// The epoch every brick was last copied in. A grid writes a brick in
+	// place only during the epoch it copied the brick in, every snapshot
+	// starts a new one
+	private final AtomicIntegerArray brickEpochs;
+	private int epoch = 1;
 	
-	private boolean renderGrid = true;
-	private boolean renderMesh = false;
-	private boolean switchRender = false;
+	private volatile boolean renderGrid = true;
+	private volatile boolean renderMesh = false;
+	private volatile boolean renderQuads = false;
+	private final AtomicBoolean switchRender = new AtomicBoolean();
 	
 	int width, height, depth;
 
+	// Remeshing priorities, recently carved regions come first and bulk
+	// refreshes fill in behind them, both ordered by distance to the viewer
+	public static final int DISTANCE_PRIORITIES = 4;
+	public static final int PRIORITIES = DISTANCE_PRIORITIES * 2;
+
+	// The viewer position in grid coordinates
+	private volatile float viewX, viewY, viewZ;
+
 	VoxelGridRender render;
 	VoxelMeshRender meshRender;
+	VoxelQuadRender quadRender;
+
+	// Shared by the renders, only the active one uploads
+	final UploadBudget uploadBudget = new UploadBudget();
+
+	// Editors share the read lock from beginEditing to endEditing, so the
+	// write lock waits for a boundary between batches
+	final ReentrantReadWriteLock editLock = new ReentrantReadWriteLock();
+
+	// The grid as of the last boundary between batches, meshed by the mesh
+	// and quad renders
+	private volatile VoxelGrid view;
+	// Whether bricks were written since the view was taken
+	private volatile boolean viewOutdated;
+	// Whether an editor wants the view taken, and left it to whoever holds
+	// up the write lock
+	private volatile boolean viewWanted;
+	// Whether the render switched to has to catch up with the next view
+	private volatile boolean catchUpWanted;
+	// Bits per brick of the grid file changed since their owners, such as
+	// the autosave and the history, last took them
+	private volatile AtomicLongArray[] brickTrackers = {};
+
+	// Undo and redo, null if not kept
+	private volatile History history;
+
+	// The export in progress or the last one
+	private ExportJob exportJob;
 
 	public static int[][] offsets = {
 			//
@@ -36,66 +99,519 @@ public class VoxelGrid {
 	}
 
 	public VoxelGrid(int width, int height, int depth) {
+		this(width, height, depth, true);
+	}
+
+	/**
+	 * @param renders whether to create the renders, grids without are only
+	 *            copies for reading and saving
+	 */
+	VoxelGrid(int width, int height, int depth, boolean renders) {
 		this.width = width;
 		this.height = height;
 		this.depth = depth;
-		_voxels = new byte[width][height][depth];
+		bricksY = (height + BRICK_MASK) >> BRICK_SHIFT;
+		bricksZ = (depth + BRICK_MASK) >> BRICK_SHIFT;
+		bricks = new byte[((width + BRICK_MASK) >> BRICK_SHIFT) * bricksY * bricksZ][];
+		Arrays.fill(bricks, AIR_BRICK);
+		brickEpochs = new AtomicIntegerArray(bricks.length);
+		if (!renders) {
+			return;
+		}
+		view = share();
 
 		// Create render
 		render = new VoxelGridRender(this);
 		meshRender = new VoxelMeshRender(this);
+		quadRender = new VoxelQuadRender(this);
+
+		// The inactive renders have built nothing yet, they build everything
+		// when first switched to
+		meshRender.invalidate();
+		quadRender.invalidate();
 	}
 
 	public byte getVoxel(int x, int y, int z) {
-		return _voxels[x][y][z];
+		return bricks[brickIndex(x, y, z)][voxelIndex(x, y, z)];
 	}
 
 	public void setVoxel(int x, int y, int z, byte value) {
-		// Inform render that this voxel changed
-		if (renderGrid) render.markVoxelDirty(x, y, z);
-		if (renderMesh) meshRender.markVoxelDirty(x, y, z);
+		// Writes that don't change anything must not dirty the renders,
+		// overlapping carves hit the same voxels many times per frame
+		int brick = brickIndex(x, y, z);
+		int voxel = voxelIndex(x, y, z);
+		if (bricks[brick][voxel] == value) {
+			return;
+		}
+
+		// Inform renders that this voxel changed, only after writing it so a
+		// worker picking up the change can't see the old value. Inactive
+		// renders are informed too, they keep the changes as a backlog and
+		// catch up on just those when switched to
+		writableBrick(brick)[voxel] = value;
+		markChangedBrick(brick);
+		render.markVoxelDirty(x, y, z);
+		meshRender.markVoxelDirty(x, y, z);
+		quadRender.markVoxelDirty(x, y, z);
+	}
 
-		_voxels[x][y][z] = value;
+	/**
+	 * Remove a voxel eroded by the point render, which has already taken care
+	 * of its own cells. The render erodes outside of any batch, so the removal
+	 * is a little batch of its own. The render's task must not wait for
+	 * snapshots, the voxel is left for later while one is taken.
+	 *
+	 * @return whether the voxel was removed
+	 */
+	boolean removeLooseVoxel(int x, int y, int z) {
+		if (!editLock.readLock().tryLock()) {
+			return false;
+		}
+		try {
+			int brick = brickIndex(x, y, z);
+			writableBrick(brick)[voxelIndex(x, y, z)] = VOXEL_GRID_AIR;
+			markChangedBrick(brick);
+		} finally {
+			editLock.readLock().unlock();
+		}
+		meshRender.markVoxelDirty(x, y, z);
+		quadRender.markVoxelDirty(x, y, z);
+		viewWanted = true;
+		publishView();
+		return true;
 	}
 
 	public boolean isAir(int x, int y, int z) {
-		return _voxels[x][y][z] == VOXEL_GRID_AIR;
+		return bricks[brickIndex(x, y, z)][voxelIndex(x, y, z)] == VOXEL_GRID_AIR;
+	}
+
+	private int brickIndex(int x, int y, int z) {
+		return ((x >> BRICK_SHIFT) * bricksY + (y >> BRICK_SHIFT)) * bricksZ + (z >> BRICK_SHIFT);
+	}
+
+	private static int voxelIndex(int x, int y, int z) {
+		return (x & BRICK_MASK) << (BRICK_SHIFT * 2) | (y & BRICK_MASK) << BRICK_SHIFT | (z & BRICK_MASK);
+	}
+
+	// Get a brick to write to, copied first if snapshots may share it
+	private byte[] writableBrick(int brick) {
+		if (brickEpochs.get(brick) == epoch) {
+			return bricks[brick];
+		}
+
+		// Concurrent editors may write the same brick, only one copies it.
+		// The copy is stored before its epoch, which is what the others look
+		// at first
+		synchronized (brickEpochs) {
+			if (brickEpochs.get(brick) != epoch) {
+				bricks[brick] = bricks[brick].clone();
+				brickEpochs.set(brick, epoch);
+				viewOutdated = true;
+			}
+			return bricks[brick];
+		}
+	}
+
+	/**
+	 * Copy the voxels of a brick, given by its index in the grid file, in
+	 * order of x, y and z.
+	 *
+	 * @return the number of voxels, fewer than a whole brick on the far
+	 *         sides of the grid
+	 */
+	int getBrick(int brick, byte[] voxels) {
+		int[] lower = new int[3];
+		int[] upper = new int[3];
+		GridFile.brickBounds(this, brick, lower, upper);
+		int sx = upper[0] - lower[0], sy = upper[1] - lower[1], sz = upper[2] - lower[2];
+		if (sx == BRICK_SIZE && sy == BRICK_SIZE && sz == BRICK_SIZE) {
+			System.arraycopy(bricks[brick], 0, voxels, 0, BRICK_VOXELS);
+			return BRICK_VOXELS;
+		}
+
+		byte[] source = bricks[brick];
+		int i = 0;
+		for (int x = 0; x < sx; x++) {
+			for (int y = 0; y < sy; y++, i += sz) {
+				System.arraycopy(source, (x * BRICK_SIZE + y) * BRICK_SIZE, voxels, i, sz);
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Overwrite the voxels of a brick, as got by getBrick, without informing
+	 * anyone. For grids without renders, such as loaded ones.
+	 */
+	void setBrick(int brick, byte[] voxels) {
+		int[] lower = new int[3];
+		int[] upper = new int[3];
+		GridFile.brickBounds(this, brick, lower, upper);
+		int sx = upper[0] - lower[0], sy = upper[1] - lower[1], sz = upper[2] - lower[2];
+		byte[] target = writableBrick(brick);
+		if (sx == BRICK_SIZE && sy == BRICK_SIZE && sz == BRICK_SIZE) {
+			System.arraycopy(voxels, 0, target, 0, BRICK_VOXELS);
+			return;
+		}
+
+		int i = 0;
+		for (int x = 0; x < sx; x++) {
+			for (int y = 0; y < sy; y++, i += sz) {
+				System.arraycopy(voxels, i, target, (x * BRICK_SIZE + y) * BRICK_SIZE, sz);
+			}
+		}
+	}
+
+	// Take over a brick of another grid, both copy it before writing
+	private void shareBrick(VoxelGrid source, int brick) {
+		bricks[brick] = source.bricks[brick];
+		brickEpochs.set(brick, 0);
+		source.brickEpochs.set(brick, 0);
+	}
+
+	/**
+	 * Make a grid without renders read the voxels of another grid, such as a
+	 * view. The bricks are shared, so it must not be written.
+	 */
+	void readFrom(VoxelGrid source) {
+		bricks = source.bricks;
 	}
 	
+	/**
+	 * Begin a batch of voxel changes. Several editors, such as depth sources,
+	 * may edit the grid concurrently, they only keep snapshots from being
+	 * taken between begin and end. Every begin must be followed by an end on
+	 * the same thread.
+	 */
 	public void beginEditing() {
-		if (switchRender) {
-			switchRender = false;
-			renderGrid = !renderGrid;
-			renderMesh = !renderMesh;
+		editLock.readLock().lock();
+		if (switchRender.compareAndSet(true, false)) {
+			// Cycle from points to mesh to quads
+			boolean quads = renderMesh;
+			renderMesh = renderGrid;
+			renderGrid = renderQuads;
+			renderQuads = quads;
 			if (renderGrid) {
-				render.refresh();
+				render.catchUp();
 			} else {
-				meshRender.refresh();
+				// Other batches may be under way, the changes they marked
+				// are only in the next view
+				catchUpWanted = true;
 			}
-		}		
-
-		if (renderGrid) render.beginVoxelMarking();
-		if (renderMesh) meshRender.beginVoxelMarking();
+		}
 	}
 	
 	public void endEditing() {
-		if (renderGrid) render.endVoxelMarking();
-		if (renderMesh) meshRender.endVoxelMarking();
+		try {
+			// The point render reads the grid itself, the others read the
+			// view once it's taken
+			if (renderGrid) render.endVoxelMarking();
+		} finally {
+			editLock.readLock().unlock();
+		}
+		viewWanted = true;
+		publishView();
+
+		History history = this.history;
+		if (history != null) {
+			history.endBatch();
+		}
+	}
+
+	/**
+	 * Get the grid as of the last boundary between batches that changed it.
+	 * The view is read only and never changes, later changes go to copies of
+	 * the bricks they write.
+	 */
+	public VoxelGrid getView() {
+		return view;
+	}
+
+	// Take the view wanted by an editor, unless an editor is still in a
+	// batch. The last one to end a batch or any removal after takes it then,
+	// so editors never wait for each other
+	private void publishView() {
+		if (!viewWanted || !editLock.writeLock().tryLock()) {
+			return;
+		}
+		try {
+			viewWanted = false;
+			updateView();
+		} finally {
+			editLock.writeLock().unlock();
+		}
+	}
+
+	// Take a new view if anything changed and hand the chunks marked so far
+	// over to the mesh and quad renders, between batches
+	private void updateView() {
+		if (viewOutdated) {
+			viewOutdated = false;
+			view = share();
+		}
+
+		if (catchUpWanted) {
+			catchUpWanted = false;
+			if (renderMesh) meshRender.catchUp();
+			if (renderQuads) quadRender.catchUp();
+		} else {
+			if (renderMesh) meshRender.endVoxelMarking();
+			if (renderQuads) quadRender.endVoxelMarking();
+		}
+	}
+
+	// Make a grid sharing all bricks and start a new epoch, so they're copied
+	// before they're written. Editors must be held off
+	private VoxelGrid share() {
+		VoxelGrid copy = new VoxelGrid(width, height, depth, false);
+		System.arraycopy(bricks, 0, copy.bricks, 0, bricks.length);
+		epoch++;
+		return copy;
+	}
+
+	/**
+	 * Copy the grid as it is between two batches of changes, without any
+	 * renders. Editors are held up for a moment only, the copy shares all
+	 * bricks with the grid until either writes them.
+	 */
+	public VoxelGrid snapshot() {
+		editLock.writeLock().lock();
+		try {
+			return share();
+		} finally {
+			editLock.writeLock().unlock();
+		}
+	}
+
+	private void markChangedBrick(int brick) {
+		for (AtomicLongArray bricks : brickTrackers) {
+			markBit(bricks, brick);
+		}
+	}
+
+	private static void markBit(AtomicLongArray bits, int index) {
+		long bit = 1L << (index & 63);
+		long word;
+		do {
+			word = bits.get(index >> 6);
+			if ((word & bit) != 0) {
+				return;
+			}
+		} while (!bits.compareAndSet(index >> 6, word, word | bit));
+	}
+
+	/**
+	 * Start noting which bricks of the grid file change.
+	 *
+	 * @return the bit per brick changed from now on, to pass to
+	 *         takeChangedBricks
+	 */
+	AtomicLongArray trackBricks() {
+		editLock.writeLock().lock();
+		try {
+			AtomicLongArray bricks = new AtomicLongArray((GridFile.numBricks(this) + 63) / 64);
+			AtomicLongArray[] trackers = Arrays.copyOf(brickTrackers, brickTrackers.length + 1);
+			trackers[trackers.length - 1] = bricks;
+			brickTrackers = trackers;
+			return bricks;
+		} finally {
+			editLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Copy the bricks changed since the last call, at a boundary between
+	 * batches, and start over.
+	 *
+	 * @param bricks the bits of the changes, as returned by trackBricks
+	 * @return the voxels of the changed bricks by their index, as gathered
+	 *         by GridFile
+	 */
+	Map<Integer, byte[]> takeChangedBricks(AtomicLongArray bricks) {
+		Map<Integer, byte[]> result = new LinkedHashMap<Integer, byte[]>();
+		byte[] voxels = new byte[GridFile.BRICK_VOXELS];
+		editLock.writeLock().lock();
+		try {
+			for (int i = 0; i < bricks.length(); i++) {
+				for (long bits = bricks.getAndSet(i, 0); bits != 0; bits &= bits - 1) {
+					int brick = i * 64 + Long.numberOfTrailingZeros(bits);
+					result.put(brick, Arrays.copyOf(voxels, GridFile.gather(this, brick, voxels)));
+				}
+			}
+		} finally {
+			editLock.writeLock().unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * Take over bricks from a grid of the same size, such as the base of the
+	 * history, dirtying only the cells and chunks they cover.
+	 *
+	 * @param tracker the changed bricks of the caller, which knows of these
+	 *            changes already
+	 */
+	void restoreBricks(VoxelGrid source, int[] bricks, AtomicLongArray tracker) {
+		int[] lower = new int[3];
+		int[] upper = new int[3];
+		editLock.writeLock().lock();
+		try {
+			AtomicLongArray[] trackers = brickTrackers;
+			for (int brick : bricks) {
+				GridFile.brickBounds(this, brick, lower, upper);
+				shareBrick(source, brick);
+				for (AtomicLongArray changed : trackers) {
+					if (changed != tracker) {
+						markBit(changed, brick);
+					}
+				}
+
+				render.markRegionDirty(lower, upper);
+				meshRender.markRegionDirty(lower, upper);
+				quadRender.markRegionDirty(lower, upper);
+			}
+
+			viewOutdated = true;
+			if (renderGrid) render.endVoxelMarking();
+			updateView();
+		} finally {
+			editLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Keep the changes from now on for undo and redo.
+	 *
+	 * @param budget the memory kept for the changes in bytes, the oldest are
+	 *            forgotten beyond
+	 * @param stepMillis the time carving goes into one step at most
+	 */
+	public void enableHistory(long budget, long stepMillis) {
+		if (history == null) {
+			history = new History(this, budget, stepMillis);
+		}
+	}
+
+	/**
+	 * Take back the last step of the history, if any.
+	 *
+	 * @return whether there was a step to undo
+	 */
+	public boolean undo() throws InterruptedException {
+		History history = this.history;
+		return history != null && history.undo();
+	}
+
+	/**
+	 * Make the last step undone again, if nothing was changed since.
+	 *
+	 * @return whether there was a step to redo
+	 */
+	public boolean redo() throws InterruptedException {
+		History history = this.history;
+		return history != null && history.redo();
+	}
+
+	public History getHistory() {
+		return history;
+	}
+
+	// Close the step of the history in progress, so the operation about to
+	// start or just done is a step of its own
+	private void commitHistory() {
+		History history = this.history;
+		if (history != null) {
+			history.commit();
+		}
 	}
 	
+	public void setViewPoint(float x, float y, float z) {
+		viewX = x;
+		viewY = y;
+		viewZ = z;
+	}
+
+	/**
+	 * Get the remeshing priority of a region, where 0 is the highest.
+	 * 
+	 * @param x center of the region
+	 * @param y center of the region
+	 * @param z center of the region
+	 * @param background whether the region is part of a bulk refresh rather
+	 *            than a recent change
+	 */
+	public int priority(float x, float y, float z, boolean background) {
+		float dx = x - viewX;
+		float dy = y - viewY;
+		float dz = z - viewZ;
+		float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+		// Spread the distances to the nearest and farthest possible point of
+		// the grid over the priorities
+		float cx = width * 0.5f - viewX;
+		float cy = height * 0.5f - viewY;
+		float cz = depth * 0.5f - viewZ;
+		float center = (float) Math.sqrt(cx * cx + cy * cy + cz * cz);
+		float radius = (float) Math.sqrt(width * width + height * height + depth * depth) * 0.5f;
+		float near = Math.max(0.0f, center - radius);
+
+		int priority = (int) ((distance - near) / (center + radius - near) * DISTANCE_PRIORITIES);
+		priority = Math.max(0, Math.min(DISTANCE_PRIORITIES - 1, priority));
+		return background ? DISTANCE_PRIORITIES + priority : priority;
+	}
+
 	public void toggleRenderMode() {
-		switchRender = true;
+		switchRender.set(true);
+	}
+
+	/**
+	 * Switch the renders between full and compact vertices, rebuilding the
+	 * active render in the background and the others once switched to.
+	 * 
+	 * @return the new vertex format
+	 */
+	public VertexFormat toggleVertexFormat() {
+		VertexFormat format = render.vertexFormat == VertexFormat.FLOAT ? VertexFormat.COMPACT : VertexFormat.FLOAT;
+		render.vertexFormat = format;
+		meshRender.vertexFormat = format;
+		quadRender.vertexFormat = format;
+
+		if (renderGrid) render.refresh(); else render.invalidate();
+		if (renderMesh) meshRender.refresh(); else meshRender.invalidate();
+		if (renderQuads) quadRender.refresh(); else quadRender.invalidate();
+		return format;
+	}
+	
+	/**
+	 * Switch the mesh render to the next mesher, rebuilding it in the
+	 * background if it's active or once it's switched to.
+	 * 
+	 * @return the new mesher
+	 */
+	public Mesher.Type cycleMesher() {
+		Mesher.Type mesher = meshRender.mesherType.next();
+		meshRender.mesherType = mesher;
+
+		if (renderMesh) meshRender.refresh(); else meshRender.invalidate();
+		return mesher;
 	}
 	
 	public void clear() {
-		// Iterate through all voxels and set them all to air
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				for (int z = 0; z < depth; z++) {
-					setVoxel(x, y, z, VOXEL_GRID_AIR);
+		commitHistory();
+		beginEditing();
+		try {
+			// Iterate through all voxels and set them all to air
+			for (int x = 0; x < width; x++) {
+				for (int y = 0; y < height; y++) {
+					for (int z = 0; z < depth; z++) {
+						setVoxel(x, y, z, VOXEL_GRID_AIR);
+					}
 				}
 			}
+		} finally {
+			endEditing();
 		}
+		commitHistory();
 	}
 
 	public void insertShape(ShapeGenerator generator) {
@@ -110,38 +626,114 @@ public class VoxelGrid {
 		int zmin = Math.max(0, center.z - size.z / 2);
 		int zmax = Math.min(depth, center.z + size.z / 2);
 
+		commitHistory();
 		beginEditing();
-		// Iterate through the bounds and insert generated value
-		for (int x = xmin; x < xmax; x++) {
-			for (int y = ymin; y < ymax; y++) {
-				for (int z = zmin; z < zmax; z++) {
-					byte value = generator.valueForVoxel(x, y, z);
-					if (value != VOXEL_GRID_NO_CHANGE) {
-						setVoxel(x, y, z, value);
+		try {
+			// Iterate through the bounds and insert generated value
+			for (int x = xmin; x < xmax; x++) {
+				for (int y = ymin; y < ymax; y++) {
+					for (int z = zmin; z < zmax; z++) {
+						byte value = generator.valueForVoxel(x, y, z);
+						if (value != VOXEL_GRID_NO_CHANGE) {
+							setVoxel(x, y, z, value);
+						}
 					}
 				}
 			}
+		} finally {
+			endEditing();
 		}
-		endEditing();
+		commitHistory();
 	}
 
 	public void draw(GL2 gl) {
 		if (renderGrid) render.updateDirtyCells(gl);
 		if (renderMesh) meshRender.updateDirtyChunks(gl);
+		if (renderQuads) quadRender.updateDirtyChunks(gl);
 
 		if (renderGrid) render.draw(gl);
 		if (renderMesh) meshRender.draw(gl);
-		
-		if (dump) {
-			dump = false;
-			meshRender.dump(gl);
-		}
+		if (renderQuads) quadRender.draw(gl);
 	}
 	
-	private boolean dump = false;
-	
-	public void dumpMesh() {
-		if (renderMesh)
-			dump = true;
+	/**
+	 * Save the sculpture as it is between two batches of changes, carving
+	 * goes on meanwhile.
+	 */
+	public void save(File file) throws IOException, InterruptedException {
+		new GridFile().write(snapshot(), file);
+	}
+
+	/**
+	 * Replace the sculpture by one saved before, of the same size. The file
+	 * is decoded first, editors are only held up while it's copied in.
+	 */
+	public void load(File file) throws IOException, InterruptedException {
+		restore(new GridFile().read(file));
+	}
+
+	/**
+	 * Replace the sculpture by a grid of the same size, such as a loaded or
+	 * recovered one. The bricks are shared, not copied.
+	 */
+	public void restore(VoxelGrid saved) throws IOException {
+		if (saved.width != width || saved.height != height || saved.depth != depth) {
+			throw new IOException(String.format("Grid of %dx%dx%d instead of %dx%dx%d", saved.width, saved.height, saved.depth, width, height, depth));
+		}
+
+		commitHistory();
+		editLock.writeLock().lock();
+		try {
+			// Every brick may have changed
+			for (int brick = 0; brick < bricks.length; brick++) {
+				shareBrick(saved, brick);
+				markChangedBrick(brick);
+			}
+
+			viewOutdated = true;
+			updateView();
+			if (renderGrid) render.refresh(); else render.invalidate();
+			if (renderMesh) meshRender.refresh(); else meshRender.invalidate();
+			if (renderQuads) quadRender.refresh(); else quadRender.invalidate();
+		} finally {
+			editLock.writeLock().unlock();
+		}
+		commitHistory();
+	}
+
+	public void printStatistics() {
+		System.out.println(uploadBudget);
+		System.out.println(render.statistics);
+		System.out.println(meshRender.statistics);
+		System.out.println(quadRender.statistics);
+		if (history != null) {
+			System.out.println(history);
+		}
+		synchronized (this) {
+			if (exportJob != null) {
+				System.out.println(exportJob);
+			}
+		}
+	}
+
+	/**
+	 * Export the sculpture as it is now in the background, or cancel the
+	 * export in progress. The file is given by the sculptnect.export property
+	 * and its extension gives the format, binary PLY by default. The surface
+	 * is decimated to sculptnect.export.triangles triangles or within
+	 * sculptnect.export.error voxels, if either is set.
+	 */
+	public synchronized void dumpMesh() {
+		if (exportJob != null && !exportJob.isDone()) {
+			exportJob.cancel();
+			return;
+		}
+
+		File file = new File(System.getProperty("sculptnect.export", "sculpture.ply"));
+		int triangles = Integer.getInteger("sculptnect.export.triangles", 0);
+		float error = Float.parseFloat(System.getProperty("sculptnect.export.error", "0"));
+		MeshDecimator decimator = triangles > 0 || error > 0.0f ? new MeshDecimator(triangles, error) : null;
+		exportJob = new ExportJob(this, meshRender.mesherType, file, decimator);
+		exportJob.start();
 	}
 }
@@ -2,15 +2,13 @@ package sculptnect;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
@@ -18,28 +16,56 @@ import javax.vecmath.Point3i;
 import javax.vecmath.Tuple3i;
 import javax.vecmath.Vector3f;
 
-import com.jogamp.common.nio.Buffers;
-
 public class VoxelGridRender {
 	private static final int CELL_SIZE = 20;
-	private static final int NUM_THREADS = 8;
+
+	// Words of a bit set with one bit per voxel of a cell
+	private static final int VOXEL_WORDS = (CELL_SIZE * CELL_SIZE * CELL_SIZE + 63) / 64;
 
 	VoxelGrid grid;
 	BufferCell[][][] bufferCells;
-	Set<BufferCell> dirtyCells = Collections.synchronizedSet(new HashSet<BufferCell>());
+	WorkQueue<BufferCell> dirtyCells = new WorkQueue<BufferCell>(new WorkQueue.Flag<BufferCell>() {
+		@Override
+		public AtomicInteger queued(BufferCell x) {
+			return x.dirty;
+		}
+	});
 	Set<BufferCell> visibleCells = new HashSet<BufferCell>();
 
-	ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+	TaskScheduler scheduler = TaskScheduler.getShared();
+	Runnable creator;
 
-	ReentrantLock dirtyMarkingLock = new ReentrantLock();
-
-	BlockingSet<BufferCell> waitingBufferCellSet = new BlockingSet<VoxelGridRender.BufferCell>();
-	BlockingSet<BufferCell> completedBufferCellSet = new BlockingSet<VoxelGridRender.BufferCell>();
+	WorkQueue<BufferCell> waitingBufferCellSet = new WorkQueue<BufferCell>(VoxelGrid.PRIORITIES, new WorkQueue.Flag<BufferCell>() {
+		@Override
+		public AtomicInteger queued(BufferCell x) {
+			return x.waiting;
+		}
+	});
+	WorkQueue<BufferCell> completedBufferCellSet = new WorkQueue<BufferCell>(new WorkQueue.Flag<BufferCell>() {
+		@Override
+		public AtomicInteger queued(BufferCell x) {
+			return x.completed;
+		}
+	});
 
-	BlockingQueue<FloatBuffer> floatBufferQueue = new ArrayBlockingQueue<FloatBuffer>(NUM_THREADS, false);
+	BlockingQueue<PointData> pointDataQueue = new ArrayBlockingQueue<PointData>(scheduler.getNumThreads(), false);
 
 	Tuple3i dimensions = new Point3i();
 
+	RenderStatistics statistics = new RenderStatistics("Points");
+
+	// The layout of the vertices extracted from now on
+	volatile VertexFormat vertexFormat = VertexFormat.FLOAT;
+
+	// Cells being extracted right now
+	AtomicInteger extracting = new AtomicInteger();
+	// Every cell has to be extracted once the render is active again
+	volatile boolean outdated;
+
+	// Outdated results dropped in a row before one is shown anyway, so that
+	// constant carving can't starve a cell
+	private static final int MAX_STALE_DROPS = 2;
+
 	private class BufferCell {
 		// The position of this cell in the buffer grid
 		Tuple3i position = new Point3i();
@@ -49,16 +75,64 @@ public class VoxelGridRender {
 		// The upper indices of the voxel grid for this cell
 		Tuple3i upperIndices = new Point3i();
 
+		// Solid voxels of the cell with an air neighbor or on the grid border,
+		// these are the points of the cell. Only touched by the worker
+		// holding the cell's lock
+		long[] surface = new long[VOXEL_WORDS];
+		// Voxels changed since the last extraction, along with their
+		// neighbors, whose surface bits have to be checked again
+		AtomicLongArray changed = new AtomicLongArray(VOXEL_WORDS);
+
 		// The buffer object name used as handle in OpenGL
 		int bufferName;
 		// The number of indices this buffer object contains
 		int numIndices;
+		// The layout of the vertices in the buffer object
+		VertexFormat format;
+
+		// Bumped every time the cell is queued for extraction
+		AtomicInteger epoch = new AtomicInteger();
+		// Outdated results dropped in a row
+		AtomicInteger staleDrops = new AtomicInteger();
+		// Newest point data waiting for upload
+		AtomicReference<PointData> result = new AtomicReference<PointData>();
+
+		// Flags marking this cell as queued in the dirty, waiting and
+		// completed queues
+		AtomicInteger dirty = new AtomicInteger();
+		AtomicInteger waiting = new AtomicInteger();
+		AtomicInteger completed = new AtomicInteger();
+
+		/**
+		 * Get the bit of a voxel inside this cell in the voxel bit sets.
+		 */
+		int voxelBit(int x, int y, int z) {
+			return ((x - lowerIndices.x) * CELL_SIZE + (y - lowerIndices.y)) * CELL_SIZE + (z - lowerIndices.z);
+		}
 
-		// Float buffer (temporarily) containing this buffer cell's point data
-		FloatBuffer floatBuffer;
-		int numNewIndices;
+		/**
+		 * Mark a voxel inside this cell as changed, editors may call this
+		 * concurrently.
+		 */
+		void markChanged(int bit) {
+			int word = bit >> 6;
+			long mask = 1L << bit;
+			long bits;
+			do {
+				bits = changed.get(word);
+				if ((bits & mask) != 0) {
+					return;
+				}
+			} while (!changed.compareAndSet(word, bits, bits | mask));
+		}
 
-		boolean dirty;
+		void markAllChanged() {
+			// Queueing the cell publishes the bits, there's no need for a
+			// fence per word
+			for (int i = 0; i < VOXEL_WORDS; i++) {
+				changed.lazySet(i, -1L);
+			}
+		}
 
 		@Override
 		public boolean equals(Object obj) {
@@ -76,132 +150,222 @@ public class VoxelGridRender {
 
 	}
 
+	// Point data extracted from a buffer cell, pooled between the workers
+	// along with the scratch data needed to extract it
+	private class PointData {
+		Vector3f normal = new Vector3f();
+		float[] normalComponents = new float[3];
+		NormalField normalField = new NormalField(grid, CELL_SIZE);
+
+		// Sized for the largest vertex format
+		ByteBuffer vertexBuffer = ByteBuffer.allocateDirect(CELL_SIZE * CELL_SIZE * CELL_SIZE * VertexFormat.FLOAT.stride / 2).order(ByteOrder.nativeOrder());
+		int numIndices;
+		// The cell epoch this data was extracted from
+		int epoch;
+		// The layout of the vertices in the buffer
+		VertexFormat format;
+	}
+
+	// Extracts the points of one cell picked from the queue, a task is
+	// scheduled for every queued cell
 	private class BufferCellPointCreator implements Runnable {
 		VoxelGrid grid;
 
-		Vector3f normal = new Vector3f();
-
 		public BufferCellPointCreator(VoxelGrid grid) {
 			this.grid = grid;
 		}
 
 		@Override
 		public void run() {
+			// Without point data to spare the cell is left for the task
+			// scheduled once point data is recycled
+			PointData pointData = pointDataQueue.poll();
+			if (pointData == null) {
+				return;
+			}
+			BufferCell cell = waitingBufferCellSet.poll();
+			if (cell == null) {
+				recycle(pointData);
+				return;
+			}
+
+			extracting.incrementAndGet();
 			try {
-				while (true) {
-					BufferCell cell = waitingBufferCellSet.take();
-
-					FloatBuffer floatBuffer = floatBufferQueue.take();
-					floatBuffer.clear();
-
-					cell.numNewIndices = 0;
-					for (int x = cell.lowerIndices.x; x < cell.upperIndices.x; x++) {
-						for (int y = cell.lowerIndices.y; y < cell.upperIndices.y; y++) {
-							for (int z = cell.lowerIndices.z; z < cell.upperIndices.z; z++) {
-								// Skip voxel if it's empty
-								if (grid.isAir(x, y, z))
-									continue;
-
-								int numEmpty = 0;
-								for (int i = 0; i < 6; i++) {
-									int[] offset = VoxelGrid.offsets[i];
-									int xoff = x + offset[0];
-									int yoff = y + offset[1];
-									int zoff = z + offset[2];
-
-									boolean inside = xoff >= 0 && xoff < grid.width && yoff >= 0 && yoff < grid.height && zoff >= 0 && zoff < grid.depth;
-									if (inside && grid.getVoxel(xoff, yoff, zoff) == VoxelGrid.VOXEL_GRID_AIR) {
-										numEmpty++;
-									}
-								}
-								
-								
-								if (numEmpty > 4) {
-									grid._voxels[x][y][z] = VoxelGrid.VOXEL_GRID_AIR;
-								} else {
-									// Determine if voxel is completely inside by
-									// examining its neighbors
-									for (int i = 0; i < 6; i++) {
-										int[] offset = VoxelGrid.offsets[i];
-										int xoff = x + offset[0];
-										int yoff = y + offset[1];
-										int zoff = z + offset[2];
-
-										boolean inside = xoff >= 0 && xoff < grid.width && yoff >= 0 && yoff < grid.height && zoff >= 0 && zoff < grid.depth;
-										if (!inside || (grid.getVoxel(xoff, yoff, zoff) != grid.getVoxel(x, y, z))) {
-											cell.numNewIndices++;
-
-											// Put vertex data into buffer
-											floatBuffer.put(x);
-											floatBuffer.put(y);
-											floatBuffer.put(z);
-
-											// Put normal for the vertex into buffer
-											Vector3f n = this.normalForVoxel(x, y, z, normal);
-											floatBuffer.put(n.x);
-											floatBuffer.put(n.y);
-											floatBuffer.put(n.z);
-
-											break;
-										}
-									}
-								}
-							}
-						}
-					}
+				extract(cell, pointData);
+			} finally {
+				extracting.decrementAndGet();
+			}
+		}
 
-					floatBuffer.rewind();
-					cell.floatBuffer = floatBuffer;
-					completedBufferCellSet.add(cell);
+		private void extract(BufferCell cell, PointData pointData) {
+			pointData.epoch = cell.epoch.get();
+			pointData.numIndices = 0;
+			pointData.format = vertexFormat;
+
+			ByteBuffer vertexBuffer = pointData.vertexBuffer;
+			vertexBuffer.clear();
+
+			pointData.normalField.prepare(cell.lowerIndices.x, cell.lowerIndices.y, cell.lowerIndices.z, cell.upperIndices.x, cell.upperIndices.y, cell.upperIndices.z);
+
+			// Another worker may still be extracting an older version of the
+			// cell, the surface bits can only have one owner
+			synchronized (cell) {
+				updateSurface(cell, pointData);
+
+				// Walk only the surface voxels
+				long[] surface = cell.surface;
+				for (int i = 0; i < VOXEL_WORDS; i++) {
+					long bits = surface[i];
+					while (bits != 0) {
+						int bit = (i << 6) + Long.numberOfTrailingZeros(bits);
+						bits &= bits - 1;
+
+						int x = bit / (CELL_SIZE * CELL_SIZE);
+						int y = bit / CELL_SIZE % CELL_SIZE;
+						int z = bit % CELL_SIZE;
+						pointData.numIndices++;
+
+						// Put vertex data relative to the cell and the normal
+						// for the vertex into buffer
+						Vector3f n = this.normalForVoxel(cell.lowerIndices.x + x, cell.lowerIndices.y + y, cell.lowerIndices.z + z, pointData);
+						pointData.format.put(vertexBuffer, x, y, z, n.x, n.y, n.z);
+					}
 				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
 			}
+
+			vertexBuffer.rewind();
+			statistics.extracted.incrementAndGet();
+
+			// The cell changed during extraction and is queued again
+			if (isStale(cell, pointData)) {
+				recycle(pointData);
+				return;
+			}
+
+			// Coalesce with any older result that hasn't been uploaded
+			PointData previous = cell.result.getAndSet(pointData);
+			if (previous != null) {
+				statistics.stale.incrementAndGet();
+				recycle(previous);
+			}
+			completedBufferCellSet.add(cell);
 		}
 
-		private Vector3f normalForVoxel(int x, int y, int z, Vector3f normal) {
-			float numAdded = 0;
-			normal.set(0, 0, 0);
-
-			// Iterate through the 26 neighbors of the voxel
-			for (int xd = -2; xd < 3; xd++) {
-				for (int yd = -2; yd < 3; yd++) {
-					for (int zd = -2; zd < 3; zd++) {
-						int xoff = x + xd;
-						int yoff = y + yd;
-						int zoff = z + zd;
-
-						if (xoff >= 0 && xoff < grid.width && yoff >= 0 && yoff < grid.height && zoff >= 0 && zoff < grid.depth) {
-							if (grid.isAir(xoff, yoff, zoff)) {
-								// If the neighbor voxel is empty, add the
-								// direction
-								// to it to the normal
-								normal.x += xd;
-								normal.y += yd;
-								normal.z += zd;
-								numAdded++;
-							}
+		/**
+		 * Check the surface bits of all voxels changed since the last
+		 * extraction of the cell.
+		 */
+		private void updateSurface(BufferCell cell, PointData pointData) {
+			boolean again = true;
+			while (again) {
+				again = false;
+				for (int i = 0; i < VOXEL_WORDS; i++) {
+					long bits = cell.changed.getAndSet(i, 0L);
+					while (bits != 0) {
+						int bit = (i << 6) + Long.numberOfTrailingZeros(bits);
+						bits &= bits - 1;
+
+						int x = cell.lowerIndices.x + bit / (CELL_SIZE * CELL_SIZE);
+						int y = cell.lowerIndices.y + bit / CELL_SIZE % CELL_SIZE;
+						int z = cell.lowerIndices.z + bit % CELL_SIZE;
+
+						// Cells on the far border of the grid are smaller
+						if (x >= cell.upperIndices.x || y >= cell.upperIndices.y || z >= cell.upperIndices.z) {
+							continue;
+						}
+
+						// Removing a voxel changes its neighbors, those in
+						// this cell are checked in another pass
+						if (erode(x, y, z, pointData)) {
+							again |= markNeighborsChanged(cell, x, y, z);
+						}
+
+						if (isSurface(x, y, z)) {
+							cell.surface[bit >> 6] |= 1L << bit;
+						} else {
+							cell.surface[bit >> 6] &= ~(1L << bit);
 						}
 					}
 				}
 			}
+		}
 
-			// Take the average of all summed vectors and normalize the result
-			//normal.scale(1.0f / numAdded);
-			normal.normalize();
+		private boolean isSurface(int x, int y, int z) {
+			if (grid.isAir(x, y, z)) {
+				return false;
+			}
 
-			return normal;
+			// Determine if voxel is completely inside by examining its
+			// neighbors
+			for (int i = 0; i < 6; i++) {
+				int[] offset = VoxelGrid.offsets[i];
+				int xoff = x + offset[0];
+				int yoff = y + offset[1];
+				int zoff = z + offset[2];
+
+				boolean inside = xoff >= 0 && xoff < grid.width && yoff >= 0 && yoff < grid.height && zoff >= 0 && zoff < grid.depth;
+				if (!inside || (grid.getVoxel(xoff, yoff, zoff) != grid.getVoxel(x, y, z))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Remove a voxel with more than four air neighbors, it would only
+		 * show up as a loose point.
+		 *
+		 * @return true if the voxel was removed
+		 */
+		private boolean erode(int x, int y, int z, PointData pointData) {
+			if (grid.isAir(x, y, z)) {
+				return false;
+			}
+
+			int numEmpty = 0;
+			for (int i = 0; i < 6; i++) {
+				int[] offset = VoxelGrid.offsets[i];
+				int xoff = x + offset[0];
+				int yoff = y + offset[1];
+				int zoff = z + offset[2];
+
+				boolean inside = xoff >= 0 && xoff < grid.width && yoff >= 0 && yoff < grid.height && zoff >= 0 && zoff < grid.depth;
+				if (inside && grid.getVoxel(xoff, yoff, zoff) == VoxelGrid.VOXEL_GRID_AIR) {
+					numEmpty++;
+				}
+			}
+
+			if (numEmpty <= 4) {
+				return false;
+			}
+
+			if (!grid.removeLooseVoxel(x, y, z)) {
+				// A snapshot is being taken, look again after the next batch
+				markVoxelChanged(x, y, z);
+				return false;
+			}
+			pointData.normalField.invalidate();
+			return true;
+		}
+
+		private Vector3f normalForVoxel(int x, int y, int z, PointData pointData) {
+			// Sum up the directions to all empty voxels among the 125
+			// neighbors of the voxel and normalize the result
+			pointData.normalField.normal(x, y, z, pointData.normalComponents, 0);
+			pointData.normal.set(pointData.normalComponents);
+
+			return pointData.normal;
 		}
 	}
 
 	public VoxelGridRender(VoxelGrid grid) {
 		this.grid = grid;
 
-		// Add floatbuffers to queue, and add BufferCell creators to executor
-		for (int i = 0; i < NUM_THREADS; i++) {
-			floatBufferQueue.offer(ByteBuffer.allocateDirect(CELL_SIZE * CELL_SIZE * CELL_SIZE * 6 * 4 / 2).order(ByteOrder.nativeOrder()).asFloatBuffer());
-			executor.submit(new BufferCellPointCreator(grid));
+		// Add point data to queue, the creator tasks share it
+		for (int i = 0; i < scheduler.getNumThreads(); i++) {
+			pointDataQueue.offer(new PointData());
 		}
+		creator = new BufferCellPointCreator(grid);
 
 		// Calculate buffer dimensions
 		dimensions.x = (int) Math.ceil((double) grid.width / CELL_SIZE);
@@ -220,93 +384,234 @@ public class VoxelGridRender {
 					cell.position.set(x, y, z);
 					cell.lowerIndices.set(x * CELL_SIZE, y * CELL_SIZE, z * CELL_SIZE);
 					cell.upperIndices.set(Math.min((x + 1) * CELL_SIZE, grid.width), Math.min((y + 1) * CELL_SIZE, grid.height), Math.min((z + 1) * CELL_SIZE, grid.depth));
+
+					// Nothing is known about the voxels yet
+					cell.markAllChanged();
 				}
 			}
 		}
 	}
 	
 	public void refresh() {
-		beginVoxelMarking();
-		
+		// Refill every cell in the background, behind cells being carved.
+		// Every voxel is checked again, in case the grid was written directly
 		for (int x = 0; x < dimensions.x; x++) {
 			for (int y = 0; y < dimensions.y; y++) {
 				for (int z = 0; z < dimensions.z; z++) {
-					BufferCell cell = bufferCells[x][y][z];
-					dirtyCells.add(cell);
+					bufferCells[x][y][z].markAllChanged();
+					queueCell(bufferCells[x][y][z], true);
 				}
 			}
 		}
-		
-		endVoxelMarking();
-	}
-	
-	public void beginVoxelMarking() {
-		dirtyMarkingLock.lock();
 	}
 
 	public void endVoxelMarking() {
-		waitingBufferCellSet.addAll(dirtyCells);
+		queueDirtyCells();
+	}
+
+	private int queueDirtyCells() {
+		// Marking is lock free, cells marked by other editors in the meantime
+		// are picked up by this call or the next one
+		int count = 0;
+		BufferCell cell;
+		while ((cell = dirtyCells.poll()) != null) {
+			queueCell(cell, false);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Make the render active again. Voxels are marked while inactive too, so
+	 * only the cells changed in the meantime are extracted, unless the render
+	 * was invalidated. The time until they're all uploaded is reported.
+	 */
+	public void catchUp() {
+		long start = System.nanoTime();
+		int count;
+		if (outdated) {
+			outdated = false;
+			refresh();
+			count = dimensions.x * dimensions.y * dimensions.z;
+		} else {
+			count = queueDirtyCells();
+		}
+		statistics.beginCatchUp(start, count);
+	}
+
+	/**
+	 * Extract every cell once the render is active again, after a change made
+	 * while inactive that affects them all.
+	 */
+	public void invalidate() {
+		outdated = true;
+	}
+
+	private void queueCell(BufferCell cell, boolean background) {
+		float x = (cell.lowerIndices.x + cell.upperIndices.x) * 0.5f;
+		float y = (cell.lowerIndices.y + cell.upperIndices.y) * 0.5f;
+		float z = (cell.lowerIndices.z + cell.upperIndices.z) * 0.5f;
+		cell.epoch.incrementAndGet();
+		waitingBufferCellSet.add(cell, grid.priority(x, y, z, background));
+		scheduler.execute(background ? TaskScheduler.Priority.REFRESH : TaskScheduler.Priority.MESHING, creator);
+	}
+
+	/**
+	 * Return point data to the pool, resuming the cells left waiting while
+	 * the pool was empty.
+	 */
+	private void recycle(PointData pointData) {
+		pointDataQueue.offer(pointData);
+		if (waitingBufferCellSet.size() > 0) {
+			scheduler.execute(TaskScheduler.Priority.MESHING, creator);
+		}
+	}
 
-		for (BufferCell cell : dirtyCells) {
-			cell.dirty = false;
+	/**
+	 * Whether point data was extracted from an outdated version of the cell
+	 * and should be dropped, in which case newer data is on its way.
+	 */
+	private boolean isStale(BufferCell cell, PointData pointData) {
+		if (pointData.epoch == cell.epoch.get()) {
+			cell.staleDrops.set(0);
+			return false;
 		}
-		dirtyCells.clear();
 
-		dirtyMarkingLock.unlock();
+		// Don't let a cell carved every frame go without updates forever
+		if (cell.staleDrops.incrementAndGet() > MAX_STALE_DROPS) {
+			cell.staleDrops.set(0);
+			return false;
+		}
+
+		statistics.stale.incrementAndGet();
+		return true;
 	}
 
+	/**
+	 * Mark a voxel as changed, call after the voxel has been written. Its
+	 * neighbors may gain or lose surface with it, so they are checked again
+	 * too, even in adjacent cells.
+	 */
 	public void markVoxelDirty(int x, int y, int z) {
-		BufferCell cell = bufferCells[x / CELL_SIZE][y / CELL_SIZE][z / CELL_SIZE];
-		if (!cell.dirty) {
-			cell.dirty = true;
-			dirtyCells.add(cell);
+		markVoxelChanged(x, y, z);
+		markNeighborsChanged(null, x, y, z);
+	}
+
+	/**
+	 * Mark the six neighbors of a voxel as changed, along with their cells
+	 * unless it's the given one.
+	 *
+	 * @return true if a neighbor inside the given cell was marked
+	 */
+	private boolean markNeighborsChanged(BufferCell cell, int x, int y, int z) {
+		boolean marked = false;
+		for (int i = 0; i < 6; i++) {
+			int[] offset = VoxelGrid.offsets[i];
+			int xoff = x + offset[0];
+			int yoff = y + offset[1];
+			int zoff = z + offset[2];
+
+			boolean inside = xoff >= 0 && xoff < grid.width && yoff >= 0 && yoff < grid.height && zoff >= 0 && zoff < grid.depth;
+			if (!inside) {
+				continue;
+			}
+
+			BufferCell neighbor = bufferCells[xoff / CELL_SIZE][yoff / CELL_SIZE][zoff / CELL_SIZE];
+			if (neighbor == cell) {
+				cell.markChanged(cell.voxelBit(xoff, yoff, zoff));
+				marked = true;
+			} else {
+				markVoxelChanged(xoff, yoff, zoff);
+			}
 		}
+		return marked;
 	}
 
-	public void updateDirtyCells(GL2 gl) {
-		long startTime = System.nanoTime();
-		final long frameTime = (long) (1000000000 * (1.0f / 100.0f));
-
-		try {
-			while (true) {
-				long timeLeft = frameTime - (System.nanoTime() - startTime);
-				if (timeLeft <= 0) {
-					break;
+	/**
+	 * Mark every voxel in [lower, upper) as changed, along with the voxels
+	 * next to them. Whole cells are checked again, for changes too large to
+	 * mark voxel by voxel.
+	 */
+	public void markRegionDirty(int[] lower, int[] upper) {
+		int lx = Math.max(0, lower[0] - 1) / CELL_SIZE, ux = Math.min(grid.width - 1, upper[0]) / CELL_SIZE;
+		int ly = Math.max(0, lower[1] - 1) / CELL_SIZE, uy = Math.min(grid.height - 1, upper[1]) / CELL_SIZE;
+		int lz = Math.max(0, lower[2] - 1) / CELL_SIZE, uz = Math.min(grid.depth - 1, upper[2]) / CELL_SIZE;
+		for (int x = lx; x <= ux; x++) {
+			for (int y = ly; y <= uy; y++) {
+				for (int z = lz; z <= uz; z++) {
+					bufferCells[x][y][z].markAllChanged();
+					markCellDirty(bufferCells[x][y][z]);
 				}
+			}
+		}
+	}
 
-				BufferCell cell = completedBufferCellSet.poll(timeLeft);
-				if (cell == null) {
-					break;
-				}
+	private void markVoxelChanged(int x, int y, int z) {
+		BufferCell cell = bufferCells[x / CELL_SIZE][y / CELL_SIZE][z / CELL_SIZE];
+		cell.markChanged(cell.voxelBit(x, y, z));
+		markCellDirty(cell);
+	}
 
-				// If this cell doesn't contain any points, remove it from the
-				// visible buffer cell set
-				if (cell.numNewIndices == 0) {
-					visibleCells.remove(cell);
-				} else {
-					visibleCells.add(cell);
-				}
+	private void markCellDirty(BufferCell cell) {
+		dirtyCells.add(cell);
+	}
 
-				FloatBuffer floatBuffer = cell.floatBuffer;
-				cell.floatBuffer = null;
+	public void updateDirtyCells(GL2 gl) {
+		// Upload what's done within this frame's budget, never wait for the
+		// workers
+		UploadBudget budget = grid.uploadBudget;
+		while (budget.hasRoom()) {
+			BufferCell cell = completedBufferCellSet.poll();
+			if (cell == null) {
+				break;
+			}
 
-				if (cell.bufferName == 0) {
-					// Generate and set a buffer object name for this cell
-					int[] buf = new int[1];
-					gl.glGenBuffers(1, buf, 0);
-					cell.bufferName = buf[0];
-				}
+			PointData pointData = cell.result.getAndSet(null);
+			if (pointData == null) {
+				continue;
+			}
 
-				// Upload the vertex and normal data to the buffer
-				gl.glBindBuffer(GL.GL_ARRAY_BUFFER, cell.bufferName);
-				gl.glBufferData(GL.GL_ARRAY_BUFFER, cell.numNewIndices * 6 * Buffers.SIZEOF_FLOAT, floatBuffer, GL.GL_STATIC_DRAW);
-				gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			// The cell may have changed again while waiting for upload
+			if (isStale(cell, pointData)) {
+				recycle(pointData);
+				continue;
+			}
+
+			// If this cell doesn't contain any points, remove it from the
+			// visible buffer cell set
+			if (pointData.numIndices == 0) {
+				visibleCells.remove(cell);
+			} else {
+				visibleCells.add(cell);
+			}
 
-				cell.numIndices = cell.numNewIndices;
-				floatBufferQueue.offer(floatBuffer);
+			if (cell.bufferName == 0) {
+				// Generate and set a buffer object name for this cell
+				int[] buf = new int[1];
+				gl.glGenBuffers(1, buf, 0);
+				cell.bufferName = buf[0];
 			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+
+			// Upload the vertex and normal data to the buffer
+			long uploadStart = System.nanoTime();
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, cell.bufferName);
+			int size = pointData.numIndices * pointData.format.stride;
+			gl.glBufferData(GL.GL_ARRAY_BUFFER, size, pointData.vertexBuffer, GL.GL_STATIC_DRAW);
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			budget.spend(size, System.nanoTime() - uploadStart);
+
+			statistics.uploaded.incrementAndGet();
+			statistics.uploadedBytes.addAndGet(size);
+
+			cell.numIndices = pointData.numIndices;
+			cell.format = pointData.format;
+			recycle(pointData);
+		}
+		statistics.pending = waitingBufferCellSet.size() + extracting.get() + completedBufferCellSet.size();
+
+		// Report once the last cell changed while inactive is on screen
+		if (statistics.isCatchingUp() && statistics.pending == 0) {
+			System.out.println(statistics.endCatchUp());
 		}
 	}
 
@@ -319,16 +624,19 @@ public class VoxelGridRender {
 
 		// Loop through visible cells and draw them
 		for (BufferCell cell : visibleCells) {
+			// Points are relative to the cell
+			gl.glPushMatrix();
+			gl.glTranslatef(cell.lowerIndices.x, cell.lowerIndices.y, cell.lowerIndices.z);
+
 			// Bind buffer containing points and normals
 			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, cell.bufferName);
 
 			// Specify vertex and normal data
-			int stride = Buffers.SIZEOF_FLOAT * 6;
-			gl.glVertexPointer(3, GL2.GL_FLOAT, stride, 0);
-			gl.glNormalPointer(GL2.GL_FLOAT, stride, Buffers.SIZEOF_FLOAT * 3);
+			cell.format.setPointers(gl);
 
 			// Draw the points
 			gl.glDrawArrays(GL2.GL_POINTS, 0, cell.numIndices);
+			gl.glPopMatrix();
 		}
 
 		// Unbind the buffer data
@@ -2,19 +2,14 @@ package sculptnect;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantLock;
-
-import toxi.geom.Vec3D;
-import toxi.geom.mesh.TriangleMesh;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
@@ -23,78 +18,96 @@ import javax.vecmath.Tuple3i;
 
 import com.jogamp.common.nio.Buffers;
 
-/** Tessellates a voxel grid into a naive surfacenet mesh, most suitable for
- *  interactive deformations and real-time rendering. Naive because displacement
- *  of the surfacenet verts inside their respective voronoi cells is very quick
- *  and rudimentary.
+/** Tessellates a voxel grid into a mesh chunk by chunk, most suitable for
+ *  interactive deformations and real-time rendering. The surface is extracted
+ *  by a Mesher, by default a naive surfacenet, which is very quick but
+ *  rudimentary. Marching cubes and dual contouring are available as well and
+ *  chosen with the sculptnect.mesher property or switched at runtime.
  *  
  *  Play around with num_threads and chunk_size for optimal performance.
  *  Should manage around 256^3 voxel grids on a standard notebook (2012).
  */
 public class VoxelMeshRender {
-	private static final int NUM_THREADS = 8;
-	private static final int CHUNK_SIZE = 32;// WARN: make sure power of two otherwise markVoxelDirty method fails
-	private static final int VERTEX_SIZE = 3;
-	private static final int NORMAL_SIZE = 3;
-	private static final int ITEM_SIZE = VERTEX_SIZE + NORMAL_SIZE;
-	private static final int NORMAL_STRIDE = Buffers.SIZEOF_FLOAT * NORMAL_SIZE;
-	private static final int ITEM_STRIDE = Buffers.SIZEOF_FLOAT * ITEM_SIZE;
-	
-	private static final int VERTEX_GRID_OFFSET = 1;// offset of surfacenet cells in grid +2 on each side because chunk updates propagate 2 vertices wider than the actual chunk for better normal calculations
-	private static final float VERTEX_OFFSET = 0.5f;// offset of surfacenet node
+	private static final int CHUNK_SIZE = MeshExtractor.CHUNK_SIZE;// WARN: make sure power of two otherwise markVoxelDirty method fails
+	private static final int CHUNK_SHIFT = Integer.numberOfTrailingZeros(CHUNK_SIZE);// quicker division by the chunk size
+	private static final int MAX_SHORT_VERTICES = 1 << 16;// chunks with more vertices need int indices
+	private static final int MAX_STALE_DROPS = 2;// outdated results dropped in a row before one is shown anyway, so constant carving cant starve a chunk
+	private static final int BLOCK_SIZE = 8;// chunks are remeshed in blocks of this size, only those a change reaches
+	private static final int BLOCKS = CHUNK_SIZE / BLOCK_SIZE;// blocks along every axis of a chunk, at most 64 in all
+	private static final long ALL_BLOCKS = -1L;
 	
-	ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+	TaskScheduler scheduler = TaskScheduler.getShared();
+	Runnable creator;
 
-	ReentrantLock dirtyMarkingLock = new ReentrantLock();
-	
-	BlockingSet<Chunk> waitingChunkSet = new BlockingSet<VoxelMeshRender.Chunk>();
-	BlockingSet<Chunk> completedChunkSet = new BlockingSet<VoxelMeshRender.Chunk>();
+	WorkQueue<Chunk> waitingChunkSet = new WorkQueue<Chunk>(VoxelGrid.PRIORITIES, new WorkQueue.Flag<Chunk>() {
+		@Override
+		public AtomicInteger queued(Chunk x) {
+			return x.waiting;
+		}
+	});
+	WorkQueue<Chunk> completedChunkSet = new WorkQueue<Chunk>(new WorkQueue.Flag<Chunk>() {
+		@Override
+		public AtomicInteger queued(Chunk x) {
+			return x.completed;
+		}
+	});
 	
-	BlockingQueue<ChunkData> chunkDataQueue = new ArrayBlockingQueue<ChunkData>(NUM_THREADS, false);
+	BlockingQueue<ChunkData> chunkDataQueue = new ArrayBlockingQueue<ChunkData>(scheduler.getNumThreads(), false);
 	
 	// collection of all verts + normals created inside every voronoi cell
 	//float[][][][] nodes;
 
 	VoxelGrid grid;
 	Chunk[][][] chunks;
-	Set<Chunk> dirtyChunks = Collections.synchronizedSet(new HashSet<Chunk>());
+	WorkQueue<Chunk> dirtyChunks = new WorkQueue<Chunk>(new WorkQueue.Flag<Chunk>() {
+		@Override
+		public AtomicInteger queued(Chunk x) {
+			return x.dirty;
+		}
+	});
 	Set<Chunk> visibleChunks = new HashSet<Chunk>();
 	
 	int[] dimensions = new int[3];
 	
-	/** Keeps track of a subarea of the voxel grid and also of the vertices/nodes
-	 *  which embodies the surfacenet.
+	RenderStatistics statistics = new RenderStatistics("Mesh");
+	
+	volatile VertexFormat vertexFormat = VertexFormat.FLOAT;// layout of the vertices built from now on
+	AtomicInteger extracting = new AtomicInteger();// chunks being meshed right now
+	volatile boolean outdated;// every chunk has to be remeshed once the render is active again
+	volatile Mesher.Type mesherType = Mesher.Type.valueOf(System.getProperty("sculptnect.mesher", Mesher.Type.SURFACE_NET.name()));// mesher used from now on
+	
+	/** Keeps track of a subarea of the voxel grid and of the buffer objects
+	 *  holding its mesh.
 	 */
 	private class Chunk {
 		Tuple3i position = new Point3i();
 		int[] lowerIndices = new int[3];// The lower indices of the voxel grid for this chunk
 		int[] upperIndices = new int[3];// The upper indices of the voxel grid for this chunk
 		int bufferName;// The buffer object name used as handle in OpenGL
-		int numIndices;// The number of indices this buffer object contains
-		int numNewIndices;
-		boolean dirty;
-		ChunkData chunkData;
+		int indexBufferName;// The buffer object holding the triangle indices
+		int numVertices;// The number of vertices the buffer object contains
+		int numIndices;// The number of indices the index buffer object contains
+		int indexType;// The type of the indices, unsigned short or int
+		VertexFormat format;// The layout of the vertices in the buffer object
+		AtomicInteger dirty = new AtomicInteger();// queued in dirtyChunks
+		AtomicInteger waiting = new AtomicInteger();// queued in waitingChunkSet
+		AtomicInteger completed = new AtomicInteger();// queued in completedChunkSet
+		AtomicInteger epoch = new AtomicInteger();// bumped every time the chunk is queued for meshing
+		AtomicInteger staleDrops = new AtomicInteger();// outdated results dropped in a row
+		AtomicReference<ChunkData> result = new AtomicReference<ChunkData>();// newest result waiting for upload
+		AtomicLong dirtyBlocks = new AtomicLong(ALL_BLOCKS);// bit per block to remesh, set by editors and taken by the workers
+		MeshBuffer[] blocks = new MeshBuffer[BLOCKS * BLOCKS * BLOCKS];// the tris of every block with the vertices they use, null without any. Guarded by the chunk
+		Mesher.Type blockType;// mesher the blocks were built with
 		
-		public void init (ChunkData chunkData) {
-			//this.chunkData = chunkData;
-			chunkData.vertexBuffer.clear();
-			chunkData.faces.clear();
-			numNewIndices = 0;
-			
-			// build/reset surfacenet nodes
-			// the nodes actually ends up displaced +0.5 but because of 'nodes' offset we add -0.5
-			float[][][][] nodes = chunkData.nodes;
-			for (int x=0; x<CHUNK_SIZE + VERTEX_GRID_OFFSET*2; ++x)
-				for (int y=0; y<CHUNK_SIZE + VERTEX_GRID_OFFSET*2; ++y)
-					for (int z=0; z<CHUNK_SIZE + VERTEX_GRID_OFFSET*2; ++z) {
-						float[] node = nodes[x][y][z];
-						node[0] = lowerIndices[0] + x - VERTEX_GRID_OFFSET + VERTEX_OFFSET;
-						node[1] = lowerIndices[1] + y - VERTEX_GRID_OFFSET + VERTEX_OFFSET;
-						node[2] = lowerIndices[2] + z - VERTEX_GRID_OFFSET + VERTEX_OFFSET;
-						node[3] = 0;
-						node[4] = 0;
-						node[5] = 0;
-					}
+		/** Mark blocks dirty, editors may call this concurrently.
+		 */
+		void markBlocksDirty (long mask) {
+			long bits;
+			do {
+				bits = dirtyBlocks.get();
+				if ((bits & mask) == mask)
+					return;
+			} while (!dirtyBlocks.compareAndSet(bits, bits | mask));
 		}
 	}
 	
@@ -102,30 +115,31 @@ public class VoxelMeshRender {
 	 *  processing a chunk.
 	 */
 	private class ChunkData {
-		float[][][][] nodes = new float
-				[CHUNK_SIZE + VERTEX_GRID_OFFSET*2][CHUNK_SIZE + VERTEX_GRID_OFFSET*2]
-				[CHUNK_SIZE + VERTEX_GRID_OFFSET*2][ITEM_SIZE];// collection of all verts + normals created inside every voronoi cell
-		FloatBuffer vertexBuffer = ByteBuffer
-			.allocateDirect(
-				(CHUNK_SIZE + VERTEX_GRID_OFFSET*2) *
-				(CHUNK_SIZE + VERTEX_GRID_OFFSET*2) *
-				(CHUNK_SIZE + VERTEX_GRID_OFFSET*2) * ITEM_STRIDE * 3)// from every vert 6 tris can originate but wont in practise because of geometric limitations, so should be much more
-			.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		ArrayList<float[]> faces = new ArrayList<float[]>();// contains all triangles
+		VoxelGrid view = new VoxelGrid(grid.width, grid.height, grid.depth, false);// reads the view of the grid the chunk is meshed from
+		Mesher mesher;// meshers keep scratch data, so every chunk data has its own
+		Mesher.Type type;
+		int[] blockLower = new int[3];
+		int[] blockUpper = new int[3];
+		int[] boxLower = new int[3];
+		int[] boxUpper = new int[3];
+		MeshBuffer mesh = new MeshBuffer();// the extracted tris, with absolute positions
+		MeshBuffer dirtyMesh = new MeshBuffer();// the dirty blocks meshed together, before theyre split up
+		int[] blockEnds = new int[BLOCKS * BLOCKS * BLOCKS];// end of the tris of every block meshed in the last pass
+		int[] remap = new int[4096];// new index of every vertex when splitting or splicing
+		SeamVertices seam = new SeamVertices();// vertices on block borders, welded by key when splicing
+		ByteBuffer vertexBuffer = allocate(4096 * VertexFormat.FLOAT.stride);// grown to fit the largest chunk so far
+		ByteBuffer indexBuffer = allocate(4096 * 3 * Buffers.SIZEOF_SHORT);
+		int numVertices;
+		int numIndices;
+		int indexType;// GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+		int epoch;// chunk epoch the result was built from
+		VertexFormat format;// layout of the vertices in vertexBuffer
 	}
 	
-	/** Threaded and responsible for creating and updating all vertices
-	 *  belonging to the chunks picked from queue.
+	/** A task creating and updating all vertices of one chunk picked from
+	 *  queue, one is scheduled for every queued chunk.
 	 */
 	private class ChunkVertexCreator implements Runnable {
-		// Accumulate all vertices/nodes for a chunk in 'faces'. This way the
-		// verts can be connected and reused and displaced within its voronoi
-		// cells after they've been added to the list.
-		//
-		// Every other element is a vert and a normal.
-		// 3 verts + 3 normals == 1 tri (counter-clockwise)
-		// Together, each set of six elements forms a set of faces.
-
 		VoxelGrid grid;
 		
 		public ChunkVertexCreator (VoxelGrid grid) {
@@ -134,224 +148,259 @@ public class VoxelMeshRender {
 		
 		@Override
 		public void run() {
+			// without chunk data to spare the chunk is left for the task
+			// scheduled once chunk data is recycled
+			ChunkData chunkData = chunkDataQueue.poll();
+			if (chunkData == null)
+				return;
+			Chunk chunk = waitingChunkSet.poll();
+			if (chunk == null) {
+				recycle(chunkData);
+				return;
+			}
+			
+			extracting.incrementAndGet();
 			try {
-				while (true) {
-					Chunk chunk = waitingChunkSet.take();
-					ChunkData chunkData = chunkDataQueue.take();
-					
-					chunk.init(chunkData);
-					FloatBuffer vertexBuffer = chunkData.vertexBuffer;
-					ArrayList<float[]> faces = chunkData.faces;
-					
-					// displace nodes, build faces
-					for (int x=chunk.lowerIndices[0]; x<chunk.upperIndices[0]; ++x)
-						for (int y=chunk.lowerIndices[1]; y<chunk.upperIndices[1]; ++y)
-							for (int z=chunk.lowerIndices[2]; z<chunk.upperIndices[2]; ++z)
-								updateVertices(chunk, chunkData, x, y, z);
-					
-					chunk.numNewIndices = chunkData.faces.size();
-					
-					// draw faces
-					for (float[] vertex : faces)
-						vertexBuffer.put(vertex);
-					
-					vertexBuffer.rewind();
-					chunk.chunkData = chunkData;
-					completedChunkSet.add(chunk);// send off chunk for rendering
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
+				extract(chunk, chunkData);
+			} finally {
+				extracting.decrementAndGet();
 			}
 		}
 		
-		private void updateVertices (Chunk chunk, ChunkData chunkData, int x, int y, int z) {
-			/*
-			 * Find all relevant edge crossings, ie where a cell transitions from
-			 * matter->air or other way around. An edge crossing means we have two
-			 * adjacent cells with which we can create a tri with its normal
-			 * pointing in the direction of the air voxel.
-			 * 
-			 * Build tris in either strictly positive directions or strictly
-			 * negative. Otherwise adjacent cells will build intersecting tris.
-			 * This means we build in all six orthogonal directions with only six
-			 * different tris facing one of two possible directions - thats a total
-			 * of twelve different tris.
-			 * 
-			 * This means we only have to check half the edges, those originating
-			 * from either c0 (left, down, back) or c7 (right, up, front).
-			 * 
-			 * 
-			 * Interpolating the current cell vertex position:
-			 * 
-			 * - Either do this rudimentary by perhaps just summing up all the
-			 * edges and dividing the resulting vector by the amount of summations
-			 * and multiplying by a factor.
-			 * 
-			 * - Or we can go more along the lines of the original
-			 * surfacenet definition and find position inside the bounds
-			 * of the cell (voronoi cell) and try to minimize the total
-			 * distance to adjacent vertices. Frisken refers to this
-			 * process as relaxation, lowering the energy in the
-			 * surfacenet. This requires a lookup of all six possibly
-			 * adjacent vertices, and also multiple iterations.
-			 * 
-			 * The latter method isnt really real-time feasible.
-			 */
+		private void extract (Chunk chunk, ChunkData chunkData) {
+			chunkData.epoch = chunk.epoch.get();
 			
-			// get all corners
-			boolean c0 = ! grid.isAir(x, y, z);// left down back
-			boolean c1 = ! grid.isAir(x+1, y, z);// right down back
-			boolean c2 = ! grid.isAir(x, y+1, z);// left up back
-			boolean c3 = ! grid.isAir(x, y, z+1);// left down up
-			boolean c4 = ! grid.isAir(x+1, y+1, z);// right up back
-			boolean c5 = ! grid.isAir(x+1, y, z+1);// right down front
-			boolean c6 = ! grid.isAir(x, y+1, z+1);// left up front
-			boolean c7 = ! grid.isAir(x+1, y+1, z+1);// right up front
+			// the view is at least as new as the changes the chunk was queued for
+			chunkData.view.readFrom(grid.getView());
+			if (chunkData.type != mesherType) {
+				chunkData.type = mesherType;
+				chunkData.mesher = chunkData.type.create(chunkData.view, CHUNK_SIZE);
+			}
 			
-			// If no relevant edge crossings exist (we mustnt check all)
-			if (c0==c1 && c1==c2 && c2==c3 && c7==c4 && c7==c5 && c7==c6)
+			// another worker may still be meshing an older version of the
+			// chunk, only one at a time may touch its blocks
+			synchronized (chunk) {
+				updateBlocks(chunk, chunkData);
+			}
+			
+			statistics.extracted.incrementAndGet();
+			
+			// the chunk changed while it was meshed and is queued again
+			if (isStale(chunk, chunkData)) {
+				recycle(chunkData);
 				return;
-
-			ArrayList<float[]> faces = chunkData.faces;
-			float[][][][] nodes = chunkData.nodes;
+			}
 			
-			// get node/vertex local coords in chunk, compensate for offset
-			int vx = x - chunk.lowerIndices[0] + VERTEX_GRID_OFFSET;
-			int vy = y - chunk.lowerIndices[1] + VERTEX_GRID_OFFSET;
-			int vz = z - chunk.lowerIndices[2] + VERTEX_GRID_OFFSET;
+			writeBuffers(chunk, chunkData);
 			
-			// get current vertex/node
-			float[] v = nodes[vx][vy][vz];
+			// coalesce with any older result that hasnt been uploaded yet
+			ChunkData previous = chunk.result.getAndSet(chunkData);
+			if (previous != null) {
+				statistics.stale.incrementAndGet();
+				recycle(previous);
+			}
+			completedChunkSet.add(chunk);// send off chunk for rendering
+		}
+		
+		/** Remesh the blocks of a chunk marked dirty since it was last meshed
+		 *  and put the chunk mesh together. A chunk remeshed as a whole is
+		 *  built in one pass and split into blocks afterwards, otherwise the
+		 *  dirty blocks are built in one pass over their bounding box and
+		 *  spliced in with the others. Vertices on block borders are welded
+		 *  by key either way, so the mesh has as many as a chunk built at once.
+		 */
+		private void updateBlocks (Chunk chunk, ChunkData chunkData) {
+			long dirty = chunk.dirtyBlocks.getAndSet(0);
+			if (chunk.blockType != chunkData.type) {
+				dirty = ALL_BLOCKS;// the blocks dont fit together otherwise
+				chunk.blockType = chunkData.type;
+			}
 			
-			// adjust vertex local position within the cell
-			displace(x, y, z, v);
+			if (dirty == ALL_BLOCKS) {
+				extractBlocks(chunk, chunkData, dirty, chunk.lowerIndices, chunk.upperIndices, chunkData.mesh);
+				splitBlocks(chunk, chunkData, dirty, chunkData.mesh);
+				return;
+			}
 			
-			if (c0!=c1 || c0!=c2 || c0!=c3) {
-				// get adjacent vertices
-				float[] vx0 = nodes[vx-1][vy][vz];// left
-				float[] vy0 = nodes[vx][vy-1][vz];// down
-				float[] vz0 = nodes[vx][vy][vz-1];// back
-				
-				// adjust border vertices in case an adjacent chunk have changed, otherwise tearing and normal tearing occurs at chunk borders
-				if (x == chunk.lowerIndices[0]) displace(x-1, y, z, vx0);
-				if (y == chunk.lowerIndices[1]) displace(x, y-1, z, vy0);
-				if (z == chunk.lowerIndices[2]) displace(x, y, z-1, vz0);
+			if (dirty != 0) {
+				int[] boxLower = chunkData.boxLower;
+				int[] boxUpper = chunkData.boxUpper;
+				System.arraycopy(chunk.upperIndices, 0, boxLower, 0, 3);
+				System.arraycopy(chunk.lowerIndices, 0, boxUpper, 0, 3);
+				for (long bits = dirty; bits != 0; bits &= bits - 1)
+					if (blockBounds(chunk, Long.numberOfTrailingZeros(bits), chunkData.blockLower, chunkData.blockUpper))
+						for (int k=0; k<3; ++k) {
+							boxLower[k] = Math.min(boxLower[k], chunkData.blockLower[k]);
+							boxUpper[k] = Math.max(boxUpper[k], chunkData.blockUpper[k]);
+						}
 				
-				// generate triangles if the three bottom edges are crossed
-				if (c0) {
-					if (!c1) addFace(faces, v, vy0, vz0);// down back
-					if (!c2) addFace(faces, v, vz0, vx0);// back left
-					if (!c3) addFace(faces, v, vx0, vy0);// left down
+				extractBlocks(chunk, chunkData, dirty, boxLower, boxUpper, chunkData.dirtyMesh);
+				splitBlocks(chunk, chunkData, dirty, chunkData.dirtyMesh);
+			}
+			spliceBlocks(chunk, chunkData);
+		}
+		
+		/** Mesh the dirty blocks in one pass over the given box, so they share
+		 *  their vertices, noting where the tris of every block end.
+		 */
+		private void extractBlocks (Chunk chunk, ChunkData chunkData, long dirty, int[] lower, int[] upper, MeshBuffer mesh) {
+			mesh.clear();
+			chunkData.mesher.begin(lower, upper, mesh);
+			while (dirty != 0) {
+				int b = Long.numberOfTrailingZeros(dirty);
+				dirty &= dirty - 1;
+				if (blockBounds(chunk, b, chunkData.blockLower, chunkData.blockUpper))
+					chunkData.mesher.extract(chunkData.blockLower, chunkData.blockUpper);
+				chunkData.blockEnds[b] = mesh.numIndices;
+			}
+		}
+		
+		/** Copy the tris of every dirty block out of the mesh they were built
+		 *  in, along with the vertices they use.
+		 */
+		private void splitBlocks (Chunk chunk, ChunkData chunkData, long dirty, MeshBuffer mesh) {
+			int[] remap = remap(chunkData, mesh.numVertices);
+			Arrays.fill(remap, 0, mesh.numVertices, -1);
+			int[] indices = mesh.indices;
+			int start = 0;
+			while (dirty != 0) {
+				int b = Long.numberOfTrailingZeros(dirty);
+				dirty &= dirty - 1;
+				int end = chunkData.blockEnds[b];
+				if (start == end) {
+					chunk.blocks[b] = null;
+					continue;
 				}
-				else {
-					if (c1) addFace(faces, v, vz0, vy0);// back down
-					if (c2) addFace(faces, v, vx0, vz0);// left back
-					if (c3) addFace(faces, v, vy0, vx0);// down left
+				
+				MeshBuffer block = chunk.blocks[b];
+				if (block == null) {
+					block = new MeshBuffer(0, 0);
+					chunk.blocks[b] = block;
 				}
-			}
-			
-			if (c7!=c4 || c7!=c5 || c7!=c6) {
-				// get current vertex and adjacent vertices
-				float[] vx1 = nodes[vx+1][vy][vz];// right
-				float[] vy1 = nodes[vx][vy+1][vz];// up
-				float[] vz1 = nodes[vx][vy][vz+1];// front
+				block.clear();
+				for (int i=start; i<end; ++i)
+					if (remap[indices[i]] < 0)
+						remap[indices[i]] = block.addVertex(mesh, indices[i]);
+				for (int i=start; i<end; i+=3)
+					block.addTriangle(remap[indices[i]], remap[indices[i+1]], remap[indices[i+2]]);
 				
-				// adjust border vertices in case an adjacent chunk have changed, otherwise normal tearing occurs at chunk borders
-				if (x == chunk.upperIndices[0]-1) displace(x+1, y, z, vx1);
-				if (y == chunk.upperIndices[1]-1) displace(x, y+1, z, vy1);
-				if (z == chunk.upperIndices[2]-1) displace(x, y, z+1, vz1);
+				// vertices shared with the next blocks are copied again for them
+				for (int i=start; i<end; ++i)
+					remap[indices[i]] = -1;
+				start = end;
+			}
+		}
+		
+		/** Splice the blocks together into the chunk mesh, the untouched ones
+		 *  as they were. Vertices on block borders are looked up by key and
+		 *  shared with the blocks next to them.
+		 */
+		private void spliceBlocks (Chunk chunk, ChunkData chunkData) {
+			MeshBuffer mesh = chunkData.mesh;
+			SeamVertices seam = chunkData.seam;
+			mesh.clear();
+			seam.clear();
+			for (int b=0; b<chunk.blocks.length; ++b) {
+				MeshBuffer block = chunk.blocks[b];
+				if (block == null)
+					continue;
 				
-				// generate triangles if the three top edges are crossed
-				if (c7) {
-					if (!c4) addFace(faces, v, vy1, vx1);// y+1, x+1
-					if (!c5) addFace(faces, v, vx1, vz1);// x+1, z+1
-					if (!c6) addFace(faces, v, vz1, vy1);// z+1, y+1
-				}
-				else {
-					if (c4) addFace(faces, v, vx1, vy1);// x+1, y+1
-					if (c5) addFace(faces, v, vz1, vx1);// z+1, x+1
-					if (c6) addFace(faces, v, vy1, vz1);// y+1, z+1
+				blockBounds(chunk, b, chunkData.blockLower, chunkData.blockUpper);
+				int[] remap = remap(chunkData, block.numVertices);
+				for (int v=0; v<block.numVertices; ++v) {
+					long key = block.keys[v];
+					boolean border = SeamVertices.isBorder(key, chunkData.blockLower, chunkData.blockUpper);
+					int index = border ? seam.get(key) : -1;
+					if (index < 0) {
+						index = mesh.addVertex(block, v);
+						if (border)
+							seam.put(key, index);
+					}
+					remap[v] = index;
 				}
+				
+				int[] indices = block.indices;
+				for (int i=0; i<block.numIndices; i+=3)
+					mesh.addTriangle(remap[indices[i]], remap[indices[i+1]], remap[indices[i+2]]);
 			}
-			
 		}
 		
-		private void addFace (ArrayList<float[]> faces, float[] v0, float[] v1, float[] v2) {
-			faces.add(v0);
-			faces.add(v1);
-			faces.add(v2);
+		/** Get the cells of a block, cut from the chunk which starts one voxel
+		 *  inside the grid.
+		 *  @return false if the chunk ends before the block
+		 */
+		private boolean blockBounds (Chunk chunk, int b, int[] lower, int[] upper) {
+			lower[0] = chunk.position.x * CHUNK_SIZE + b / (BLOCKS * BLOCKS) * BLOCK_SIZE;
+			lower[1] = chunk.position.y * CHUNK_SIZE + b / BLOCKS % BLOCKS * BLOCK_SIZE;
+			lower[2] = chunk.position.z * CHUNK_SIZE + b % BLOCKS * BLOCK_SIZE;
+			boolean empty = false;
+			for (int k=0; k<3; ++k) {
+				upper[k] = Math.min(chunk.upperIndices[k], lower[k] + BLOCK_SIZE);
+				lower[k] = Math.max(chunk.lowerIndices[k], lower[k]);
+				empty |= lower[k] >= upper[k];
+			}
+			return !empty;
 		}
 		
-		/** THE smoothing algorithm for displacing the vert within the voronoi cell
-		 *  v is a float[6] node containing a vert and a normal
+		private int[] remap (ChunkData chunkData, int size) {
+			if (chunkData.remap.length < size)
+				chunkData.remap = new int[Math.max(size, chunkData.remap.length * 2)];
+			return chunkData.remap;
+		}
+		
+		/** Pack the mesh into the buffers uploaded by the GL thread, vertices
+		 *  relative to the chunk and indices as shorts whenever they fit.
 		 */
-		private void displace (int x, int y, int z, float[] v) {
-			boolean c0 = ! grid.isAir(x, y, z);// left down back
-			boolean c1 = ! grid.isAir(x+1, y, z);// right down back
-			boolean c2 = ! grid.isAir(x, y+1, z);// left up back
-			boolean c3 = ! grid.isAir(x, y, z+1);// left down up
-			boolean c4 = ! grid.isAir(x+1, y+1, z);// right up back
-			boolean c5 = ! grid.isAir(x+1, y, z+1);// right down front
-			boolean c6 = ! grid.isAir(x, y+1, z+1);// left up front
-			boolean c7 = ! grid.isAir(x+1, y+1, z+1);// right up front
+		private void writeBuffers (Chunk chunk, ChunkData chunkData) {
+			MeshBuffer mesh = chunkData.mesh;
+			VertexFormat format = vertexFormat;
+			int numVertices = mesh.numVertices;
+			int numIndices = mesh.numIndices;
+			boolean shortIndices = numVertices <= MAX_SHORT_VERTICES;
+			int indexSize = shortIndices ? Buffers.SIZEOF_SHORT : Buffers.SIZEOF_INT;
 			
-			float dx = 0, dy = 0, dz = 0;
+			if (chunkData.vertexBuffer.capacity() < numVertices * VertexFormat.FLOAT.stride)
+				chunkData.vertexBuffer = allocate(numVertices * VertexFormat.FLOAT.stride * 2);
+			if (chunkData.indexBuffer.capacity() < numIndices * indexSize)
+				chunkData.indexBuffer = allocate(numIndices * indexSize * 2);
 			
-			// do local displacement
-			// displace in direction of every cube side with at least one zero crossing
-			final float m = 0.3f;// magnitude
-			if (c0 != c2 || c0 != c3 || c0 != c6) dx -= m;// left
-			if (c0 != c1 || c0 != c3 || c0 != c5) dy -= m;// down
-			if (c0 != c1 || c0 != c2 || c0 != c4) dz -= m;// back
-			if (c7 != c1 || c7 != c4 || c7 != c5) dx += m;// right
-			if (c7 != c2 || c7 != c4 || c7 != c6) dy += m;// up
-			if (c7 != c3 || c7 != c5 || c7 != c6) dz += m;// front
+			ByteBuffer vertexBuffer = chunkData.vertexBuffer;
+			vertexBuffer.clear();
+			float[] vertices = mesh.vertices;
+			float ox = chunk.lowerIndices[0], oy = chunk.lowerIndices[1], oz = chunk.lowerIndices[2];
+			for (int i=0; i<numVertices * MeshBuffer.VERTEX_SIZE; i+=MeshBuffer.VERTEX_SIZE)
+				format.put(vertexBuffer, vertices[i] - ox, vertices[i+1] - oy, vertices[i+2] - oz, vertices[i+3], vertices[i+4], vertices[i+5]);
+			vertexBuffer.flip();
 			
-			// clear any previous displacement and set current
-			v[0] = x + dx + VERTEX_OFFSET;
-			v[1] = y + dy + VERTEX_OFFSET;
-			v[2] = z + dz + VERTEX_OFFSET;
-			setNormal(x,y,z,v);
-		}
-		
-		private void setNormal (int x, int y, int z, float[] v) {
-			// Iterate through the 125 adjacent voxels
-			final int min = -2;// -2
-			final int max = 3;// 3
-			for (int xd = min; xd < max; ++xd)
-				for (int yd = min; yd < max; ++yd)
-					for (int zd = min; zd < max; ++zd) {
-						int xoff = x + xd;
-						int yoff = y + yd;
-						int zoff = z + zd;
-						
-						boolean isInside = xoff >= 0 && xoff < grid.width && yoff >= 0 && yoff < grid.height && zoff >= 0 && zoff < grid.depth;
-						
-						if (isInside && grid.isAir(xoff, yoff, zoff)) {
-							// If the neighbor voxel is empty, add the
-							// direction
-							// to it to the normal
-							v[3] += xd;
-							v[4] += yd;
-							v[5] += zd;
-						}
-					}
+			ByteBuffer indexBuffer = chunkData.indexBuffer;
+			indexBuffer.clear();
+			int[] indices = mesh.indices;
+			if (shortIndices)
+				for (int i=0; i<numIndices; ++i)
+					indexBuffer.putShort((short) indices[i]);// read back as unsigned
+			else
+				for (int i=0; i<numIndices; ++i)
+					indexBuffer.putInt(indices[i]);
+			indexBuffer.flip();
 			
-			float len = (float) Math.sqrt(v[3] * v[3] + v[4] * v[4] + v[5] * v[5]);
-			v[3] /= len;
-			v[4] /= len;
-			v[5] /= len;
+			chunkData.numVertices = numVertices;
+			chunkData.numIndices = numIndices;
+			chunkData.indexType = shortIndices ? GL.GL_UNSIGNED_SHORT : GL.GL_UNSIGNED_INT;
+			chunkData.format = format;
 		}
 	}
 	
+	private static ByteBuffer allocate (int size) {
+		return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+	}
+	
 	public VoxelMeshRender (VoxelGrid grid) {
 		this.grid = grid;
 		
-		// Add floatbuffers to queue, and add Chunk creators to executor
-		for (int i=0; i<NUM_THREADS; ++i) {
+		// Add floatbuffers to queue, the creator tasks share them
+		for (int i=0; i<scheduler.getNumThreads(); ++i)
 			chunkDataQueue.offer(new ChunkData());
-			executor.submit(new ChunkVertexCreator(grid));
-		}
+		creator = new ChunkVertexCreator(grid);
 		
 		// Calculate buffer dimensions
 		dimensions[0] = (int) Math.ceil((double) grid.width / CHUNK_SIZE);
@@ -369,117 +418,213 @@ public class VoxelMeshRender {
 					
 					chunk.position.set(x, y, z);
 					
-					// set chunk position and indices bounds
-					chunk.lowerIndices[0] = Math.max(1, x * CHUNK_SIZE);
-					chunk.lowerIndices[1] = Math.max(1, y * CHUNK_SIZE);
-					chunk.lowerIndices[2] = Math.max(1, z * CHUNK_SIZE);
-					
-					// kMax-1 because a cell is always in voxel interval [k,k+1]
-					chunk.upperIndices[0] = Math.min((x + 1) * CHUNK_SIZE, grid.width - 1);
-					chunk.upperIndices[1] = Math.min((y + 1) * CHUNK_SIZE, grid.height - 1);
-					chunk.upperIndices[2] = Math.min((z + 1) * CHUNK_SIZE, grid.depth - 1);
+					// same bounds as the headless extractor, kMax-1 because a cell is always in voxel interval [k,k+1]
+					MeshExtractor.chunkBounds(grid, CHUNK_SIZE, new int[] { x, y, z }, chunk.lowerIndices, chunk.upperIndices);
 				}
 	}
 	
+	/** Remeshes every chunk in the background, behind chunks that are being
+	 *  carved.
+	 */
 	public void refresh () {
-		beginVoxelMarking();
-		
 		for (int x = 0; x < dimensions[0]; ++x)
 			for (int y = 0; y < dimensions[1]; ++y)
-				for (int z = 0; z < dimensions[2]; ++z)
-					dirtyChunks.add(chunks[x][y][z]);
-		
-		endVoxelMarking();
+				for (int z = 0; z < dimensions[2]; ++z) {
+					// voxels arent tracked while another render is active
+					chunks[x][y][z].markBlocksDirty(ALL_BLOCKS);
+					queueChunk(chunks[x][y][z], true);
+				}
 	}
 	
-	public void beginVoxelMarking() {
-		dirtyMarkingLock.lock();
-	}
-
+	/** Hands all chunks marked dirty so far over to the workers. Marking is
+	 *  lock free, so chunks marked by other editors in the meantime are simply
+	 *  picked up by this call or the next one.
+	 */
 	public void endVoxelMarking() {
-		waitingChunkSet.addAll(dirtyChunks);
-
-		for (Chunk chunk : dirtyChunks)
-			chunk.dirty = false;
-		
-		dirtyChunks.clear();
-		dirtyMarkingLock.unlock();
+		queueDirtyChunks();
 	}
 	
-	public void markVoxelDirty (int x, int y, int z) {
-		final int d = (int) (Math.log(CHUNK_SIZE) / Math.log(2));
-//		final int m = CHUNK_SIZE - 1;
+	private int queueDirtyChunks () {
+		int count = 0;
+		Chunk chunk;
+		while ((chunk = dirtyChunks.poll()) != null) {
+			queueChunk(chunk, false);
+			++count;
+		}
+		return count;
+	}
+	
+	/** Makes the render active again. Voxels are marked while inactive too,
+	 *  so only the chunks changed in the meantime are remeshed, unless the
+	 *  render was invalidated. The time until they're all uploaded is
+	 *  reported.
+	 */
+	public void catchUp () {
+		long start = System.nanoTime();
+		int count;
+		if (outdated) {
+			outdated = false;
+			refresh();
+			count = dimensions[0] * dimensions[1] * dimensions[2];
+		} else
+			count = queueDirtyChunks();
+		statistics.beginCatchUp(start, count);
+	}
+	
+	/** Remesh every chunk once the render is active again, after a change
+	 *  made while inactive that affects them all.
+	 */
+	public void invalidate () {
+		outdated = true;
+	}
+	
+	/** Whether a result was built from an outdated version of the chunk and
+	 *  should be dropped, a newer result is then on its way.
+	 */
+	private boolean isStale (Chunk chunk, ChunkData chunkData) {
+		if (chunkData.epoch == chunk.epoch.get()) {
+			chunk.staleDrops.set(0);
+			return false;
+		}
 		
-		// chunk index
-		int ix = x >> d;// quicker division if d is power of 2
-		int iy = y >> d;
-		int iz = z >> d;
+		// dont let a chunk carved every frame go without updates forever
+		if (chunk.staleDrops.incrementAndGet() > MAX_STALE_DROPS) {
+			chunk.staleDrops.set(0);
+			return false;
+		}
 		
-		Chunk chunk = chunks[ix][iy][iz];
+		statistics.stale.incrementAndGet();
+		return true;
+	}
+	
+	private void queueChunk (Chunk chunk, boolean background) {
+		float x = (chunk.lowerIndices[0] + chunk.upperIndices[0]) * 0.5f;
+		float y = (chunk.lowerIndices[1] + chunk.upperIndices[1]) * 0.5f;
+		float z = (chunk.lowerIndices[2] + chunk.upperIndices[2]) * 0.5f;
+		chunk.epoch.incrementAndGet();
+		waitingChunkSet.add(chunk, grid.priority(x, y, z, background));
+		scheduler.execute(background ? TaskScheduler.Priority.REFRESH : TaskScheduler.Priority.MESHING, creator);
+	}
+	
+	/** Returns chunk data to the pool, resuming the chunks left waiting while
+	 *  the pool was empty.
+	 */
+	private void recycle (ChunkData chunkData) {
+		chunkDataQueue.offer(chunkData);
+		if (waitingChunkSet.size() > 0)
+			scheduler.execute(TaskScheduler.Priority.MESHING, creator);
+	}
+	
+	private void markChunkDirty (Chunk chunk) {
+		dirtyChunks.add(chunk);
+	}
+	
+	/** Marks every block of every chunk with a cell the voxel reaches with the
+	 *  current mesher, also across chunk borders, so that neighbor chunks
+	 *  never keep stale vertices or normals along the seam.
+	 */
+	public void markVoxelDirty (int x, int y, int z) {
+		Mesher.Type type = mesherType;
 		
-		if (!chunk.dirty) {
-			chunk.dirty = true;
-			dirtyChunks.add(chunk);
-		}
-							
-		// if x % CHUNK_SIZE == 0 or 1 adjacent chunks must be marked dirty to prevent mesh tearings 
-//		int mX = x & m;// quicker modulo if m is power of 2 minus 1
-//		int mY = y & m;
-//		int mZ = z & m;
-//		
-//		if (mX == 0 && x > 0) dirtyChunks.add(chunks[ix-1][iy][iz]);
-//		else if (mX == 1 && x<grid.w-CHUNK_SIZE) dirtyChunks.add(chunks[ix+1][iy][iz]);
-//		
-//		if (mY == 0 && y > 0) dirtyChunks.add(chunks[ix][iy-1][iz]);
-//		else if (mY == 1 && y<grid.h-CHUNK_SIZE) dirtyChunks.add(chunks[ix][iy+1][iz]);
-//		
-//		if (mZ == 0 && z > 0) dirtyChunks.add(chunks[ix][iy][iz-1]);
-//		else if (mZ == 1 && z<grid.d-CHUNK_SIZE) dirtyChunks.add(chunks[ix][iy][iz+1]);
+		// cells reached by the voxel, clamped to the cells of the grid
+		int lx = Math.max(1, x - type.below), ux = Math.min(grid.width - 2, x + type.above);
+		int ly = Math.max(1, y - type.below), uy = Math.min(grid.height - 2, y + type.above);
+		int lz = Math.max(1, z - type.below), uz = Math.min(grid.depth - 2, z + type.above);
+		markCellsDirty(lx, ux, ly, uy, lz, uz);
+	}
+	
+	/** Marks the blocks reached by any voxel in [lower, upper), for changes
+	 *  too large to mark voxel by voxel.
+	 */
+	public void markRegionDirty (int[] lower, int[] upper) {
+		Mesher.Type type = mesherType;
+		int lx = Math.max(1, lower[0] - type.below), ux = Math.min(grid.width - 2, upper[0] - 1 + type.above);
+		int ly = Math.max(1, lower[1] - type.below), uy = Math.min(grid.height - 2, upper[1] - 1 + type.above);
+		int lz = Math.max(1, lower[2] - type.below), uz = Math.min(grid.depth - 2, upper[2] - 1 + type.above);
+		markCellsDirty(lx, ux, ly, uy, lz, uz);
+	}
+	
+	/** Marks the blocks holding the cells in [l, u], bounds included.
+	 */
+	private void markCellsDirty (int lx, int ux, int ly, int uy, int lz, int uz) {
+		for (int ix=lx >> CHUNK_SHIFT; ix<=ux >> CHUNK_SHIFT; ++ix)
+			for (int iy=ly >> CHUNK_SHIFT; iy<=uy >> CHUNK_SHIFT; ++iy)
+				for (int iz=lz >> CHUNK_SHIFT; iz<=uz >> CHUNK_SHIFT; ++iz) {
+					// blocks of the chunk holding any of the cells
+					int ox = ix << CHUNK_SHIFT, oy = iy << CHUNK_SHIFT, oz = iz << CHUNK_SHIFT;
+					int m = CHUNK_SIZE - 1;
+					long mask = 0;
+					for (int bx=Math.max(0, lx - ox) / BLOCK_SIZE; bx<=Math.min(m, ux - ox) / BLOCK_SIZE; ++bx)
+						for (int by=Math.max(0, ly - oy) / BLOCK_SIZE; by<=Math.min(m, uy - oy) / BLOCK_SIZE; ++by)
+							for (int bz=Math.max(0, lz - oz) / BLOCK_SIZE; bz<=Math.min(m, uz - oz) / BLOCK_SIZE; ++bz)
+								mask |= 1L << ((bx * BLOCKS + by) * BLOCKS + bz);
+					
+					Chunk chunk = chunks[ix][iy][iz];
+					chunk.markBlocksDirty(mask);
+					markChunkDirty(chunk);
+				}
 	}
 
 	public void updateDirtyChunks (GL2 gl) {
-		long startTime = System.nanoTime();
-		final long frameTime = (long) (1000000000 * (1.0f / 100.0f));
+		// upload whats done within the budget of this frame, never wait for the workers
+		UploadBudget budget = grid.uploadBudget;
+		while (budget.hasRoom()) {
+			Chunk chunk = completedChunkSet.poll();
+			if (chunk == null)
+				break;
 
-		try {
-			while (true) {
-				long timeLeft = frameTime - (System.nanoTime() - startTime);
-				if (timeLeft <= 0)
-					break;
-
-				Chunk chunk = completedChunkSet.poll(timeLeft);
-				if (chunk == null)
-					break;
+			ChunkData chunkData = chunk.result.getAndSet(null);
+			if (chunkData == null)
+				continue;
+			
+			// the chunk may have changed again while waiting for upload
+			if (isStale(chunk, chunkData)) {
+				recycle(chunkData);
+				continue;
+			}
+			
+			// If this cell doesn't contain any points, remove it from the
+			// visible buffer cell set
+			if (chunkData.numIndices == 0) {
+				visibleChunks.remove(chunk);
+			} else {
+				visibleChunks.add(chunk);
+			}
+			
+			if (chunk.bufferName == 0) {
+				// Generate and set the buffer object names for this cell
+				int[] buf = new int[2];
+				gl.glGenBuffers(2, buf, 0);
+				chunk.bufferName = buf[0];
+				chunk.indexBufferName = buf[1];
+			}
 
-				// If this cell doesn't contain any points, remove it from the
-				// visible buffer cell set
-				if (chunk.numNewIndices == 0) {
-					visibleChunks.remove(chunk);
-				} else {
-					visibleChunks.add(chunk);
-				}
-				
-				ChunkData chunkData = chunk.chunkData;
-				chunk.chunkData = null;
-				
-				if (chunk.bufferName == 0) {
-					// Generate and set a buffer object name for this cell
-					int[] buf = new int[1];
-					gl.glGenBuffers(1, buf, 0);
-					chunk.bufferName = buf[0];
-				}
+			// Upload the vertex and normal data and the tris to the buffers
+			int vertexBytes = chunkData.numVertices * chunkData.format.stride;
+			int indexBytes = chunkData.indexBuffer.limit();
+			long uploadStart = System.nanoTime();
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, chunk.bufferName);
+			gl.glBufferData(GL.GL_ARRAY_BUFFER, vertexBytes, chunkData.vertexBuffer, GL.GL_STATIC_DRAW);
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, chunk.indexBufferName);
+			gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, indexBytes, chunkData.indexBuffer, GL.GL_STATIC_DRAW);
+			gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+			budget.spend(vertexBytes + indexBytes, System.nanoTime() - uploadStart);
 
-				// Upload the vertex and normal data to the buffer
-				gl.glBindBuffer(GL.GL_ARRAY_BUFFER, chunk.bufferName);
-				gl.glBufferData(GL.GL_ARRAY_BUFFER, chunk.numNewIndices * ITEM_STRIDE, chunkData.vertexBuffer, GL.GL_STATIC_DRAW);
-				gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			statistics.uploaded.incrementAndGet();
+			statistics.uploadedBytes.addAndGet(vertexBytes + indexBytes);
 
-				chunk.numIndices = chunk.numNewIndices;
-				chunkDataQueue.offer(chunkData);
-			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			chunk.numVertices = chunkData.numVertices;
+			chunk.numIndices = chunkData.numIndices;
+			chunk.indexType = chunkData.indexType;
+			chunk.format = chunkData.format;
+			recycle(chunkData);
 		}
+		statistics.pending = waitingChunkSet.size() + extracting.get() + completedChunkSet.size();
+		
+		// report once the last chunk changed while inactive is on screen
+		if (statistics.isCatchingUp() && statistics.pending == 0)
+			System.out.println(statistics.endCatchUp());
 	}
 	
 	public void draw (GL2 gl) {
@@ -491,56 +636,20 @@ public class VoxelMeshRender {
 		
 		// Loop through visible chunks and draw them
 		for (Chunk chunk : visibleChunks) {
+			gl.glPushMatrix();
+			gl.glTranslatef(chunk.lowerIndices[0], chunk.lowerIndices[1], chunk.lowerIndices[2]);// Vertices are relative to the chunk
 			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, chunk.bufferName);// Bind buffer containing vertices and normals
-			gl.glVertexPointer(3, GL2.GL_FLOAT, ITEM_STRIDE, 0);// Specify vertex data
-			gl.glNormalPointer(GL2.GL_FLOAT, ITEM_STRIDE, ITEM_STRIDE - NORMAL_STRIDE);
-			gl.glDrawArrays(GL2.GL_TRIANGLES, 0, chunk.numIndices);// Draw the points
+			chunk.format.setPointers(gl);// Specify vertex and normal data
+			gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, chunk.indexBufferName);// Bind buffer containing the tris
+			gl.glDrawElements(GL2.GL_TRIANGLES, chunk.numIndices, chunk.indexType, 0);// Draw the tris
+			gl.glPopMatrix();
 		}
 
-		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);// Unbind the buffer data
+		gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);// Unbind the buffer data
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
 		
 		// Disable vertex and normal arrays
 		gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
 		gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
 	}
-	
-	public synchronized void dump (GL2 gl) {
-		FloatBuffer vertexBuffer = ByteBuffer
-				.allocateDirect(
-					(CHUNK_SIZE + VERTEX_GRID_OFFSET*2) *
-					(CHUNK_SIZE + VERTEX_GRID_OFFSET*2) *
-					(CHUNK_SIZE + VERTEX_GRID_OFFSET*2) * ITEM_STRIDE * 3)// from every vert 6 tris can originate but wont in practise because of geometric limitations, so should be much more
-				.order(ByteOrder.nativeOrder()).asFloatBuffer();
-		
-		Vec3D v0 = new Vec3D();
-		Vec3D v1 = new Vec3D();
-		Vec3D v2 = new Vec3D();
-		
-		// dumping all crashes so dump individual chunks
-		
-		for (int x=0; x<dimensions[0]; ++x)
-			for (int y=0; y<dimensions[1]; ++y)
-				for (int z=0; z<dimensions[2]; ++z) {
-					vertexBuffer.clear();
-					Chunk chunk = chunks[x][y][z];
-					TriangleMesh mesh = new TriangleMesh("sculptnect");
-					
-					gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, chunk.bufferName);
-					gl.glGetBufferSubData(GL2.GL_ARRAY_BUFFER, 0, chunk.numIndices * ITEM_STRIDE, vertexBuffer);
-					gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);// Unbind the buffer data
-					for (int j=0; j<chunk.numIndices; j+=3) {
-						v0.set(vertexBuffer.get(), vertexBuffer.get(), vertexBuffer.get());
-						vertexBuffer.get(); vertexBuffer.get(); vertexBuffer.get();// skip normal
-						v1.set(vertexBuffer.get(), vertexBuffer.get(), vertexBuffer.get());
-						vertexBuffer.get(); vertexBuffer.get(); vertexBuffer.get();// skip normal
-						v2.set(vertexBuffer.get(), vertexBuffer.get(), vertexBuffer.get());
-						vertexBuffer.get(); vertexBuffer.get(); vertexBuffer.get();// skip normal
-						mesh.addFace(v0, v1, v2);
-					}
-					
-					mesh.computeVertexNormals();
-					String filename = String.format("objs/%d_%d_%d.obj", x, y, z);
-					mesh.saveAsOBJ(filename);
-				}
-	}
 }
@@ -0,0 +1,581 @@
+package sculptnect;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import javax.vecmath.Point3i;
+import javax.vecmath.Tuple3i;
+
+/**
+ * Draws the voxel grid as blocks. Every chunk is cut into slices along each
+ * axis, and the visible faces of a slice are merged greedily into the largest
+ * rectangles of the same voxel value, so flat areas take a handful of quads
+ * however large they are.
+ */
+public class VoxelQuadRender {
+	private static final int CHUNK_SIZE = 32;
+
+	// Outdated results dropped in a row before one is shown anyway, so that
+	// constant carving can't starve a chunk
+	private static final int MAX_STALE_DROPS = 2;
+
+	// Vertices per quad
+	private static final int QUAD_VERTICES = 4;
+
+	VoxelGrid grid;
+	Chunk[][][] chunks;
+	WorkQueue<Chunk> dirtyChunks = new WorkQueue<Chunk>(new WorkQueue.Flag<Chunk>() {
+		@Override
+		public AtomicInteger queued(Chunk x) {
+			return x.dirty;
+		}
+	});
+	Set<Chunk> visibleChunks = new HashSet<Chunk>();
+
+	TaskScheduler scheduler = TaskScheduler.getShared();
+	Runnable creator;
+
+	WorkQueue<Chunk> waitingChunkSet = new WorkQueue<Chunk>(VoxelGrid.PRIORITIES, new WorkQueue.Flag<Chunk>() {
+		@Override
+		public AtomicInteger queued(Chunk x) {
+			return x.waiting;
+		}
+	});
+	WorkQueue<Chunk> completedChunkSet = new WorkQueue<Chunk>(new WorkQueue.Flag<Chunk>() {
+		@Override
+		public AtomicInteger queued(Chunk x) {
+			return x.completed;
+		}
+	});
+
+	BlockingQueue<QuadData> quadDataQueue = new ArrayBlockingQueue<QuadData>(scheduler.getNumThreads(), false);
+
+	Tuple3i dimensions = new Point3i();
+
+	RenderStatistics statistics = new RenderStatistics("Quads");
+
+	// The layout of the vertices extracted from now on
+	volatile VertexFormat vertexFormat = VertexFormat.FLOAT;
+
+	// Chunks being extracted right now
+	AtomicInteger extracting = new AtomicInteger();
+	// Every chunk has to be extracted once the render is active again
+	volatile boolean outdated;
+
+	private class Chunk {
+		// The position of this chunk in the chunk grid
+		Tuple3i position = new Point3i();
+
+		// The lower and upper indices of the voxel grid for this chunk
+		int[] lowerIndices = new int[3];
+		int[] upperIndices = new int[3];
+
+		// The buffer object name used as handle in OpenGL
+		int bufferName;
+		// The number of vertices this buffer object contains
+		int numVertices;
+		// The layout of the vertices in the buffer object
+		VertexFormat format;
+
+		// Bumped every time the chunk is queued for extraction
+		AtomicInteger epoch = new AtomicInteger();
+		// Outdated results dropped in a row
+		AtomicInteger staleDrops = new AtomicInteger();
+		// Newest quad data waiting for upload
+		AtomicReference<QuadData> result = new AtomicReference<QuadData>();
+
+		// Flags marking this chunk as queued in the dirty, waiting and
+		// completed queues
+		AtomicInteger dirty = new AtomicInteger();
+		AtomicInteger waiting = new AtomicInteger();
+		AtomicInteger completed = new AtomicInteger();
+	}
+
+	// Quads extracted from a chunk, pooled between the workers along with the
+	// scratch data needed to extract them
+	private class QuadData {
+		// Reads the view of the grid the chunk is extracted from
+		VoxelGrid view = new VoxelGrid(grid.width, grid.height, grid.depth, false);
+		// Voxel coordinates, indexed by axis
+		int[] voxel = new int[3];
+
+		// Voxel values of the visible faces of the current slice
+		byte[] mask = new byte[CHUNK_SIZE * CHUNK_SIZE];
+		// Corners and normal of every quad, grown when a chunk needs more
+		float[] quads = new float[1024 * QUAD_VERTICES * 6];
+		int numQuads;
+
+		ByteBuffer vertexBuffer = ByteBuffer.allocateDirect(1024 * QUAD_VERTICES * VertexFormat.FLOAT.stride).order(ByteOrder.nativeOrder());
+		// The chunk epoch this data was extracted from
+		int epoch;
+		// The layout of the vertices in the buffer
+		VertexFormat format;
+	}
+
+	private class ChunkQuadCreator implements Runnable {
+		VoxelGrid grid;
+
+		public ChunkQuadCreator(VoxelGrid grid) {
+			this.grid = grid;
+		}
+
+		@Override
+		public void run() {
+			// Without quad data to spare the chunk is left for the task
+			// scheduled once quad data is recycled
+			QuadData quadData = quadDataQueue.poll();
+			if (quadData == null) {
+				return;
+			}
+			Chunk chunk = waitingChunkSet.poll();
+			if (chunk == null) {
+				recycle(quadData);
+				return;
+			}
+
+			extracting.incrementAndGet();
+			try {
+				extract(chunk, quadData);
+			} finally {
+				extracting.decrementAndGet();
+			}
+		}
+
+		private void extract(Chunk chunk, QuadData quadData) {
+			quadData.epoch = chunk.epoch.get();
+			quadData.numQuads = 0;
+
+			// The view is at least as new as the changes the chunk was queued
+			// for
+			quadData.view.readFrom(grid.getView());
+
+			// Faces facing the negative and the positive direction of every
+			// axis
+			for (int axis = 0; axis < 3; axis++) {
+				for (int slice = chunk.lowerIndices[axis]; slice < chunk.upperIndices[axis]; slice++) {
+					buildSlice(chunk, quadData, axis, slice, -1);
+					buildSlice(chunk, quadData, axis, slice, 1);
+				}
+			}
+
+			statistics.extracted.incrementAndGet();
+
+			// The chunk changed during extraction and is queued again
+			if (isStale(chunk, quadData)) {
+				recycle(quadData);
+				return;
+			}
+
+			writeVertices(chunk, quadData);
+
+			// Coalesce with any older result that hasn't been uploaded
+			QuadData previous = chunk.result.getAndSet(quadData);
+			if (previous != null) {
+				statistics.stale.incrementAndGet();
+				recycle(previous);
+			}
+			completedChunkSet.add(chunk);
+		}
+
+		/**
+		 * Merge the faces of a slice of voxels that face the given side of
+		 * the axis into quads.
+		 */
+		private void buildSlice(Chunk chunk, QuadData quadData, int axis, int slice, int side) {
+			int u = (axis + 1) % 3;
+			int v = (axis + 2) % 3;
+			int lowerU = chunk.lowerIndices[u], lowerV = chunk.lowerIndices[v];
+			int sizeU = chunk.upperIndices[u] - lowerU;
+			int sizeV = chunk.upperIndices[v] - lowerV;
+			VoxelGrid view = quadData.view;
+			byte[] mask = quadData.mask;
+			int[] voxel = quadData.voxel;
+
+			// Find the visible faces, those of voxels next to air or the
+			// border of the grid
+			boolean empty = true;
+			voxel[axis] = slice;
+			for (int j = 0; j < sizeV; j++) {
+				voxel[v] = lowerV + j;
+				for (int i = 0; i < sizeU; i++) {
+					voxel[u] = lowerU + i;
+					byte value = view.getVoxel(voxel[0], voxel[1], voxel[2]);
+					if (value != VoxelGrid.VOXEL_GRID_AIR) {
+						voxel[axis] = slice + side;
+						if (isInside(voxel) && !view.isAir(voxel[0], voxel[1], voxel[2])) {
+							value = VoxelGrid.VOXEL_GRID_AIR;
+						}
+						voxel[axis] = slice;
+					}
+
+					mask[j * sizeU + i] = value;
+					empty &= value == VoxelGrid.VOXEL_GRID_AIR;
+				}
+			}
+
+			if (empty) {
+				return;
+			}
+
+			// Grow every face first along u and then along v as long as the
+			// faces covered have the same value
+			float plane = side > 0 ? slice + 1 : slice;
+			for (int j = 0; j < sizeV; j++) {
+				for (int i = 0; i < sizeU;) {
+					byte value = mask[j * sizeU + i];
+					if (value == VoxelGrid.VOXEL_GRID_AIR) {
+						i++;
+						continue;
+					}
+
+					int width = 1;
+					while (i + width < sizeU && mask[j * sizeU + i + width] == value) {
+						width++;
+					}
+
+					int height = 1;
+					grow: while (j + height < sizeV) {
+						int row = (j + height) * sizeU + i;
+						for (int k = 0; k < width; k++) {
+							if (mask[row + k] != value) {
+								break grow;
+							}
+						}
+						height++;
+					}
+
+					// Clear the faces taken by the quad
+					for (int l = 0; l < height; l++) {
+						int row = (j + l) * sizeU + i;
+						for (int k = 0; k < width; k++) {
+							mask[row + k] = VoxelGrid.VOXEL_GRID_AIR;
+						}
+					}
+
+					addQuad(quadData, axis, side, plane, lowerU + i, lowerV + j, width, height);
+					i += width;
+				}
+			}
+		}
+
+		/**
+		 * Add a quad given by its plane along the axis and its rectangle in the
+		 * other two axes. The corners are counter-clockwise seen from the side
+		 * the quad faces.
+		 */
+		private void addQuad(QuadData quadData, int axis, int side, float plane, int u0, int v0, int width, int height) {
+			int stride = QUAD_VERTICES * 6;
+			if ((quadData.numQuads + 1) * stride > quadData.quads.length) {
+				float[] quads = new float[quadData.quads.length * 2];
+				System.arraycopy(quadData.quads, 0, quads, 0, quadData.numQuads * stride);
+				quadData.quads = quads;
+			}
+
+			int u = (axis + 1) % 3;
+			int v = (axis + 2) % 3;
+			float[] quads = quadData.quads;
+			int offset = quadData.numQuads * stride;
+			for (int corner = 0; corner < QUAD_VERTICES; corner++) {
+				// Walk the corners backwards for faces on the negative side
+				int c = side > 0 ? corner : (QUAD_VERTICES - corner) % QUAD_VERTICES;
+				int i = offset + corner * 6;
+				quads[i + axis] = plane;
+				quads[i + u] = u0 + (c == 1 || c == 2 ? width : 0);
+				quads[i + v] = v0 + (c == 2 || c == 3 ? height : 0);
+				quads[i + 3 + axis] = side;
+				quads[i + 3 + u] = 0.0f;
+				quads[i + 3 + v] = 0.0f;
+			}
+			quadData.numQuads++;
+		}
+
+		private void writeVertices(Chunk chunk, QuadData quadData) {
+			VertexFormat format = vertexFormat;
+			int numVertices = quadData.numQuads * QUAD_VERTICES;
+			if (quadData.vertexBuffer.capacity() < numVertices * VertexFormat.FLOAT.stride) {
+				quadData.vertexBuffer = ByteBuffer.allocateDirect(quadData.quads.length / 6 * VertexFormat.FLOAT.stride).order(ByteOrder.nativeOrder());
+			}
+
+			// Vertices are stored relative to the chunk
+			ByteBuffer vertexBuffer = quadData.vertexBuffer;
+			vertexBuffer.clear();
+			float[] quads = quadData.quads;
+			float ox = chunk.lowerIndices[0], oy = chunk.lowerIndices[1], oz = chunk.lowerIndices[2];
+			for (int i = 0; i < numVertices * 6; i += 6) {
+				format.put(vertexBuffer, quads[i] - ox, quads[i + 1] - oy, quads[i + 2] - oz, quads[i + 3], quads[i + 4], quads[i + 5]);
+			}
+			vertexBuffer.flip();
+			quadData.format = format;
+		}
+
+		private boolean isInside(int[] voxel) {
+			return voxel[0] >= 0 && voxel[0] < grid.width && voxel[1] >= 0 && voxel[1] < grid.height && voxel[2] >= 0 && voxel[2] < grid.depth;
+		}
+	}
+
+	public VoxelQuadRender(VoxelGrid grid) {
+		this.grid = grid;
+
+		// Add quad data to queue, the creator tasks share it
+		for (int i = 0; i < scheduler.getNumThreads(); i++) {
+			quadDataQueue.offer(new QuadData());
+		}
+		creator = new ChunkQuadCreator(grid);
+
+		// Calculate chunk dimensions
+		dimensions.x = (int) Math.ceil((double) grid.width / CHUNK_SIZE);
+		dimensions.y = (int) Math.ceil((double) grid.height / CHUNK_SIZE);
+		dimensions.z = (int) Math.ceil((double) grid.depth / CHUNK_SIZE);
+
+		// Create the chunks and initialize them
+		chunks = new Chunk[dimensions.x][dimensions.y][dimensions.z];
+		for (int x = 0; x < dimensions.x; x++) {
+			for (int y = 0; y < dimensions.y; y++) {
+				for (int z = 0; z < dimensions.z; z++) {
+					Chunk chunk = new Chunk();
+					chunks[x][y][z] = chunk;
+
+					// Set chunk position and indices bounds
+					chunk.position.set(x, y, z);
+					chunk.lowerIndices[0] = x * CHUNK_SIZE;
+					chunk.lowerIndices[1] = y * CHUNK_SIZE;
+					chunk.lowerIndices[2] = z * CHUNK_SIZE;
+					chunk.upperIndices[0] = Math.min((x + 1) * CHUNK_SIZE, grid.width);
+					chunk.upperIndices[1] = Math.min((y + 1) * CHUNK_SIZE, grid.height);
+					chunk.upperIndices[2] = Math.min((z + 1) * CHUNK_SIZE, grid.depth);
+				}
+			}
+		}
+	}
+
+	public void refresh() {
+		// Rebuild every chunk in the background, behind chunks being carved
+		for (int x = 0; x < dimensions.x; x++) {
+			for (int y = 0; y < dimensions.y; y++) {
+				for (int z = 0; z < dimensions.z; z++) {
+					queueChunk(chunks[x][y][z], true);
+				}
+			}
+		}
+	}
+
+	public void endVoxelMarking() {
+		queueDirtyChunks();
+	}
+
+	private int queueDirtyChunks() {
+		// Marking is lock free, chunks marked by other editors in the
+		// meantime are picked up by this call or the next one
+		int count = 0;
+		Chunk chunk;
+		while ((chunk = dirtyChunks.poll()) != null) {
+			queueChunk(chunk, false);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Make the render active again. Voxels are marked while inactive too, so
+	 * only the chunks changed in the meantime are extracted, unless the render
+	 * was invalidated. The time until they're all uploaded is reported.
+	 */
+	public void catchUp() {
+		long start = System.nanoTime();
+		int count;
+		if (outdated) {
+			outdated = false;
+			refresh();
+			count = dimensions.x * dimensions.y * dimensions.z;
+		} else {
+			count = queueDirtyChunks();
+		}
+		statistics.beginCatchUp(start, count);
+	}
+
+	/**
+	 * Extract every chunk once the render is active again, after a change made
+	 * while inactive that affects them all.
+	 */
+	public void invalidate() {
+		outdated = true;
+	}
+
+	private void queueChunk(Chunk chunk, boolean background) {
+		float x = (chunk.lowerIndices[0] + chunk.upperIndices[0]) * 0.5f;
+		float y = (chunk.lowerIndices[1] + chunk.upperIndices[1]) * 0.5f;
+		float z = (chunk.lowerIndices[2] + chunk.upperIndices[2]) * 0.5f;
+		chunk.epoch.incrementAndGet();
+		waitingChunkSet.add(chunk, grid.priority(x, y, z, background));
+		scheduler.execute(background ? TaskScheduler.Priority.REFRESH : TaskScheduler.Priority.MESHING, creator);
+	}
+
+	/**
+	 * Return quad data to the pool, resuming the chunks left waiting while
+	 * the pool was empty.
+	 */
+	private void recycle(QuadData quadData) {
+		quadDataQueue.offer(quadData);
+		if (waitingChunkSet.size() > 0) {
+			scheduler.execute(TaskScheduler.Priority.MESHING, creator);
+		}
+	}
+
+	/**
+	 * Whether quad data was extracted from an outdated version of the chunk
+	 * and should be dropped, in which case newer data is on its way.
+	 */
+	private boolean isStale(Chunk chunk, QuadData quadData) {
+		if (quadData.epoch == chunk.epoch.get()) {
+			chunk.staleDrops.set(0);
+			return false;
+		}
+
+		// Don't let a chunk carved every frame go without updates forever
+		if (chunk.staleDrops.incrementAndGet() > MAX_STALE_DROPS) {
+			chunk.staleDrops.set(0);
+			return false;
+		}
+
+		statistics.stale.incrementAndGet();
+		return true;
+	}
+
+	public void markVoxelDirty(int x, int y, int z) {
+		int ix = x / CHUNK_SIZE;
+		int iy = y / CHUNK_SIZE;
+		int iz = z / CHUNK_SIZE;
+		markChunkDirty(chunks[ix][iy][iz]);
+
+		// A voxel on the border of its chunk also decides whether the faces
+		// of the voxel next to it in the adjacent chunk are visible
+		int mx = x % CHUNK_SIZE, my = y % CHUNK_SIZE, mz = z % CHUNK_SIZE;
+		if (mx == 0 && ix > 0) markChunkDirty(chunks[ix - 1][iy][iz]);
+		if (mx == CHUNK_SIZE - 1 && ix < dimensions.x - 1) markChunkDirty(chunks[ix + 1][iy][iz]);
+		if (my == 0 && iy > 0) markChunkDirty(chunks[ix][iy - 1][iz]);
+		if (my == CHUNK_SIZE - 1 && iy < dimensions.y - 1) markChunkDirty(chunks[ix][iy + 1][iz]);
+		if (mz == 0 && iz > 0) markChunkDirty(chunks[ix][iy][iz - 1]);
+		if (mz == CHUNK_SIZE - 1 && iz < dimensions.z - 1) markChunkDirty(chunks[ix][iy][iz + 1]);
+	}
+
+	/**
+	 * Mark the chunks of the voxels in [lower, upper) as changed, along with
+	 * the chunks of the voxels next to them.
+	 */
+	public void markRegionDirty(int[] lower, int[] upper) {
+		int lx = Math.max(0, lower[0] - 1) / CHUNK_SIZE, ux = Math.min(grid.width - 1, upper[0]) / CHUNK_SIZE;
+		int ly = Math.max(0, lower[1] - 1) / CHUNK_SIZE, uy = Math.min(grid.height - 1, upper[1]) / CHUNK_SIZE;
+		int lz = Math.max(0, lower[2] - 1) / CHUNK_SIZE, uz = Math.min(grid.depth - 1, upper[2]) / CHUNK_SIZE;
+		for (int x = lx; x <= ux; x++) {
+			for (int y = ly; y <= uy; y++) {
+				for (int z = lz; z <= uz; z++) {
+					markChunkDirty(chunks[x][y][z]);
+				}
+			}
+		}
+	}
+
+	private void markChunkDirty(Chunk chunk) {
+		dirtyChunks.add(chunk);
+	}
+
+	public void updateDirtyChunks(GL2 gl) {
+		// Upload what's done within this frame's budget, never wait for the
+		// workers
+		UploadBudget budget = grid.uploadBudget;
+		while (budget.hasRoom()) {
+			Chunk chunk = completedChunkSet.poll();
+			if (chunk == null) {
+				break;
+			}
+
+			QuadData quadData = chunk.result.getAndSet(null);
+			if (quadData == null) {
+				continue;
+			}
+
+			// The chunk may have changed again while waiting for upload
+			if (isStale(chunk, quadData)) {
+				recycle(quadData);
+				continue;
+			}
+
+			// If this chunk doesn't contain any quads, remove it from the
+			// visible chunk set
+			if (quadData.numQuads == 0) {
+				visibleChunks.remove(chunk);
+			} else {
+				visibleChunks.add(chunk);
+			}
+
+			if (chunk.bufferName == 0) {
+				// Generate and set a buffer object name for this chunk
+				int[] buf = new int[1];
+				gl.glGenBuffers(1, buf, 0);
+				chunk.bufferName = buf[0];
+			}
+
+			// Upload the vertex and normal data to the buffer
+			int numVertices = quadData.numQuads * QUAD_VERTICES;
+			int size = numVertices * quadData.format.stride;
+			long uploadStart = System.nanoTime();
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, chunk.bufferName);
+			gl.glBufferData(GL.GL_ARRAY_BUFFER, size, quadData.vertexBuffer, GL.GL_STATIC_DRAW);
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			budget.spend(size, System.nanoTime() - uploadStart);
+
+			statistics.uploaded.incrementAndGet();
+			statistics.uploadedBytes.addAndGet(size);
+
+			chunk.numVertices = numVertices;
+			chunk.format = quadData.format;
+			recycle(quadData);
+		}
+		statistics.pending = waitingChunkSet.size() + extracting.get() + completedChunkSet.size();
+
+		// Report once the last chunk changed while inactive is on screen
+		if (statistics.isCatchingUp() && statistics.pending == 0) {
+			System.out.println(statistics.endCatchUp());
+		}
+	}
+
+	public void draw(GL2 gl) {
+		gl.glColor3f(.3f, .7f, .7f);
+
+		// Enable the vertex and normal arrays
+		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+
+		// Loop through visible chunks and draw them
+		for (Chunk chunk : visibleChunks) {
+			// Quads are relative to the chunk
+			gl.glPushMatrix();
+			gl.glTranslatef(chunk.lowerIndices[0], chunk.lowerIndices[1], chunk.lowerIndices[2]);
+
+			// Bind buffer containing quads and normals
+			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, chunk.bufferName);
+
+			// Specify vertex and normal data
+			chunk.format.setPointers(gl);
+
+			// Draw the quads
+			gl.glDrawArrays(GL2.GL_QUADS, 0, chunk.numVertices);
+			gl.glPopMatrix();
+		}
+
+		// Unbind the buffer data
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+
+		// Disable vertex and normal arrays
+		gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+		gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+	}
+}
@@ -0,0 +1,150 @@
+package sculptnect;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi producer, multi consumer work queue that holds every item at most once.
+ * Whether an item is queued is tracked by an atomic flag on the item itself, so
+ * adding an item that is already waiting costs a single read, and producers and
+ * consumers never share a lock. Consumers wait on a semaphore counting the
+ * queued items, which means no wakeup can be lost.
+ *
+ * Items are served by priority, where 0 is the highest, and in insertion order
+ * within a priority. Adding a queued item with a higher priority moves it up;
+ * the entry left behind is skipped when it is reached.
+ */
+public class WorkQueue<T> {
+	/**
+	 * Gives access to the flag marking an item as queued. The flag holds the
+	 * priority plus one while the item is queued and zero otherwise. Every
+	 * queue an item can be in at the same time needs a flag of its own.
+	 */
+	public interface Flag<T> {
+		public AtomicInteger queued(T x);
+	}
+
+	private final ConcurrentLinkedQueue<T>[] queues;
+	private final Semaphore available = new Semaphore(0);
+	private final Flag<T> flag;
+
+	public WorkQueue(Flag<T> flag) {
+		this(1, flag);
+	}
+
+	@SuppressWarnings("unchecked")
+	public WorkQueue(int priorities, Flag<T> flag) {
+		this.flag = flag;
+		queues = (ConcurrentLinkedQueue<T>[]) new ConcurrentLinkedQueue<?>[priorities];
+		for (int i = 0; i < priorities; i++) {
+			queues[i] = new ConcurrentLinkedQueue<T>();
+		}
+	}
+
+	public void add(T x) {
+		add(x, 0);
+	}
+
+	public void add(T x, int priority) {
+		AtomicInteger queued = flag.queued(x);
+		while (true) {
+			int current = queued.get();
+
+			// Already waiting with the same or a higher priority
+			if (current != 0 && current <= priority + 1) {
+				return;
+			}
+
+			if (queued.compareAndSet(current, priority + 1)) {
+				// The item must be in the queue before it is announced
+				queues[priority].offer(x);
+				available.release();
+				return;
+			}
+		}
+	}
+
+	public void addAll(Collection<? extends T> collection) {
+		for (T x : collection) {
+			add(x);
+		}
+	}
+
+	/**
+	 * Remove an item without waiting.
+	 *
+	 * @return the item or null if the queue is empty
+	 */
+	public T poll() {
+		while (available.tryAcquire()) {
+			T x = remove();
+			if (x != null) {
+				return x;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Remove an item, waiting at most the given time for one to arrive.
+	 *
+	 * @return the item or null if the time ran out
+	 */
+	public T poll(long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		while (available.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+			T x = remove();
+			if (x != null) {
+				return x;
+			}
+		}
+		return null;
+	}
+
+	public T take() throws InterruptedException {
+		while (true) {
+			available.acquire();
+			T x = remove();
+			if (x != null) {
+				return x;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of entries in the queue, which may include entries left
+	 * behind by items that moved up.
+	 */
+	public int size() {
+		return available.availablePermits();
+	}
+
+	/**
+	 * Remove the first entry after a permit has been acquired.
+	 *
+	 * @return the item or null if the entry was left behind by an item that
+	 *         moved up
+	 */
+	private T remove() {
+		// Every permit has a matching entry, but another consumer may take the
+		// entry we saw first, so keep looking until one is found
+		while (true) {
+			for (int priority = 0; priority < queues.length; priority++) {
+				T x = queues[priority].poll();
+				if (x == null) {
+					continue;
+				}
+
+				// Clear the flag before the item is processed, so that changes
+				// made from now on queue it again
+				if (flag.queued(x).compareAndSet(priority + 1, 0)) {
+					return x;
+				}
+				return null;
+			}
+		}
+	}
+}